@@ -0,0 +1,140 @@
+package dev.lukebemish.pypigradle;
+
+import org.jspecify.annotations.Nullable;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+/**
+ * A concurrent cache bounded by the total weight of its entries, used to share immutable values that are built from
+ * the same inputs many times over a resolution. By default every entry weighs the same, bounding the number of
+ * entries; caches of values that vary a lot in size can weigh each value by its size instead. Values can live for as
+ * long as the cache does, which in a Gradle daemon can be many builds, so once the cache is full entries are evicted
+ * to make room for every new one. Eviction follows the clock, or second-chance, scheme: a hand sweeps the entries in
+ * the order they were added, evicting those that have not been read since it last passed them, and picks up where it
+ * left off the next time.
+ */
+public final class BoundedCache<K, V> {
+    private final ConcurrentHashMap<K, Entry<V>> entries = new ConcurrentHashMap<>();
+    // The keys in the order the hand visits them; its head is where the hand is
+    private final ConcurrentLinkedQueue<K> clock = new ConcurrentLinkedQueue<>();
+    private final long maximumWeight;
+    private final ToLongFunction<? super V> weigher;
+    private final AtomicLong weight = new AtomicLong();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public BoundedCache(int maximumSize) {
+        this(maximumSize, value -> 1);
+    }
+
+    public BoundedCache(long maximumWeight, ToLongFunction<? super V> weigher) {
+        this.maximumWeight = maximumWeight;
+        this.weigher = weigher;
+    }
+
+    public V get(K key, Function<? super K, ? extends V> loader) {
+        var value = getIfPresent(key);
+        if (value != null) {
+            return value;
+        }
+        return put(key, loader.apply(key));
+    }
+
+    public @Nullable V getIfPresent(K key) {
+        var entry = entries.get(key);
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        entry.referenced = true;
+        return entry.value;
+    }
+
+    /**
+     * Adds a value to the cache, unless one is already present for the key.
+     *
+     * @return the value now in the cache
+     */
+    public V put(K key, V value) {
+        // Values are weighed once, so that what is taken off on eviction is what was added
+        var entry = new Entry<>(value, weigher.applyAsLong(value));
+        var existing = entries.putIfAbsent(key, entry);
+        if (existing != null) {
+            existing.referenced = true;
+            return existing.value;
+        }
+        weight.addAndGet(entry.weight);
+        clock.offer(key);
+        evict(key);
+        return value;
+    }
+
+    private void evict(K added) {
+        // Every entry gets at most one second chance per sweep, so two sweeps free enough room unless the entry just
+        // added is too heavy by itself
+        long remaining = 2L * entries.size() + 1;
+        while (weight.get() > maximumWeight && remaining-- > 0) {
+            var key = clock.poll();
+            if (key == null) {
+                return;
+            }
+            var entry = entries.get(key);
+            if (entry == null) {
+                continue;
+            }
+            if (key.equals(added) || entry.referenced) {
+                entry.referenced = false;
+                clock.offer(key);
+            } else if (entries.remove(key, entry)) {
+                weight.addAndGet(-entry.weight);
+                evictions.increment();
+            } else {
+                // The key now has another entry, which has to stay on the clock to ever be evicted
+                clock.offer(key);
+            }
+        }
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public long weight() {
+        return weight.get();
+    }
+
+    private static final class Entry<V> {
+        private final V value;
+        private final long weight;
+        private volatile boolean referenced;
+
+        private Entry(V value, long weight) {
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "hits=" + hits() + ", misses=" + misses() + ", evictions=" + evictions() + ", size=" + size() + ", weight=" + weight() + "/" + maximumWeight;
+    }
+}
@@ -0,0 +1,72 @@
+package dev.lukebemish.pypigradle;
+
+import org.gradle.api.attributes.Attribute;
+import org.gradle.api.attributes.AttributeCompatibilityRule;
+import org.gradle.api.attributes.CompatibilityCheckDetails;
+
+import javax.inject.Inject;
+
+public final class PyPIAttributes {
+    private PyPIAttributes() {}
+
+    /**
+     * The Python interpreter a variant's wheel is built for. On variants this is the wheel's {@code <python>-<abi>} tag
+     * pair, such as {@code cp312-cp312}, {@code cp39-abi3} or {@code py3-none}; consumers request a CPython interpreter
+     * tag such as {@code cp312}, and are matched with every wheel that interpreter can load.
+     */
+    public static final Attribute<String> PYTHON_INTERPRETER = Attribute.of("dev.lukebemish.pypi.interpreter", String.class);
+
+    private static final String NO_WHEEL = "none: no wheel for ";
+
+    /**
+     * {@return the {@link #PYTHON_INTERPRETER} of the variants of a target that none of a release's wheels run on} It
+     * matches no interpreter, so that resolving them fails, naming what was asked for, rather than succeeding without
+     * a file.
+     */
+    static String noWheel(String operatingSystemFamily, String machineArchitecture, PythonInterpreter interpreter) {
+        return NO_WHEEL + operatingSystemFamily + "/" + machineArchitecture + "/" + interpreter.tag();
+    }
+
+    /**
+     * The {@linkplain org.gradle.api.artifacts.type.ArtifactTypeDefinition#ARTIFACT_TYPE_ATTRIBUTE artifact type} of
+     * wheel files.
+     */
+    public static final String WHEEL = "whl";
+
+    /**
+     * The artifact type of unpacked wheels, as directories in the layout of {@code site-packages}. Request it to have
+     * resolved wheels unpacked by {@link PyPIWheelTransform}.
+     */
+    public static final String SITE_PACKAGES = "site-packages";
+
+    public abstract static class PythonInterpreterCompatibilityRule implements AttributeCompatibilityRule<String> {
+        @Inject
+        public PythonInterpreterCompatibilityRule() {}
+
+        @Override
+        public void execute(CompatibilityCheckDetails<String> details) {
+            var consumer = details.getConsumerValue();
+            var producer = details.getProducerValue();
+            if (consumer == null || producer == null) {
+                return;
+            }
+            var separator = producer.indexOf('-');
+            if (separator == -1 || producer.startsWith(NO_WHEEL)) {
+                details.incompatible();
+                return;
+            }
+            PythonInterpreter interpreter;
+            try {
+                interpreter = PythonInterpreter.fromTag(consumer);
+            } catch (IllegalArgumentException e) {
+                details.incompatible();
+                return;
+            }
+            if (WheelFilename.interpreterScore(producer.substring(0, separator), producer.substring(separator + 1), interpreter) >= 0) {
+                details.compatible();
+            } else {
+                details.incompatible();
+            }
+        }
+    }
+}
@@ -1,12 +1,16 @@
 package dev.lukebemish.pypigradle;
 
 import org.gradle.api.Action;
+import org.gradle.api.GradleException;
+import org.gradle.api.InvalidUserDataException;
 import org.gradle.api.artifacts.CacheableRule;
 import org.gradle.api.artifacts.ComponentMetadataContext;
 import org.gradle.api.artifacts.ComponentMetadataRule;
+import org.gradle.api.artifacts.DirectDependenciesMetadata;
+import org.gradle.api.artifacts.DirectDependencyMetadata;
+import org.gradle.api.artifacts.ModuleVersionIdentifier;
 import org.gradle.api.artifacts.MutableVariantFilesMetadata;
-import org.gradle.api.artifacts.VariantMetadata;
-import org.gradle.api.artifacts.repositories.RepositoryResourceAccessor;
+import org.gradle.api.attributes.AttributeContainer;
 import org.gradle.api.attributes.Category;
 import org.gradle.api.attributes.DocsType;
 import org.gradle.api.attributes.LibraryElements;
@@ -16,56 +20,115 @@ import org.gradle.nativeplatform.OperatingSystemFamily;
 import org.jspecify.annotations.Nullable;
 
 import javax.inject.Inject;
+import java.net.URI;
 import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
 
-import static dev.lukebemish.pypigradle.PyPIGradlePlugin.EXTRACT_EXTENSION_PREFIX;
-
 @CacheableRule
 public abstract class PyPIComponentRule implements ComponentMetadataRule {
+    private final int targets;
+    private final PythonInterpreter interpreter;
+    private final PyPIFileHosts fileHosts;
+    private final List<Integer> platformBaselines;
+
+    /**
+     * @param targets the bitmask of {@link TargetVariant} indices to create variants for
+     * @param pythonVersion the {@code major.minor} version of the interpreter to pick wheels for
+     * @param fileHosts the {@linkplain PyPIFileHosts#prefixes() URL prefixes} files can be downloaded from; files
+     *                  elsewhere are ignored
+     * @param platformBaselines the {@linkplain WheelFilename#baseline(String) platform baseline} of each target, at its
+     *                          index
+     */
     @Inject
-    public PyPIComponentRule() {}
-    
-    @Inject
-    protected abstract RepositoryResourceAccessor getResources();
+    public PyPIComponentRule(int targets, String pythonVersion, List<String> fileHosts, List<Integer> platformBaselines) {
+        this.targets = targets;
+        this.interpreter = PythonInterpreter.parse(pythonVersion);
+        this.fileHosts = PyPIFileHosts.of(fileHosts);
+        this.platformBaselines = List.copyOf(platformBaselines);
+    }
     
     @Inject
     protected abstract ObjectFactory getObjects();
 
     public record TargetVariant(String operatingSystemFamily, String machineArchitecture) {
+        private static final String[] OPERATING_SYSTEMS = {OperatingSystemFamily.LINUX, OperatingSystemFamily.MACOS, OperatingSystemFamily.WINDOWS};
+        private static final String[] ARCHITECTURES = {MachineArchitecture.X86, MachineArchitecture.ARM64, MachineArchitecture.X86_64};
+
+        /**
+         * Every target, at its index in the bitmasks used to describe sets of targets.
+         */
         public static final List<TargetVariant> ALL_VARIANTS;
+        public static final int COUNT = OPERATING_SYSTEMS.length * ARCHITECTURES.length;
+        public static final int ALL = (1 << COUNT) - 1;
+
+        private static final String[] RUNTIME_NAMES = new String[COUNT];
+        private static final String[] SOURCE_NAMES = new String[COUNT];
+        private static final int[] OPERATING_SYSTEM_MASKS = new int[OPERATING_SYSTEMS.length];
+        private static final int[] ARCHITECTURE_MASKS = new int[ARCHITECTURES.length];
         
         static {
             var all = new ArrayList<TargetVariant>();
-            for (var os : new String[] {OperatingSystemFamily.LINUX, OperatingSystemFamily.MACOS, OperatingSystemFamily.WINDOWS}) {
-                for (var arch : new String[] {MachineArchitecture.X86, MachineArchitecture.ARM64, MachineArchitecture.X86_64}) {
-                    all.add(new TargetVariant(os, arch));
+            for (int os = 0; os < OPERATING_SYSTEMS.length; os++) {
+                for (int arch = 0; arch < ARCHITECTURES.length; arch++) {
+                    var index = all.size();
+                    var target = new TargetVariant(OPERATING_SYSTEMS[os], ARCHITECTURES[arch]);
+                    all.add(target);
+                    OPERATING_SYSTEM_MASKS[os] |= 1 << index;
+                    ARCHITECTURE_MASKS[arch] |= 1 << index;
+                    RUNTIME_NAMES[index] = target.computeVariantName(true);
+                    SOURCE_NAMES[index] = target.computeVariantName(false);
                 }
             }
             ALL_VARIANTS = List.copyOf(all);
         }
+
+        public int index() {
+            return indexOf(OPERATING_SYSTEMS, operatingSystemFamily) * ARCHITECTURES.length + indexOf(ARCHITECTURES, machineArchitecture);
+        }
         
         public String variantName(boolean runtime) {
+            return variantName(index(), runtime);
+        }
+
+        public static String variantName(int index, boolean runtime) {
+            return runtime ? RUNTIME_NAMES[index] : SOURCE_NAMES[index];
+        }
+
+        private String computeVariantName(boolean runtime) {
             if (runtime && operatingSystemFamily.equals(OperatingSystemFamily.WINDOWS) && machineArchitecture.equals(MachineArchitecture.X86)) {
                 return "runtime";
             }
             return String.format("%s_%s_%s", runtime ? "runtime" : "source", operatingSystemFamily, machineArchitecture);
         }
-        
-        public static List<TargetVariant> matching(@Nullable String operatingSystemFamily, @Nullable String machineArchitecture) {
-            var list = new ArrayList<TargetVariant>();
-            for (var target : ALL_VARIANTS) {
-                if ((operatingSystemFamily == null || target.operatingSystemFamily.equals(operatingSystemFamily)) &&
-                    (machineArchitecture == null || target.machineArchitecture.equals(machineArchitecture))) {
-                    list.add(target);
+
+        /**
+         * {@return the bitmask of targets matching the given operating system and architecture} A {@code null} value
+         * matches any, while a value we do not know matches none.
+         */
+        public static int matching(@Nullable String operatingSystemFamily, @Nullable String machineArchitecture) {
+            int mask = ALL;
+            if (operatingSystemFamily != null) {
+                var os = indexOf(OPERATING_SYSTEMS, operatingSystemFamily);
+                mask &= os == -1 ? 0 : OPERATING_SYSTEM_MASKS[os];
+            }
+            if (machineArchitecture != null) {
+                var arch = indexOf(ARCHITECTURES, machineArchitecture);
+                mask &= arch == -1 ? 0 : ARCHITECTURE_MASKS[arch];
+            }
+            return mask;
+        }
+
+        private static int indexOf(String[] values, String value) {
+            for (int i = 0; i < values.length; i++) {
+                if (values[i].equals(value)) {
+                    return i;
                 }
             }
-            return List.copyOf(list);
+            return -1;
         }
     }
     
-    private static final String URL_PREFIX = "https://files.pythonhosted.org/packages/";
-    
     @Override
     public void execute(ComponentMetadataContext context) {
         var details = context.getDetails();
@@ -73,68 +136,199 @@ public abstract class PyPIComponentRule implements ComponentMetadataRule {
         if (!"pypi".equals(id.getGroup())) {
             return;
         }
-        
+
+        var metadata = fetchMetadata(id);
+        var requirements = metadata.info().parsedRequirements(interpreter);
+        var extraRequirements = metadata.info().extraRequirements(interpreter);
+        // Extras are declared by Provides-Extra, but older releases only name them in the markers of their requirements
+        var extras = new LinkedHashSet<String>(metadata.info().providesExtra());
+        for (var requirement : extraRequirements) {
+            extras.addAll(requirement.markerExtras());
+        }
+
+        // Each target gets the best-ranked compatible wheel, and the first source distribution
+        var wheels = new String[TargetVariant.COUNT];
+        var wheelInterpreters = new String[TargetVariant.COUNT];
+        var wheelScores = new long[TargetVariant.COUNT];
+        var sources = new String[TargetVariant.COUNT];
+        var unservedHosts = new LinkedHashSet<String>();
+        boolean served = false;
+        boolean anyWheel = false;
+        for (var info : metadata.parsedUrlInfo()) {
+            if (!fileHosts.serves(info.url())) {
+                unservedHosts.add(URI.create(info.url()).resolve("/").toString());
+                continue;
+            }
+            served = true;
+            // Only build metadata for the targets the build asked for
+            int fileTargets = info.targets() & targets;
+            if (info.wheel() != null) {
+                anyWheel = true;
+                var interpreterScore = info.wheel().interpreterScore(interpreter);
+                if (interpreterScore < 0) {
+                    continue;
+                }
+                String dependency = null;
+                for (int index = 0; index < TargetVariant.COUNT; index++) {
+                    if ((fileTargets & (1 << index)) == 0) {
+                        continue;
+                    }
+                    var platformScore = info.wheel().platformScore(index, platformBaselines.get(index));
+                    if (platformScore < 0) {
+                        continue;
+                    }
+                    // The interpreter match dominates; the platform tag only breaks ties between equally good ones
+                    long score = ((long) interpreterScore << 32) | platformScore;
+                    if (wheels[index] == null || score > wheelScores[index]) {
+                        if (dependency == null) {
+                            dependency = fileDependency(info, id.getVersion());
+                        }
+                        wheels[index] = dependency;
+                        wheelInterpreters[index] = info.wheel().interpreterTag(interpreter);
+                        wheelScores[index] = score;
+                    }
+                }
+            } else if (info.packageType().equals("sdist")) {
+                for (int index = 0; index < TargetVariant.COUNT; index++) {
+                    if ((fileTargets & (1 << index)) != 0 && sources[index] == null) {
+                        sources[index] = fileDependency(info, id.getVersion());
+                    }
+                }
+            }
+        }
+
+        if (!served && !unservedHosts.isEmpty()) {
+            // Otherwise the release would resolve without any files at all
+            throw new InvalidUserDataException("The files of PyPI package " + id.getName() + " " + id.getVersion() + " are only served from " + String.join(", ", unservedHosts) + ", which are not known PyPI file hosts; add them to pypi.fileHosts");
+        }
+
         details.withVariant("runtime", v -> {
             v.withFiles(MutableVariantFilesMetadata::removeAllFiles);
         });
-        for (var target : TargetVariant.ALL_VARIANTS) {
-            details.maybeAddVariant(target.variantName(true), null, v -> {
-                v.attributes(attributes -> {
-                    attributes.attribute(OperatingSystemFamily.OPERATING_SYSTEM_ATTRIBUTE, getObjects().named(OperatingSystemFamily.class, target.operatingSystemFamily()));
-                    attributes.attribute(MachineArchitecture.ARCHITECTURE_ATTRIBUTE, getObjects().named(MachineArchitecture.class, target.machineArchitecture()));
-                    attributes.attribute(Category.CATEGORY_ATTRIBUTE, getObjects().named(Category.class, Category.LIBRARY));
-                    attributes.attribute(LibraryElements.LIBRARY_ELEMENTS_ATTRIBUTE, getObjects().named(LibraryElements.class, "python-wheel"));
-                });
-            });
-            details.maybeAddVariant(target.variantName(false), null, v -> {
-                v.attributes(attributes -> {
-                    attributes.attribute(OperatingSystemFamily.OPERATING_SYSTEM_ATTRIBUTE, getObjects().named(OperatingSystemFamily.class, target.operatingSystemFamily()));
-                    attributes.attribute(MachineArchitecture.ARCHITECTURE_ATTRIBUTE, getObjects().named(MachineArchitecture.class, target.machineArchitecture()));
-                    attributes.attribute(Category.CATEGORY_ATTRIBUTE, getObjects().named(Category.class, Category.DOCUMENTATION));
-                    attributes.attribute(DocsType.DOCS_TYPE_ATTRIBUTE, getObjects().named(DocsType.class, DocsType.SOURCES));
-                });
-            });
-        }
-        getResources().withResource(String.format("%s/%s/json", id.getName(), id.getVersion()), is -> {
-            var metadata = PyPIMetadata.fromJson(is);
-            metadata.info().parsedRequirements().forEach(requirement -> {
-                for (var target : TargetVariant.matching(requirement.operatingSystemFamily(), requirement.machineArchitecture())) {
-                    Action<VariantMetadata> addDependencies = v -> {
-                        v.withDependencies(dependencies -> {
-                            dependencies.add("pypi:"+requirement.name(), dep -> dep.version(version -> {
-                                if (requirement.versionSpec() != null) {
-                                    requirement.versionSpec().constraints().apply(version);
-                                } else {
-                                    version.strictly("+");
-                                }
-                            }));
-                        });
-                    };
-                    details.withVariant(target.variantName(true), addDependencies);
-                    details.withVariant(target.variantName(false), addDependencies);
+        for (int index = 0; index < TargetVariant.COUNT; index++) {
+            var target = TargetVariant.ALL_VARIANTS.get(index);
+            var bit = 1 << index;
+            if ((targets & bit) == 0) {
+                if (TargetVariant.variantName(index, true).equals("runtime")) {
+                    // The default variant always exists, so keep it tied to its target even when that has been pruned
+                    details.withVariant("runtime", v -> v.attributes(attributes -> {
+                        attributes.attribute(OperatingSystemFamily.OPERATING_SYSTEM_ATTRIBUTE, getObjects().named(OperatingSystemFamily.class, target.operatingSystemFamily()));
+                        attributes.attribute(MachineArchitecture.ARCHITECTURE_ATTRIBUTE, getObjects().named(MachineArchitecture.class, target.machineArchitecture()));
+                    }));
                 }
-            });
-            metadata.parsedUrlInfo(id).forEach(info -> {
-                for (var target : TargetVariant.matching(info.operatingSystemFamily(id), info.machineArchitecture(id))) {
-                    Action<VariantMetadata> addFile = v -> {
-                        v.withDependencies(dependencies -> {
-                            if (dependencies.stream().anyMatch(it -> it.getGroup().startsWith(EXTRACT_EXTENSION_PREFIX))) {
-                                return;
-                            }
-                            if (!info.url().startsWith(URL_PREFIX)) {
-                                throw new IllegalStateException("Unexpected URL: " + info.url());
-                            }
-                            var rest = info.url().substring(URL_PREFIX.length());
-                            dependencies.add(EXTRACT_EXTENSION_PREFIX+"org.files.pythonhosted:"+rest+":"+id.getVersion());
-                        });
-                    };
-                    if (info.packageType().equals("bdist_wheel")) {
-                        details.withVariant(target.variantName(true), addFile);
-                    } else if (info.packageType().equals("sdist")) {
-                        details.withVariant(target.variantName(false), addFile);
-                    }
+                continue;
+            }
+            var wheel = wheels[index];
+            // A release with wheels, none of which runs on this target, has nothing to install there. Releases with only
+            // source distributions have no wheel to miss, so their runtime variants still resolve, to their requirements
+            var wheelInterpreter = wheel == null && anyWheel
+                    ? PyPIAttributes.noWheel(target.operatingSystemFamily(), target.machineArchitecture(), interpreter)
+                    : wheelInterpreters[index];
+            var source = sources[index];
+            Action<AttributeContainer> runtimeAttributes = attributes -> {
+                attributes.attribute(OperatingSystemFamily.OPERATING_SYSTEM_ATTRIBUTE, getObjects().named(OperatingSystemFamily.class, target.operatingSystemFamily()));
+                attributes.attribute(MachineArchitecture.ARCHITECTURE_ATTRIBUTE, getObjects().named(MachineArchitecture.class, target.machineArchitecture()));
+                attributes.attribute(Category.CATEGORY_ATTRIBUTE, getObjects().named(Category.class, Category.LIBRARY));
+                attributes.attribute(LibraryElements.LIBRARY_ELEMENTS_ATTRIBUTE, getObjects().named(LibraryElements.class, "python-wheel"));
+                if (wheelInterpreter != null) {
+                    attributes.attribute(PyPIAttributes.PYTHON_INTERPRETER, wheelInterpreter);
                 }
+            };
+            Action<AttributeContainer> sourceAttributes = attributes -> {
+                attributes.attribute(OperatingSystemFamily.OPERATING_SYSTEM_ATTRIBUTE, getObjects().named(OperatingSystemFamily.class, target.operatingSystemFamily()));
+                attributes.attribute(MachineArchitecture.ARCHITECTURE_ATTRIBUTE, getObjects().named(MachineArchitecture.class, target.machineArchitecture()));
+                attributes.attribute(Category.CATEGORY_ATTRIBUTE, getObjects().named(Category.class, Category.DOCUMENTATION));
+                attributes.attribute(DocsType.DOCS_TYPE_ATTRIBUTE, getObjects().named(DocsType.class, DocsType.SOURCES));
+            };
+            details.maybeAddVariant(TargetVariant.variantName(index, true), null, v -> {
+                v.attributes(runtimeAttributes);
+                v.withDependencies(dependencies -> addDependencies(dependencies, requirements, bit, wheel));
             });
+            details.maybeAddVariant(TargetVariant.variantName(index, false), null, v -> {
+                v.attributes(sourceAttributes);
+                v.withDependencies(dependencies -> addDependencies(dependencies, requirements, bit, source));
+            });
+            // Each extra is a variant of its own, selected by its capability, so the requirements of an extra are only
+            // looked at, and fetched, once something asks for it
+            for (var extra : extras) {
+                details.maybeAddVariant(TargetVariant.variantName(index, true) + "_extra_" + extra, null, v -> {
+                    v.attributes(runtimeAttributes);
+                    v.withCapabilities(capabilities -> capabilities.addCapability(id.getGroup(), extraCapability(id.getName(), extra), id.getVersion()));
+                    v.withDependencies(dependencies -> addExtraDependencies(dependencies, id, extraRequirements, extra, bit));
+                });
+                details.maybeAddVariant(TargetVariant.variantName(index, false) + "_extra_" + extra, null, v -> {
+                    v.attributes(sourceAttributes);
+                    v.withCapabilities(capabilities -> capabilities.addCapability(id.getGroup(), extraCapability(id.getName(), extra), id.getVersion()));
+                    v.withDependencies(dependencies -> addExtraDependencies(dependencies, id, extraRequirements, extra, bit));
+                });
+            }
+        }
+    }
+
+    /**
+     * {@return the name of the capability of the variants of a package that add an extra's requirements} It matches
+     * the name the extra is requested by, such as {@code requests[socks]}.
+     */
+    static String extraCapability(String name, String extra) {
+        return name + "[" + extra + "]";
+    }
+
+    private PyPIMetadata fetchMetadata(ModuleVersionIdentifier id) {
+        var service = PyPIMetadataService.current();
+        if (service == null) {
+            throw new IllegalStateException("PyPI metadata service is not available to read " + id);
+        }
+        var metadata = service.release(id.getName(), id.getVersion());
+        if (metadata == null) {
+            // The index repositories stand in for any version, so this is the only place a missing one is noticed, and
+            // as the rule is cached, resolving it to a component without requirements or files would outlive this build
+            throw new GradleException("Could not find PyPI package " + id.getName() + " " + id.getVersion() + " in " + service.describeSource(id.getName()));
+        }
+        return metadata;
+    }
+
+    private static void addDependencies(DirectDependenciesMetadata dependencies, List<PyPIMetadata.DistRequirement> requirements, int bit, @Nullable String file) {
+        for (var requirement : requirements) {
+            if ((requirement.targets() & bit) == 0) {
+                continue;
+            }
+            addRequirement(dependencies, requirement);
+        }
+        if (file != null) {
+            dependencies.add(file);
+        }
+    }
+
+    /**
+     * Adds what an extra brings in on top of the package itself: the package, at exactly this version, and the
+     * requirements that only apply when the extra is requested.
+     */
+    private void addExtraDependencies(DirectDependenciesMetadata dependencies, ModuleVersionIdentifier id, List<PyPIMetadata.DistRequirement> requirements, String extra, int bit) {
+        dependencies.add(id.getGroup() + ":" + id.getName(), dep -> dep.version(version -> version.strictly(id.getVersion())));
+        for (var requirement : requirements) {
+            if ((requirement.targets() & bit) != 0 || !requirement.markerExtras().contains(extra) || (requirement.targets(interpreter, extra) & bit) == 0) {
+                continue;
+            }
+            addRequirement(dependencies, requirement);
+        }
+    }
+
+    private static void addRequirement(DirectDependenciesMetadata dependencies, PyPIMetadata.DistRequirement requirement) {
+        Action<DirectDependencyMetadata> version = dep -> dep.version(v -> {
+            if (requirement.versionSpec() != null) {
+                requirement.versionSpec().apply(v);
+            } else {
+                v.strictly("+");
+            }
         });
+        dependencies.add("pypi:" + requirement.name(), version);
+        // Requested extras are resolved through the plugin's substitution to the variants that carry them
+        for (var extra : requirement.extras()) {
+            dependencies.add("pypi:" + extraCapability(requirement.name(), extra), version);
+        }
+    }
+
+    private String fileDependency(PyPIMetadata.UrlInfo info, String version) {
+        return fileHosts.dependency(info.url(), version);
     }
 }
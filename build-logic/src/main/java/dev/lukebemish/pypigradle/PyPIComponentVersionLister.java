@@ -1,24 +1,54 @@
 package dev.lukebemish.pypigradle;
 
+import org.gradle.api.GradleException;
 import org.gradle.api.artifacts.ComponentMetadataListerDetails;
 import org.gradle.api.artifacts.ComponentMetadataVersionLister;
-import org.gradle.api.artifacts.repositories.RepositoryResourceAccessor;
 
 import javax.inject.Inject;
+import java.util.ArrayList;
 
 public abstract class PyPIComponentVersionLister implements ComponentMetadataVersionLister {
-    @Inject
-    public PyPIComponentVersionLister() {}
+    private final PythonInterpreter interpreter;
+    private final boolean listYanked;
 
+    /**
+     * Releases without files, and releases none of whose files support the interpreter, are never listed, as they
+     * cannot be resolved. Releases whose every file has been yanked are only listed if {@code listYanked} is set.
+     * Exact versions are resolved without listing, so pinning a yanked release works either way.
+     *
+     * @param pythonVersion the {@code major.minor} version of the interpreter
+     * @param listYanked whether fully yanked releases are listed
+     */
     @Inject
-    protected abstract RepositoryResourceAccessor getResources();
-    
+    public PyPIComponentVersionLister(String pythonVersion, boolean listYanked) {
+        this.interpreter = PythonInterpreter.parse(pythonVersion);
+        this.listYanked = listYanked;
+    }
+
     @Override
     public void execute(ComponentMetadataListerDetails details) {
-        var name = details.getModuleIdentifier().getName();
-        getResources().withResource(String.format("%s/json", name), is -> {
-            var metadata = PyPIIndexMetadata.fromJson(is);
-            details.listed(metadata.releases().keySet().stream().toList());
+        var name = PyPIIndex.normalize(details.getModuleIdentifier().getName());
+        // Listings come from the service whatever kind of index the package is in; the repositories only hold its place
+        var service = PyPIMetadataService.current();
+        if (service == null) {
+            throw new IllegalStateException("PyPI metadata service is not available to list " + name);
+        }
+        var listing = service.listing(name);
+        if (listing == null) {
+            // An empty listing would be cached by Gradle for as long as any other
+            throw new GradleException("Could not find PyPI package " + name + " in " + service.describeSource(name));
+        }
+        list(details, listing);
+    }
+
+    // Only the summary of each release's files is read, which the listing was made with while streaming the index
+    private void list(ComponentMetadataListerDetails details, PyPIIndexMetadata metadata) {
+        var versions = new ArrayList<String>(metadata.releases().size());
+        metadata.releases().forEach((version, release) -> {
+            if (release.isListed(interpreter, listYanked)) {
+                versions.add(version);
+            }
         });
+        details.listed(versions);
     }
 }
@@ -0,0 +1,121 @@
+package dev.lukebemish.pypigradle;
+
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+import org.jspecify.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipFile;
+
+/**
+ * An index over a local directory of wheels and source distributions. The directory is scanned once, when the index is
+ * created, and release metadata is read straight out of the wheels.
+ */
+final class PyPIDirectoryIndex {
+    private static final Logger LOGGER = Logging.getLogger(PyPIDirectoryIndex.class);
+
+    private final Map<String, PyPIIndexMetadata> projects;
+
+    private PyPIDirectoryIndex(Map<String, PyPIIndexMetadata> projects) {
+        this.projects = projects;
+    }
+
+    static PyPIDirectoryIndex scan(URI directory) {
+        var files = new HashMap<String, Map<String, List<PyPIMetadata.UrlInfo>>>();
+        try (var paths = Files.walk(Path.of(directory))) {
+            paths.filter(Files::isRegularFile).sorted().forEach(path -> {
+                var filename = path.getFileName().toString();
+                String packageType;
+                String project;
+                if (filename.endsWith(".whl")) {
+                    var wheel = WheelFilename.parse(filename);
+                    if (wheel == null) {
+                        return;
+                    }
+                    packageType = "bdist_wheel";
+                    project = wheel.name();
+                } else if (filename.endsWith(".tar.gz") || filename.endsWith(".zip")) {
+                    packageType = "sdist";
+                    var separator = filename.lastIndexOf('-');
+                    if (separator == -1) {
+                        return;
+                    }
+                    project = filename.substring(0, separator);
+                } else {
+                    return;
+                }
+                var version = PyPISimpleIndex.version(filename, packageType);
+                if (version == null) {
+                    return;
+                }
+                files.computeIfAbsent(PyPIIndex.normalize(project), k -> new LinkedHashMap<>())
+                        .computeIfAbsent(version, k -> new ArrayList<>())
+                        .add(new PyPIMetadata.UrlInfo(filename, packageType, path.toUri().toString(), Map.of(), null, false, false));
+            });
+        } catch (NoSuchFileException e) {
+            LOGGER.warn("PyPI index directory {} does not exist", directory);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        var projects = new HashMap<String, PyPIIndexMetadata>(files.size());
+        files.forEach((name, releases) -> projects.put(name, PyPIIndexMetadata.of(releases)));
+        return new PyPIDirectoryIndex(projects);
+    }
+
+    @Nullable PyPIIndexMetadata listing(String name) {
+        return projects.get(PyPIIndex.normalize(name));
+    }
+
+    /**
+     * Reads the metadata of a release from the {@code METADATA} file of one of its wheels. Source distributions do not
+     * reliably declare their requirements, so a release with only those is treated as having none.
+     */
+    @Nullable PyPIMetadata release(String name, String version) {
+        var listing = listing(name);
+        var files = listing == null ? null : listing.files(version);
+        if (files == null) {
+            return null;
+        }
+        for (var file : files) {
+            if (file.wheel() == null) {
+                continue;
+            }
+            try (var zip = new ZipFile(Path.of(URI.create(file.url())).toFile())) {
+                var entries = zip.entries();
+                while (entries.hasMoreElements()) {
+                    var entry = entries.nextElement();
+                    if (isMetadata(entry.getName())) {
+                        try (var input = zip.getInputStream(entry)) {
+                            return new PyPIMetadata(PyPISimpleIndex.coreMetadata(input), files);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                LOGGER.warn("Could not read metadata from {}", file.url(), e);
+            }
+        }
+        LOGGER.warn("No wheel of {} {} in the PyPI index directory has metadata; assuming it has no requirements", name, version);
+        return new PyPIMetadata(new PyPIMetadata.Info(null, List.of()), files);
+    }
+
+    /**
+     * {@return whether a wheel entry is the wheel's own core metadata file, {@code <name>-<version>.dist-info/METADATA}}
+     */
+    static boolean isMetadata(String entry) {
+        var separator = entry.indexOf('/');
+        return separator != -1
+                && entry.indexOf('/', separator + 1) == -1
+                && entry.substring(0, separator).endsWith(".dist-info")
+                && entry.substring(separator + 1).equals("METADATA");
+    }
+}
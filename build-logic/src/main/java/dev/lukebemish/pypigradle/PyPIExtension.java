@@ -0,0 +1,210 @@
+package dev.lukebemish.pypigradle;
+
+import org.gradle.api.InvalidUserDataException;
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.provider.ListProperty;
+import org.gradle.api.provider.MapProperty;
+import org.gradle.api.provider.Property;
+import org.gradle.api.provider.SetProperty;
+import org.gradle.nativeplatform.OperatingSystemFamily;
+
+import javax.inject.Inject;
+import java.io.File;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * PyPI settings of a project. The {@linkplain #getIndexes() indexes}, {@linkplain #getMetadataCacheFile() metadata cache
+ * file} and its {@linkplain #getMetadataCacheRetention() retention}, {@linkplain #getListingCacheTtl() listing TTL} and
+ * {@linkplain #getMaxConnections() connection limit} configure the metadata service the whole build shares, so every
+ * project that applies the plugin has to set them the same.
+ */
+public abstract class PyPIExtension {
+    public static final String NAME = "pypi";
+
+    @Inject
+    public PyPIExtension() {
+        getTargets().convention(PyPIComponentRule.TargetVariant.ALL_VARIANTS);
+        getPythonVersion().convention("3.12");
+        getListYankedReleases().convention(false);
+        getIndexUrl().convention("https://pypi.org/pypi/");
+        getListingCacheTtl().convention(Duration.ofHours(24));
+        getMetadataCacheRetention().convention(Duration.ofDays(30));
+        getLocked().convention(false);
+        getPrefetch().convention(false);
+        getUseSimpleIndex().convention(false);
+        getSimpleIndexUrl().convention("https://pypi.org/simple/");
+        getMaxConnections().convention(16);
+        getIndexes().convention(getUseSimpleIndex().zip(getIndexUrl().zip(getSimpleIndexUrl(), List::of), (useSimpleIndex, urls) ->
+                List.of(useSimpleIndex ? new PyPIIndex(PyPIIndex.Kind.SIMPLE, urls.get(1), urls.get(0)) : new PyPIIndex(PyPIIndex.Kind.JSON, urls.get(0)))
+        ));
+        getFileHosts().convention(List.of());
+        getPlatformBaselines().convention(Map.of());
+    }
+
+    /**
+     * The (operating system, architecture) pairs that PyPI components get variants for. Defaults to every target the
+     * plugin knows about; builds that only ever resolve for some of them can declare just those to keep component
+     * metadata small.
+     */
+    public abstract SetProperty<PyPIComponentRule.TargetVariant> getTargets();
+
+    /**
+     * The {@code major.minor} version of the CPython interpreter packages are resolved for. Only wheels that
+     * interpreter can load are picked, preferring ones built for it specifically.
+     */
+    public abstract Property<String> getPythonVersion();
+
+    /**
+     * Whether releases whose files have all been yanked are considered when resolving version ranges. Yanked releases
+     * that are depended on by exact version are resolved regardless, as PEP 592 requires.
+     */
+    public abstract Property<Boolean> getListYankedReleases();
+
+    /**
+     * The base URL of the PyPI JSON API packages are resolved from, unless other {@linkplain #getIndexes() indexes} are
+     * declared.
+     */
+    public abstract Property<String> getIndexUrl();
+
+    /**
+     * The file PyPI metadata is cached in between builds. Defaults to a file in the Gradle user home; as everything is
+     * kept in this one file, CI can save and restore it on its own.
+     */
+    public abstract RegularFileProperty getMetadataCacheFile();
+
+    /**
+     * How long metadata that no build has used is kept in the {@linkplain #getMetadataCacheFile() metadata cache file}.
+     * Entries are marked as used at most once a day, so this is only accurate to the day.
+     */
+    public abstract Property<Duration> getMetadataCacheRetention();
+
+    /**
+     * How long the list of releases of a package is trusted before it is checked for changes. Metadata of individual
+     * releases never changes once published, so it is never checked again.
+     */
+    public abstract Property<Duration> getListingCacheTtl();
+
+    /**
+     * The lockfile written by the {@code lockPypi} task. Defaults to {@code pypi.lockfile} in the project directory.
+     */
+    public abstract RegularFileProperty getLockfile();
+
+    /**
+     * Whether configurations resolve their PyPI dependencies from the {@linkplain #getLockfile() lockfile}. Locked
+     * configurations depend on the locked files directly, so no PyPI metadata is fetched for them at all.
+     */
+    public abstract Property<Boolean> getLocked();
+
+    /**
+     * Whether to start fetching the metadata of the likely transitive closure of a configuration's PyPI dependencies,
+     * in parallel, before it is resolved. Gradle otherwise discovers the dependency graph one level at a time, waiting
+     * on the network at each one.
+     */
+    public abstract Property<Boolean> getPrefetch();
+
+    /**
+     * The most metadata requests the plugin makes to the index at once.
+     */
+    public abstract Property<Integer> getMaxConnections();
+
+    /**
+     * Whether packages are resolved from the {@linkplain #getSimpleIndexUrl() simple index} rather than the JSON API,
+     * unless other {@linkplain #getIndexes() indexes} are declared. Release metadata is read from the PEP 658 core
+     * metadata files it serves.
+     */
+    public abstract Property<Boolean> getUseSimpleIndex();
+
+    /**
+     * The base URL of the PEP 691 simple index used when {@link #getUseSimpleIndex()} is set.
+     */
+    public abstract Property<String> getSimpleIndexUrl();
+
+    /**
+     * The indexes packages are resolved from, in order. Each package is resolved from the first index that has it, and
+     * only from that one. Defaults to PyPI itself; declaring any index with {@link #jsonIndex(String)},
+     * {@link #simpleIndex(String)} or {@link #directoryIndex(File)} replaces the default.
+     */
+    public abstract ListProperty<PyPIIndex> getIndexes();
+
+    /**
+     * URL prefixes, besides {@code files.pythonhosted.org} and the hosts of the declared indexes, that package files may
+     * be downloaded from. Files under no known prefix are skipped.
+     */
+    public abstract ListProperty<String> getFileHosts();
+
+    /**
+     * The newest glibc version, for Linux targets, or macOS version, for macOS targets, that the machines of each
+     * target are known to have, as {@code major.minor}. Wheels needing anything newer are never picked for the target,
+     * and of the rest the one built against the newest baseline wins, as pip would pick on such a machine. Targets
+     * without a baseline get the newest wheel there is.
+     */
+    public abstract MapProperty<PyPIComponentRule.TargetVariant, String> getPlatformBaselines();
+
+    public void jsonIndex(String url) {
+        getIndexes().add(new PyPIIndex(PyPIIndex.Kind.JSON, url));
+    }
+
+    /**
+     * Adds a simple index. Release metadata is read from the PEP 658 metadata it serves; a release without any can
+     * only be resolved from an index {@linkplain #simpleIndex(String, String) that also has a JSON API}.
+     */
+    public void simpleIndex(String url) {
+        getIndexes().add(new PyPIIndex(PyPIIndex.Kind.SIMPLE, url));
+    }
+
+    /**
+     * Adds a simple index that also has a JSON API, which release metadata is read from when the simple index has no
+     * PEP 658 metadata for a release.
+     */
+    public void simpleIndex(String url, String jsonUrl) {
+        getIndexes().add(new PyPIIndex(PyPIIndex.Kind.SIMPLE, url, jsonUrl));
+    }
+
+    public void directoryIndex(File directory) {
+        getIndexes().add(new PyPIIndex(PyPIIndex.Kind.DIRECTORY, directory.toPath().toAbsolutePath().toUri().toString()));
+    }
+
+    public void target(String operatingSystemFamily, String machineArchitecture) {
+        var target = new PyPIComponentRule.TargetVariant(operatingSystemFamily, machineArchitecture);
+        if (PyPIComponentRule.TargetVariant.matching(operatingSystemFamily, machineArchitecture) == 0) {
+            throw new InvalidUserDataException("Unsupported PyPI target: " + operatingSystemFamily + " " + machineArchitecture);
+        }
+        getTargets().add(target);
+    }
+
+    public void platformBaseline(String operatingSystemFamily, String machineArchitecture, String version) {
+        if (!operatingSystemFamily.equals(OperatingSystemFamily.LINUX) && !operatingSystemFamily.equals(OperatingSystemFamily.MACOS)) {
+            throw new InvalidUserDataException("PyPI platform baselines are glibc or macOS versions, so only Linux and macOS targets have one, not " + operatingSystemFamily);
+        }
+        if (PyPIComponentRule.TargetVariant.matching(operatingSystemFamily, machineArchitecture) == 0) {
+            throw new InvalidUserDataException("Unsupported PyPI target: " + operatingSystemFamily + " " + machineArchitecture);
+        }
+        try {
+            WheelFilename.baseline(version);
+        } catch (IllegalArgumentException e) {
+            throw new InvalidUserDataException(e.getMessage(), e);
+        }
+        getPlatformBaselines().put(new PyPIComponentRule.TargetVariant(operatingSystemFamily, machineArchitecture), version);
+    }
+
+    /**
+     * {@return the platform baseline of each target, at its index}
+     */
+    List<Integer> platformBaselines() {
+        var baselines = new ArrayList<>(Collections.nCopies(PyPIComponentRule.TargetVariant.COUNT, WheelFilename.ANY_BASELINE));
+        getPlatformBaselines().get().forEach((target, version) -> baselines.set(target.index(), WheelFilename.baseline(version)));
+        return baselines;
+    }
+
+    int targetMask() {
+        int mask = 0;
+        for (var target : getTargets().get()) {
+            mask |= 1 << target.index();
+        }
+        return mask;
+    }
+}
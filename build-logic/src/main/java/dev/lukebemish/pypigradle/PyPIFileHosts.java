@@ -0,0 +1,90 @@
+package dev.lukebemish.pypigradle;
+
+import org.jspecify.annotations.Nullable;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import static dev.lukebemish.pypigradle.PyPIGradlePlugin.EXTRACT_EXTENSION_PREFIX;
+
+/**
+ * The URL prefixes package files may be downloaded from, and the dependency group each is served to Gradle under. Each
+ * prefix gets an ivy repository of its own, which resolves modules named after the rest of a file's URL.
+ *
+ * @param prefixes the URL prefixes, each ending in a slash
+ * @param groups the group of the files under each prefix, in the same order
+ */
+public record PyPIFileHosts(List<String> prefixes, List<String> groups) {
+    public static final String PYTHONHOSTED = "https://files.pythonhosted.org/packages/";
+
+    /**
+     * Groups are named after the reversed host, such as {@code org.files.pythonhosted}; directories, and hosts with more
+     * than one prefix, are told apart by the position of the prefix.
+     */
+    public static PyPIFileHosts of(List<String> prefixes) {
+        var groups = new ArrayList<String>(prefixes.size());
+        var seen = new HashSet<String>();
+        for (int i = 0; i < prefixes.size(); i++) {
+            var uri = URI.create(prefixes.get(i));
+            String group;
+            if (uri.getHost() == null) {
+                group = "local.files";
+            } else {
+                var labels = uri.getHost().split("\\.");
+                var sb = new StringBuilder();
+                for (int j = labels.length - 1; j >= 0; j--) {
+                    if (!sb.isEmpty()) {
+                        sb.append('.');
+                    }
+                    sb.append(labels[j]);
+                }
+                group = sb.toString();
+            }
+            if (!seen.add(group)) {
+                group = group + "." + i;
+                seen.add(group);
+            }
+            groups.add(group);
+        }
+        return new PyPIFileHosts(List.copyOf(prefixes), List.copyOf(groups));
+    }
+
+    public boolean serves(String url) {
+        return prefix(url) != -1;
+    }
+
+    /**
+     * {@return the dependency notation that resolves to the file at the given URL} The longest matching prefix wins.
+     *
+     * @throws IllegalArgumentException if the URL is not under any of the prefixes
+     */
+    public String dependency(String url, String version) {
+        var index = prefix(url);
+        if (index == -1) {
+            throw new IllegalArgumentException("No PyPI file host serves " + url);
+        }
+        var rest = url.substring(prefixes.get(index).length());
+        return EXTRACT_EXTENSION_PREFIX + groups.get(index) + ":" + rest + ":" + version;
+    }
+
+    private int prefix(String url) {
+        int best = -1;
+        for (int i = 0; i < prefixes.size(); i++) {
+            if (url.startsWith(prefixes.get(i)) && (best == -1 || prefixes.get(i).length() > prefixes.get(best).length())) {
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * {@return the URL of the file a dependency of the given group and module resolves to, or {@code null} if the group
+     * is not one of these hosts'}
+     */
+    public @Nullable String url(String group, String module) {
+        var index = groups.indexOf(group);
+        return index == -1 ? null : prefixes.get(index) + module;
+    }
+}
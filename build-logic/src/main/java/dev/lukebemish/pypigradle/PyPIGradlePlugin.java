@@ -1,54 +1,221 @@
 package dev.lukebemish.pypigradle;
 
+import org.gradle.api.InvalidUserDataException;
 import org.gradle.api.Plugin;
 import org.gradle.api.Project;
+import org.gradle.api.artifacts.Configuration;
+import org.gradle.api.artifacts.Dependency;
+import org.gradle.api.artifacts.component.ModuleComponentIdentifier;
+import org.gradle.api.artifacts.component.ModuleComponentSelector;
+import org.gradle.api.artifacts.repositories.ArtifactRepository;
+import org.gradle.api.artifacts.type.ArtifactTypeDefinition;
+import org.gradle.nativeplatform.MachineArchitecture;
+import org.gradle.nativeplatform.OperatingSystemFamily;
+import org.jspecify.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
 
 public class PyPIGradlePlugin implements Plugin<Project> {
     @Override
     public void apply(Project project) {
-        project.getRepositories().exclusiveContent(exclusive -> {
-            exclusive.forRepositories(project.getRepositories().ivy(repository -> {
-                repository.setUrl("https://pypi.org/pypi/");
-                repository.patternLayout(layout -> {
-                    layout.artifact("[module]/[revision]/json");
-                });
-                repository.metadataSources(sources -> {
-                    sources.artifact();
-                });
-                repository.setComponentVersionsLister(PyPIComponentVersionLister.class);
-            }));
-            exclusive.filter(content -> {
-                content.includeGroup("pypi");
-            });
+        var pypiExtension = project.getExtensions().create(PyPIExtension.NAME, PyPIExtension.class);
+        pypiExtension.getMetadataCacheFile().convention(project.getLayout().file(project.provider(() ->
+                new File(project.getGradle().getGradleUserHomeDir(), "caches/pypi-gradle/metadata.bin")
+        )));
+        var metadataService = project.getGradle().getSharedServices().registerIfAbsent(PyPIMetadataService.NAME, PyPIMetadataService.class, spec -> {
+            spec.getParameters().getIndexes().set(pypiExtension.getIndexes().map(indexes -> indexes.stream().map(PyPIIndex::encode).toList()));
+            spec.getParameters().getCacheFile().set(pypiExtension.getMetadataCacheFile());
+            spec.getParameters().getListingTtl().set(pypiExtension.getListingCacheTtl());
+            spec.getParameters().getCacheRetention().set(pypiExtension.getMetadataCacheRetention());
+            spec.getParameters().getOffline().set(project.getGradle().getStartParameter().isOffline());
+            spec.getParameters().getMaxConnections().set(pypiExtension.getMaxConnections());
         });
 
-        project.getRepositories().exclusiveContent(exclusive -> {
-            exclusive.forRepositories(project.getRepositories().ivy(repository -> {
-                repository.setUrl("https://files.pythonhosted.org/packages");
-                repository.patternLayout(layout -> {
-                    layout.artifact("[module].[ext]");
-                });
-                repository.metadataSources(sources -> {
-                    sources.artifact();
-                });
-            }));
-            exclusive.filter(content -> {
-                content.includeGroup("org.files.pythonhosted");
-            });
+        // Files are served by the hosts of the indexes they are listed in, unless declared otherwise
+        var fileHosts = project.getObjects().property(PyPIFileHosts.class);
+        fileHosts.set(pypiExtension.getIndexes().zip(pypiExtension.getFileHosts(), (indexes, extraHosts) -> {
+            var prefixes = new LinkedHashSet<String>();
+            prefixes.add(PyPIFileHosts.PYTHONHOSTED);
+            for (var index : indexes) {
+                if (index.kind() == PyPIIndex.Kind.DIRECTORY || !"pypi.org".equals(URI.create(index.url()).getHost())) {
+                    prefixes.add(index.fileHost());
+                }
+            }
+            for (var host : extraHosts) {
+                prefixes.add(host.endsWith("/") ? host : host + "/");
+            }
+            return PyPIFileHosts.of(List.copyOf(prefixes));
+        }));
+        fileHosts.finalizeValueOnRead();
+
+        pypiExtension.getLockfile().convention(project.getLayout().getProjectDirectory().file("pypi.lockfile"));
+        project.getTasks().register(LOCK_TASK_NAME, PyPILockTask.class, task -> {
+            task.setGroup("pypi");
+            task.setDescription("Writes the resolved PyPI packages of every configuration to the PyPI lockfile.");
+            task.doNotTrackState("The lockfile has to reflect the latest resolution");
+            task.getLockfile().set(pypiExtension.getLockfile());
+            task.getFileHosts().set(fileHosts.map(PyPIFileHosts::prefixes));
+            for (var config : project.getConfigurations()) {
+                if (config.isCanBeResolved() && config.getAllDependencies().stream().anyMatch(PyPIGradlePlugin::isPyPIDependency)) {
+                    task.getResolutions().put(config.getName(), config.getIncoming().getResolutionResult().getRootComponent());
+                    task.getTargets().put(config.getName(), targetOf(config));
+                    task.getDeclarations().put(config.getName(), project.provider(() -> declarations(config.getAllDependencies().stream())));
+                }
+            }
         });
+        // While locks are being written, everything has to be resolved for real. This is known from the tasks the build
+        // was started with, as configurations can be resolved while projects are configured, before the task graph is
+        var writingLocks = requestsLockTask(project.getGradle().getStartParameter().getTaskNames());
+        var lockfile = project.getObjects().property(PyPILockfile.class);
+        lockfile.set(pypiExtension.getLockfile().map(file -> PyPILockfile.read(file.getAsFile().toPath())));
+        lockfile.finalizeValueOnRead();
+        // The PyPI dependencies of each configuration that have been replaced by locked files, whichever order
+        // configurations are visited in
+        var lockedAway = new ConcurrentHashMap<String, List<PyPILockfile.Declaration>>();
 
         project.getConfigurations().configureEach(config -> {
+            // Rules and listers only see the service once it exists, so make sure it does before anything is resolved
+            config.getIncoming().beforeResolve(dependencies -> {
+                var service = metadataService.get();
+                if (pypiExtension.getPrefetch().get() && (!pypiExtension.getLocked().get() || writingLocks)) {
+                    var interpreter = PythonInterpreter.parse(pypiExtension.getPythonVersion().get());
+                    for (var dependency : dependencies.getDependencies()) {
+                        if (isPyPIDependency(dependency)) {
+                            var name = dependency.getName();
+                            var bracket = name.indexOf('[');
+                            service.prefetch(PyPIIndex.normalize(bracket == -1 ? name : name.substring(0, bracket).trim()), exactVersion(dependency.getVersion()), interpreter);
+                        }
+                    }
+                }
+            });
+            config.withDependencies(dependencies -> {
+                if (!pypiExtension.getLocked().get() || writingLocks) {
+                    return;
+                }
+                var removed = new ArrayList<Dependency>();
+                if (dependencies.removeIf(dependency -> isPyPIDependency(dependency) && removed.add(dependency))) {
+                    lockedAway.put(config.getName(), declarations(removed.stream()));
+                }
+                // Only resolvable configurations are locked; buckets such as implementation get their locked files
+                // through the resolvable configurations that extend them
+                var declared = config.getHierarchy().stream()
+                        .flatMap(c -> Stream.concat(lockedAway.getOrDefault(c.getName(), List.of()).stream(), declarations(c.getDependencies().stream()).stream()))
+                        .distinct()
+                        .sorted(PyPILockfile.Declaration.ORDER)
+                        .toList();
+                if (!config.isCanBeResolved() || declared.isEmpty()) {
+                    return;
+                }
+                var lockfilePath = pypiExtension.getLockfile().get().getAsFile();
+                var entries = lockfile.get().configurations().get(config.getName());
+                if (entries == null) {
+                    throw new InvalidUserDataException("Configuration " + config.getName() + " is not in the PyPI lockfile " + lockfilePath + "; run " + LOCK_TASK_NAME + " to update it");
+                }
+                var locked = lockfile.get().declarations().getOrDefault(config.getName(), List.of());
+                if (!locked.equals(declared)) {
+                    var added = new ArrayList<>(declared);
+                    added.removeAll(locked);
+                    var dropped = new ArrayList<>(locked);
+                    dropped.removeAll(declared);
+                    throw new InvalidUserDataException("The PyPI dependencies of configuration " + config.getName() + " differ from those in the PyPI lockfile " + lockfilePath
+                            + " (not locked: " + describe(added) + "; no longer declared: " + describe(dropped) + "); run " + LOCK_TASK_NAME + " to update it");
+                }
+                // Files locked for one platform are no use on another, whether the configuration or the targets changed
+                var target = targetOf(config);
+                for (var entry : entries) {
+                    var lockedTarget = entry.operatingSystemFamily() + " " + entry.machineArchitecture();
+                    if (!lockedTarget.equals(target)) {
+                        throw new InvalidUserDataException("Configuration " + config.getName() + " was locked for " + lockedTarget + " but resolves for " + target
+                                + "; run " + LOCK_TASK_NAME + " to update the PyPI lockfile " + lockfilePath);
+                    }
+                    if ((PyPIComponentRule.TargetVariant.matching(absentAsNull(entry.operatingSystemFamily()), absentAsNull(entry.machineArchitecture())) & pypiExtension.targetMask()) == 0) {
+                        throw new InvalidUserDataException("Configuration " + config.getName() + " was locked for " + lockedTarget + ", which is not one of the PyPI targets "
+                                + describeTargets(pypiExtension.getTargets().get()) + "; add it with pypi.target(...), or run " + LOCK_TASK_NAME + " to update the PyPI lockfile " + lockfilePath);
+                    }
+                }
+                for (var entry : entries) {
+                    if (entry.url() != null) {
+                        dependencies.add(project.getDependencies().create(fileHosts.get().dependency(entry.url(), entry.version())));
+                    }
+                }
+            });
+            // The files of a locked configuration are only trusted if they are the ones the lockfile was written with.
+            // Each is checked as it is resolved, whatever it is consumed as, against the digest locked for its URL.
+            config.getIncoming().afterResolve(resolved -> {
+                if (!pypiExtension.getLocked().get() || writingLocks || !config.isCanBeResolved()) {
+                    return;
+                }
+                var entries = lockfile.get().configurations().get(config.getName());
+                if (entries == null) {
+                    return;
+                }
+                // Keyed as the file hosts give back the URL of a file's module, which has no extension
+                var digests = new HashMap<String, PyPILockfile.Entry>();
+                for (var entry : entries) {
+                    if (entry.url() != null && entry.sha256() != null) {
+                        digests.put(withoutExtension(entry.url()), entry);
+                    }
+                }
+                if (digests.isEmpty()) {
+                    return;
+                }
+                // Only the locked files are fetched, not whatever else the configuration holds
+                var locked = resolved.artifactView(view -> view.componentFilter(id ->
+                        id instanceof ModuleComponentIdentifier module && digests.containsKey(fileHosts.get().url(module.getGroup(), module.getModule()))
+                ));
+                for (var artifact : locked.getArtifacts()) {
+                    var id = (ModuleComponentIdentifier) artifact.getId().getComponentIdentifier();
+                    var entry = digests.get(Objects.requireNonNull(fileHosts.get().url(id.getGroup(), id.getModule())));
+                    verifySha256(artifact.getFile(), Objects.requireNonNull(entry.url()), Objects.requireNonNull(entry.sha256()));
+                }
+            });
+            // Spellings of a project name that normalize the same are the same project, so resolve them as one module.
+            // Extras, requested as name[extra], resolve to the variants of the project that carry them.
+            var substitutions = config.getResolutionStrategy().getDependencySubstitution();
+            substitutions.all(substitution -> {
+                if (substitution.getRequested() instanceof ModuleComponentSelector selector && selector.getGroup().equals("pypi")) {
+                    var module = selector.getModule();
+                    var bracket = module.indexOf('[');
+                    if (bracket != -1 && module.endsWith("]")) {
+                        var extra = module.substring(bracket + 1, module.length() - 1);
+                        if (extra.indexOf(',') != -1) {
+                            throw new InvalidUserDataException("PyPI dependency " + module + " requests more than one extra; declare one dependency per extra");
+                        }
+                        var name = PyPIIndex.normalize(module.substring(0, bracket).trim());
+                        var capability = "pypi:" + PyPIComponentRule.extraCapability(name, PyPIIndex.normalize(extra.trim()));
+                        substitution.useTarget(substitutions.variant(substitutions.module(substitutionTarget(name, selector)), variant -> {
+                            variant.capabilities(capabilities -> capabilities.requireCapability(capability));
+                        }), "PyPI extra");
+                        return;
+                    }
+                    var normalized = PyPIIndex.normalize(module);
+                    if (!normalized.equals(module)) {
+                        substitution.useTarget(substitutions.module(substitutionTarget(normalized, selector)), "PEP 503 normalized name");
+                    }
+                }
+            });
             config.getResolutionStrategy().eachDependency(details -> {
                 if (details.getRequested().getGroup().startsWith(EXTRACT_EXTENSION_PREFIX)) {
-                    var name = details.getRequested().getName();
-                    String extension;
-                    if (name.endsWith(".tar.gz")) {
-                        extension = "tar.gz";
-                    } else {
-                        var lastIndex = name.lastIndexOf('.');
-                        extension = name.substring(lastIndex + 1);
-                        name = name.substring(0, lastIndex);
-                    }
+                    var file = details.getRequested().getName();
+                    var name = withoutExtension(file);
+                    var extension = file.substring(name.length() + 1);
                     details.useTarget(String.format(
                             "%s:%s:%s",
                             details.getRequested().getGroup().substring(EXTRACT_EXTENSION_PREFIX.length()),
@@ -62,8 +229,191 @@ public class PyPIGradlePlugin implements Plugin<Project> {
             });
         });
         
-        project.getDependencies().getComponents().all(PyPIComponentRule.class);
+        project.getDependencies().registerTransform(PyPIWheelTransform.class, spec -> {
+            spec.getFrom().attribute(ArtifactTypeDefinition.ARTIFACT_TYPE_ATTRIBUTE, PyPIAttributes.WHEEL);
+            spec.getTo().attribute(ArtifactTypeDefinition.ARTIFACT_TYPE_ATTRIBUTE, PyPIAttributes.SITE_PACKAGES);
+        });
+
+        project.getDependencies().getAttributesSchema().attribute(PyPIAttributes.PYTHON_INTERPRETER, attribute -> {
+            attribute.getCompatibilityRules().add(PyPIAttributes.PythonInterpreterCompatibilityRule.class);
+        });
+
+        project.afterEvaluate(p -> {
+            checkSharedSettings(p, pypiExtension);
+
+            // One repository per index, in the same order, so that Gradle finds each package where the service does.
+            // Their contents are never read, as listings and metadata come from the service; they only have to exist.
+            var indexRepositories = new ArrayList<ArtifactRepository>();
+            for (var index : pypiExtension.getIndexes().get()) {
+                indexRepositories.add(p.getRepositories().ivy(repository -> {
+                    repository.setUrl(index.url());
+                    repository.patternLayout(layout -> {
+                        layout.artifact(switch (index.kind()) {
+                            case JSON -> "[module]/[revision]/json";
+                            case SIMPLE -> "[module]/";
+                            // Files in a directory are not named predictably, so the directory itself stands in
+                            case DIRECTORY -> ".";
+                        });
+                    });
+                    repository.metadataSources(sources -> {
+                        sources.artifact();
+                    });
+                    repository.setComponentVersionsLister(PyPIComponentVersionLister.class, lister -> {
+                        lister.params(pypiExtension.getPythonVersion().get(), pypiExtension.getListYankedReleases().get());
+                    });
+                }));
+            }
+            p.getRepositories().exclusiveContent(exclusive -> {
+                exclusive.forRepositories(indexRepositories.toArray(ArtifactRepository[]::new));
+                exclusive.filter(content -> {
+                    content.includeGroup("pypi");
+                });
+            });
+
+            var hosts = fileHosts.get();
+            for (int i = 0; i < hosts.prefixes().size(); i++) {
+                var prefix = hosts.prefixes().get(i);
+                var group = hosts.groups().get(i);
+                p.getRepositories().exclusiveContent(exclusive -> {
+                    exclusive.forRepositories(p.getRepositories().ivy(repository -> {
+                        repository.setUrl(prefix);
+                        repository.patternLayout(layout -> {
+                            layout.artifact("[module].[ext]");
+                        });
+                        repository.metadataSources(sources -> {
+                            sources.artifact();
+                        });
+                    }));
+                    exclusive.filter(content -> {
+                        content.includeGroup(group);
+                    });
+                });
+            }
+
+            p.getDependencies().getComponents().all(PyPIComponentRule.class, rule -> {
+                rule.params(pypiExtension.targetMask(), pypiExtension.getPythonVersion().get(), hosts.prefixes(), pypiExtension.platformBaselines());
+            });
+        });
     }
     
     public static final String EXTRACT_EXTENSION_PREFIX = "_extract-extension.";
+    public static final String LOCK_TASK_NAME = "lockPypi";
+
+    /**
+     * The metadata service is shared by every project in the build, but is configured by whichever project applies the
+     * plugin first. Any other project whose settings for it differ would silently get the first project's, so fail
+     * instead.
+     */
+    private static void checkSharedSettings(Project project, PyPIExtension extension) {
+        var registration = project.getGradle().getSharedServices().getRegistrations().getByName(PyPIMetadataService.NAME);
+        var parameters = (PyPIMetadataService.Parameters) registration.getParameters();
+        var differing = new ArrayList<String>();
+        if (!parameters.getIndexes().get().equals(extension.getIndexes().get().stream().map(PyPIIndex::encode).toList())) {
+            differing.add("indexes");
+        }
+        if (!parameters.getCacheFile().get().getAsFile().equals(extension.getMetadataCacheFile().get().getAsFile())) {
+            differing.add("metadataCacheFile");
+        }
+        if (!parameters.getListingTtl().get().equals(extension.getListingCacheTtl().get())) {
+            differing.add("listingCacheTtl");
+        }
+        if (!parameters.getCacheRetention().get().equals(extension.getMetadataCacheRetention().get())) {
+            differing.add("metadataCacheRetention");
+        }
+        if (!parameters.getMaxConnections().get().equals(extension.getMaxConnections().get())) {
+            differing.add("maxConnections");
+        }
+        if (!differing.isEmpty()) {
+            throw new InvalidUserDataException("The PyPI " + String.join(", ", differing) + " of " + project + " differ from those of the project that applied the PyPI plugin first; they are shared by the whole build, so have to be set the same in every project");
+        }
+    }
+
+    /**
+     * {@return whether any of the tasks requested on the command line is the lock task} Tasks are matched by name, so
+     * the lock task of any project counts, whether or not its path is given.
+     */
+    static boolean requestsLockTask(List<String> taskNames) {
+        return taskNames.stream().anyMatch(task -> task.substring(task.lastIndexOf(':') + 1).equals(LOCK_TASK_NAME));
+    }
+
+    // Source distributions keep their whole .tar.gz extension, which the file host repositories resolve as one
+    private static String withoutExtension(String file) {
+        if (file.endsWith(".tar.gz")) {
+            return file.substring(0, file.length() - ".tar.gz".length());
+        }
+        return file.substring(0, file.lastIndexOf('.'));
+    }
+
+    // Files in Gradle's cache never change in place, so each is hashed once per daemon rather than on every resolution
+    private static final BoundedCache<String, String> SHA256 = new BoundedCache<>(4096);
+
+    private static void verifySha256(File file, String url, String expected) {
+        var actual = SHA256.get(file.getAbsolutePath() + "@" + file.length() + "@" + file.lastModified(), key -> {
+            try (var input = Files.newInputStream(file.toPath())) {
+                var digest = MessageDigest.getInstance("SHA-256");
+                input.transferTo(new DigestOutputStream(OutputStream.nullOutputStream(), digest));
+                return HexFormat.of().formatHex(digest.digest());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        if (!actual.equalsIgnoreCase(expected)) {
+            throw new InvalidUserDataException("sha256 of " + url + " is " + actual + ", but the PyPI lockfile expects " + expected);
+        }
+    }
+
+    private static List<PyPILockfile.Declaration> declarations(Stream<? extends Dependency> dependencies) {
+        return dependencies.filter(PyPIGradlePlugin::isPyPIDependency)
+                .map(dependency -> new PyPILockfile.Declaration(dependency.getName(), dependency.getVersion() == null || dependency.getVersion().isEmpty() ? null : dependency.getVersion()))
+                .distinct()
+                .sorted(PyPILockfile.Declaration.ORDER)
+                .toList();
+    }
+
+    private static String describe(List<PyPILockfile.Declaration> declarations) {
+        if (declarations.isEmpty()) {
+            return "none";
+        }
+        return String.join(", ", declarations.stream().map(declaration -> declaration.version() == null ? declaration.name() : declaration.name() + ":" + declaration.version()).toList());
+    }
+
+    // Gradle will not substitute a module without a version, so the requested one is carried over
+    private static String substitutionTarget(String name, ModuleComponentSelector requested) {
+        return requested.getVersion().isEmpty() ? "pypi:" + name : "pypi:" + name + ":" + requested.getVersion();
+    }
+
+    private static boolean isPyPIDependency(Dependency dependency) {
+        return "pypi".equals(dependency.getGroup());
+    }
+
+    private static @Nullable String exactVersion(@Nullable String version) {
+        if (version == null || version.isEmpty()) {
+            return null;
+        }
+        for (int i = 0; i < version.length(); i++) {
+            switch (version.charAt(i)) {
+                case '[', ']', '(', ')', ',', '+' -> {
+                    return null;
+                }
+                default -> {}
+            }
+        }
+        return version;
+    }
+
+    private static @Nullable String absentAsNull(String value) {
+        return value.equals(PyPILockfile.ABSENT) ? null : value;
+    }
+
+    private static String describeTargets(Set<PyPIComponentRule.TargetVariant> targets) {
+        return String.join(", ", targets.stream().map(target -> target.operatingSystemFamily() + " " + target.machineArchitecture()).sorted().toList());
+    }
+
+    private static String targetOf(Configuration configuration) {
+        var operatingSystem = configuration.getAttributes().getAttribute(OperatingSystemFamily.OPERATING_SYSTEM_ATTRIBUTE);
+        var architecture = configuration.getAttributes().getAttribute(MachineArchitecture.ARCHITECTURE_ATTRIBUTE);
+        return (operatingSystem == null ? PyPILockfile.ABSENT : operatingSystem.getName()) + " " + (architecture == null ? PyPILockfile.ABSENT : architecture.getName());
+    }
 }
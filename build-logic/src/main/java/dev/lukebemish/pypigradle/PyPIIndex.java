@@ -0,0 +1,104 @@
+package dev.lukebemish.pypigradle;
+
+import org.jspecify.annotations.Nullable;
+
+import java.io.Serializable;
+import java.net.URI;
+import java.util.Locale;
+
+/**
+ * A place packages are resolved from.
+ *
+ * @param kind how the index is read
+ * @param url the base URL of the index, ending in a slash; a {@code file:} URL for {@link Kind#DIRECTORY} indexes
+ * @param jsonUrl for {@link Kind#SIMPLE} indexes, the base URL of a JSON API serving the same packages, ending in a
+ *                slash; release metadata is read from it when the simple index has no PEP 658 metadata for a release
+ */
+public record PyPIIndex(Kind kind, String url, @Nullable String jsonUrl) implements Serializable {
+    public enum Kind {
+        /**
+         * The warehouse JSON API, as served at {@code https://pypi.org/pypi/}.
+         */
+        JSON,
+        /**
+         * A PEP 691 Simple JSON API, as served at {@code https://pypi.org/simple/}. Release metadata is read from PEP
+         * 658 core metadata where the index has it, and from the index's JSON API where it does not; a release with
+         * neither cannot be resolved.
+         */
+        SIMPLE,
+        /**
+         * A local directory of wheels and source distributions, in the manner of pip's {@code --find-links}.
+         */
+        DIRECTORY
+    }
+
+    public PyPIIndex {
+        if (!url.endsWith("/")) {
+            url = url + "/";
+        }
+        if (jsonUrl != null && !jsonUrl.endsWith("/")) {
+            jsonUrl = jsonUrl + "/";
+        }
+    }
+
+    public PyPIIndex(Kind kind, String url) {
+        this(kind, url, null);
+    }
+
+    /**
+     * {@return the URL files served by this index are most likely to be found under} For remote indexes this is the
+     * root of their host, as mirrors usually serve files from the same host as their index.
+     */
+    String fileHost() {
+        if (kind == Kind.DIRECTORY) {
+            return url;
+        }
+        return URI.create(url).resolve("/").toString();
+    }
+
+    String encode() {
+        return kind.name() + " " + url + (jsonUrl == null ? "" : " " + jsonUrl);
+    }
+
+    static PyPIIndex decode(String encoded) {
+        var parts = encoded.split(" ");
+        return new PyPIIndex(Kind.valueOf(parts[0]), parts[1], parts.length > 2 ? parts[2] : null);
+    }
+
+    /**
+     * {@return the PEP 503 normalized form of a project name} Names that are already normalized, as almost all are, are
+     * returned as they are.
+     */
+    static String normalize(String name) {
+        if (isNormalized(name)) {
+            return name;
+        }
+        // Exactly re.sub(r"[-_.]+", "-", name).lower(), so separators at either end are kept as a single -
+        var sb = new StringBuilder(name.length());
+        for (int i = 0; i < name.length(); i++) {
+            var c = name.charAt(i);
+            if (c == '-' || c == '_' || c == '.') {
+                if (sb.isEmpty() || sb.charAt(sb.length() - 1) != '-') {
+                    sb.append('-');
+                }
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString().toLowerCase(Locale.ROOT);
+    }
+
+    private static boolean isNormalized(String name) {
+        for (int i = 0; i < name.length(); i++) {
+            var c = name.charAt(i);
+            if (c == '-') {
+                if (i > 0 && name.charAt(i - 1) == '-') {
+                    return false;
+                }
+            } else if (!(c >= 'a' && c <= 'z') && !(c >= '0' && c <= '9')) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
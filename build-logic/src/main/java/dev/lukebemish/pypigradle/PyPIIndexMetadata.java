@@ -1,26 +1,193 @@
 package dev.lukebemish.pypigradle;
 
-import com.squareup.moshi.Moshi;
+import com.squareup.moshi.JsonReader;
+import okio.Okio;
 import org.jspecify.annotations.Nullable;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UncheckedIOException;
-import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
-public record PyPIIndexMetadata(Map<String, List<WhoCares>> releases) {
-    public record WhoCares() {}
+/**
+ * The releases of a project, and what the version lister needs to know about the files of each. A JSON API listing
+ * names every release a project has ever made, while a build only looks at the files of a few of them, so only a
+ * summary of each release's files is read out of it, while streaming; the files themselves are read from the
+ * per-version document of the releases that are resolved. Simple and directory indexes have no per-version documents,
+ * so their listings keep the files too.
+ */
+public final class PyPIIndexMetadata {
+    private static final JsonReader.Options ROOT = JsonReader.Options.of("releases");
+    private static final JsonReader.Options URL = JsonReader.Options.of("filename", "packagetype", "requires_python", "yanked");
 
+    private final Map<String, Release> releases;
+
+    private PyPIIndexMetadata(Map<String, Release> releases) {
+        this.releases = releases;
+    }
+
+    /**
+     * {@return a listing of files that have already been parsed, by release}
+     */
+    public static PyPIIndexMetadata of(Map<String, List<PyPIMetadata.UrlInfo>> files) {
+        var releases = new LinkedHashMap<String, Release>(files.size());
+        files.forEach((version, urls) -> releases.put(version, Release.of(urls)));
+        return new PyPIIndexMetadata(releases);
+    }
+
+    static PyPIIndexMetadata ofReleases(Map<String, Release> releases) {
+        return new PyPIIndexMetadata(releases);
+    }
+
+    /**
+     * Reads the {@code releases} object of a project-level PyPI JSON document, summarizing the files of each release as
+     * it goes. Everything outside {@code releases}, and every field of a file but the few the summary needs, is skipped
+     * at the token level.
+     */
     public static @Nullable PyPIIndexMetadata fromJson(InputStream input) {
-        var moshi = new Moshi.Builder().build();
-        var adapter = moshi.adapter(PyPIIndexMetadata.class);
-        try {
-            var json = new String(input.readAllBytes(), StandardCharsets.UTF_8);
-            return adapter.fromJson(json);
+        try (var reader = JsonReader.of(Okio.buffer(Okio.source(input)))) {
+            return reader.peek() == JsonReader.Token.NULL ? reader.nextNull() : read(reader);
         } catch (IOException e) {
             throw new UncheckedIOException(e);
         }
     }
+
+    /**
+     * {@return the files of a release, or {@code null} if there is no such release or the listing does not keep its
+     * files}
+     */
+    public @Nullable List<PyPIMetadata.UrlInfo> files(String version) {
+        var release = releases.get(version);
+        return release == null ? null : release.files();
+    }
+
+    public boolean isEmpty() {
+        return releases.isEmpty();
+    }
+
+    Map<String, Release> releases() {
+        return Collections.unmodifiableMap(releases);
+    }
+
+    /**
+     * A release, summarized by the {@code Requires-Python} specifiers of its files. Only files we know how to use are
+     * counted, so a release with none of them, or with no files at all, is never listed.
+     *
+     * @param requiresPython the distinct specifiers of the files that have not been yanked, with the empty string
+     *                       standing for a file without one
+     * @param yankedRequiresPython the same, for the files that have been yanked
+     * @param files the files themselves, if the listing keeps them
+     */
+    record Release(List<String> requiresPython, List<String> yankedRequiresPython, @Nullable List<PyPIMetadata.UrlInfo> files) {
+        static Release of(List<PyPIMetadata.UrlInfo> files) {
+            var summary = new Summary();
+            for (var file : files) {
+                summary.add(file.isUnderstood(), file.yanked(), file.requiresPython());
+            }
+            return summary.release(files);
+        }
+
+        /**
+         * {@return whether any usable file of the release supports the interpreter}
+         *
+         * @param yanked whether yanked files count
+         */
+        boolean isListed(PythonInterpreter interpreter, boolean yanked) {
+            return supports(requiresPython, interpreter) || (yanked && supports(yankedRequiresPython, interpreter));
+        }
+
+        /**
+         * {@return whether every usable file of the release has been yanked}
+         */
+        boolean isYanked() {
+            return requiresPython.isEmpty();
+        }
+
+        private static boolean supports(List<String> requiresPython, PythonInterpreter interpreter) {
+            for (var specifier : requiresPython) {
+                if (PyPIMetadata.supportsPython(specifier, interpreter)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static final class Summary {
+        private final Set<String> requiresPython = new LinkedHashSet<>(2);
+        private final Set<String> yankedRequiresPython = new LinkedHashSet<>(2);
+
+        void add(boolean understood, boolean yanked, @Nullable String requiresPython) {
+            if (understood) {
+                (yanked ? yankedRequiresPython : this.requiresPython).add(requiresPython == null ? "" : requiresPython.trim());
+            }
+        }
+
+        Release release(@Nullable List<PyPIMetadata.UrlInfo> files) {
+            return new Release(List.copyOf(requiresPython), List.copyOf(yankedRequiresPython), files);
+        }
+    }
+
+    private static PyPIIndexMetadata read(JsonReader reader) throws IOException {
+        var releases = new LinkedHashMap<String, Release>();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (reader.selectName(ROOT) != 0) {
+                reader.skipName();
+                reader.skipValue();
+            } else if (reader.peek() != JsonReader.Token.BEGIN_OBJECT) {
+                reader.skipValue();
+            } else {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    var version = reader.nextName();
+                    releases.put(version, readRelease(reader));
+                }
+                reader.endObject();
+            }
+        }
+        reader.endObject();
+        return new PyPIIndexMetadata(releases);
+    }
+
+    private static Release readRelease(JsonReader reader) throws IOException {
+        var summary = new Summary();
+        if (reader.peek() == JsonReader.Token.NULL) {
+            reader.nextNull();
+            return summary.release(null);
+        }
+        reader.beginArray();
+        while (reader.hasNext()) {
+            String filename = null;
+            String packageType = null;
+            String requiresPython = null;
+            boolean yanked = false;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.selectName(URL)) {
+                    case 0 -> filename = reader.nextString();
+                    case 1 -> packageType = reader.nextString();
+                    case 2 -> requiresPython = reader.peek() == JsonReader.Token.NULL ? reader.nextNull() : reader.nextString();
+                    case 3 -> yanked = reader.nextBoolean();
+                    default -> {
+                        reader.skipName();
+                        reader.skipValue();
+                    }
+                }
+            }
+            reader.endObject();
+            if (filename == null || packageType == null) {
+                throw new IOException("Incomplete file entry at " + reader.getPath());
+            }
+            summary.add(PyPIMetadata.UrlInfo.targets(packageType, filename) != 0, yanked, requiresPython);
+        }
+        reader.endArray();
+        return summary.release(null);
+    }
+
 }
@@ -0,0 +1,116 @@
+package dev.lukebemish.pypigradle;
+
+import org.gradle.api.DefaultTask;
+import org.gradle.api.artifacts.component.ModuleComponentIdentifier;
+import org.gradle.api.artifacts.component.ModuleComponentSelector;
+import org.gradle.api.artifacts.result.ResolvedComponentResult;
+import org.gradle.api.artifacts.result.ResolvedDependencyResult;
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.provider.ListProperty;
+import org.gradle.api.provider.MapProperty;
+import org.gradle.api.provider.Property;
+import org.gradle.api.services.ServiceReference;
+import org.gradle.api.tasks.Internal;
+import org.gradle.api.tasks.OutputFile;
+import org.gradle.api.tasks.TaskAction;
+import org.jspecify.annotations.Nullable;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import static dev.lukebemish.pypigradle.PyPIGradlePlugin.EXTRACT_EXTENSION_PREFIX;
+
+/**
+ * Writes a {@link PyPILockfile} from the resolution results of every configuration with PyPI dependencies.
+ */
+public abstract class PyPILockTask extends DefaultTask {
+    /**
+     * The resolution result of each configuration to lock, by configuration name.
+     */
+    @Internal
+    public abstract MapProperty<String, ResolvedComponentResult> getResolutions();
+
+    /**
+     * The {@code <operating system> <architecture>} each configuration resolves for, by configuration name.
+     */
+    @Internal
+    public abstract MapProperty<String, String> getTargets();
+
+    /**
+     * The PyPI dependencies each configuration to lock declares, by configuration name.
+     */
+    @Internal
+    public abstract MapProperty<String, List<PyPILockfile.Declaration>> getDeclarations();
+
+    @OutputFile
+    public abstract RegularFileProperty getLockfile();
+
+    /**
+     * The URL prefixes of the hosts package files are downloaded from, to recover each file's URL from its dependency.
+     */
+    @Internal
+    public abstract ListProperty<String> getFileHosts();
+
+    @ServiceReference(PyPIMetadataService.NAME)
+    protected abstract Property<PyPIMetadataService> getMetadataService();
+
+    @TaskAction
+    public void lock() throws IOException {
+        var configurations = new LinkedHashMap<String, List<PyPILockfile.Entry>>();
+        var targets = getTargets().get();
+        var fileHosts = PyPIFileHosts.of(getFileHosts().get());
+        getResolutions().get().forEach((configuration, root) -> {
+            var target = targets.getOrDefault(configuration, PyPILockfile.ABSENT + " " + PyPILockfile.ABSENT).split(" ");
+            var entries = new ArrayList<PyPILockfile.Entry>();
+            var seen = new HashSet<ResolvedComponentResult>();
+            var queue = new ArrayDeque<ResolvedComponentResult>();
+            queue.add(root);
+            while (!queue.isEmpty()) {
+                var component = queue.poll();
+                if (!seen.add(component)) {
+                    continue;
+                }
+                String url = null;
+                for (var dependency : component.getDependencies()) {
+                    if (dependency instanceof ResolvedDependencyResult resolved) {
+                        queue.add(resolved.getSelected());
+                        if (resolved.getRequested() instanceof ModuleComponentSelector selector
+                                && selector.getGroup().startsWith(EXTRACT_EXTENSION_PREFIX)) {
+                            var fileUrl = fileHosts.url(selector.getGroup().substring(EXTRACT_EXTENSION_PREFIX.length()), selector.getModule());
+                            if (fileUrl != null) {
+                                url = fileUrl;
+                            }
+                        }
+                    }
+                }
+                if (component.getId() instanceof ModuleComponentIdentifier id && id.getGroup().equals("pypi")) {
+                    entries.add(new PyPILockfile.Entry(target[0], target[1], id.getModule(), id.getVersion(), url, sha256(id, url)));
+                }
+            }
+            entries.sort(Comparator.comparing(PyPILockfile.Entry::name));
+            configurations.put(configuration, entries);
+        });
+        new PyPILockfile(configurations, getDeclarations().get()).write(getLockfile().get().getAsFile().toPath());
+    }
+
+    private @Nullable String sha256(ModuleComponentIdentifier id, @Nullable String url) {
+        if (url == null) {
+            return null;
+        }
+        var metadata = getMetadataService().get().release(id.getModule(), id.getVersion());
+        if (metadata == null) {
+            return null;
+        }
+        for (var file : metadata.urls()) {
+            if (file.url().equals(url)) {
+                return file.digests().get("sha256");
+            }
+        }
+        return null;
+    }
+}
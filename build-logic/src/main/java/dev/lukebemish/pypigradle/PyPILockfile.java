@@ -0,0 +1,189 @@
+package dev.lukebemish.pypigradle;
+
+import org.jspecify.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The resolved PyPI packages of each locked configuration, and the file chosen for each of them. Written by
+ * {@link PyPILockTask}; in locked mode, configurations depend on these files directly instead of resolving PyPI
+ * metadata.
+ * <p>
+ * The file has one line per package, holding the configuration, its operating system and architecture, the package
+ * name and version, and the URL and sha256 digest of the file. Absent values are written as {@code -}. Values holding
+ * whitespace or quotes, such as version ranges, are quoted as in CSV: in {@code "}, with any {@code "} doubled. The
+ * PyPI dependencies each configuration declared when it was locked are listed too, as
+ * {@code <configuration> declares <name> <version>}, so that a lockfile that no longer matches the build is noticed.
+ * In locked mode, every locked file is checked against its digest as it is resolved.
+ *
+ * @param configurations the locked packages of each configuration
+ * @param declarations the PyPI dependencies each configuration declared, sorted
+ */
+public record PyPILockfile(Map<String, List<Entry>> configurations, Map<String, List<Declaration>> declarations) {
+    private static final String HEADER = "# PyPI lockfile, written by the lockPypi task. Do not edit by hand.";
+    static final String ABSENT = "-";
+    private static final String DECLARES = "declares";
+
+    public record Entry(
+            String operatingSystemFamily,
+            String machineArchitecture,
+            String name,
+            String version,
+            @Nullable String url,
+            @Nullable String sha256
+    ) {}
+
+    /**
+     * A PyPI dependency as declared, before any of it is resolved.
+     *
+     * @param name the declared name, with any extra
+     * @param version the declared version, if any
+     */
+    public record Declaration(String name, @Nullable String version) {
+        static final Comparator<Declaration> ORDER = Comparator.comparing(Declaration::name)
+                .thenComparing(Declaration::version, Comparator.nullsFirst(Comparator.naturalOrder()));
+    }
+
+    /**
+     * Reads the lockfile at the given path; a missing file gives a lockfile with no configurations.
+     */
+    public static PyPILockfile read(Path file) {
+        var configurations = new LinkedHashMap<String, List<Entry>>();
+        var declarations = new LinkedHashMap<String, List<Declaration>>();
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(file);
+        } catch (NoSuchFileException e) {
+            return new PyPILockfile(configurations, declarations);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        for (var line : lines) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            var parts = fields(line);
+            if (parts == null) {
+                throw new IllegalArgumentException("Unterminated quote in PyPI lockfile " + file + ": " + line);
+            }
+            if (parts.size() == 4 && parts.get(1).equals(DECLARES)) {
+                declarations.computeIfAbsent(parts.get(0), k -> new ArrayList<>()).add(new Declaration(parts.get(2), parts.get(3).equals(ABSENT) ? null : parts.get(3)));
+                continue;
+            }
+            if (parts.size() != 7) {
+                throw new IllegalArgumentException("Invalid line in PyPI lockfile " + file + ": " + line);
+            }
+            configurations.computeIfAbsent(parts.get(0), k -> new ArrayList<>()).add(new Entry(
+                    parts.get(1),
+                    parts.get(2),
+                    parts.get(3),
+                    parts.get(4),
+                    parts.get(5).equals(ABSENT) ? null : parts.get(5),
+                    parts.get(6).equals(ABSENT) ? null : parts.get(6)
+            ));
+        }
+        declarations.values().forEach(list -> list.sort(Declaration.ORDER));
+        return new PyPILockfile(configurations, declarations);
+    }
+
+    public void write(Path file) throws IOException {
+        var lines = new ArrayList<String>();
+        lines.add(HEADER);
+        var names = new LinkedHashSet<String>(declarations.keySet());
+        names.addAll(configurations.keySet());
+        for (var configuration : names) {
+            for (var declaration : declarations.getOrDefault(configuration, List.of())) {
+                lines.add(line(
+                        configuration,
+                        DECLARES,
+                        declaration.name(),
+                        declaration.version() == null ? ABSENT : declaration.version()
+                ));
+            }
+            for (var entry : configurations.getOrDefault(configuration, List.of())) {
+                lines.add(line(
+                        configuration,
+                        entry.operatingSystemFamily(),
+                        entry.machineArchitecture(),
+                        entry.name(),
+                        entry.version(),
+                        entry.url() == null ? ABSENT : entry.url(),
+                        entry.sha256() == null ? ABSENT : entry.sha256()
+                ));
+            }
+        }
+        Files.write(file, lines);
+    }
+
+    private static String line(String... fields) {
+        var sb = new StringBuilder();
+        for (var field : fields) {
+            if (!sb.isEmpty()) {
+                sb.append(' ');
+            }
+            boolean quote = field.isEmpty() || (sb.isEmpty() && field.startsWith("#"));
+            for (int i = 0; i < field.length() && !quote; i++) {
+                quote = field.charAt(i) == '"' || Character.isWhitespace(field.charAt(i));
+            }
+            if (quote) {
+                sb.append('"').append(field.replace("\"", "\"\"")).append('"');
+            } else {
+                sb.append(field);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * {@return the whitespace-separated fields of a line, or {@code null} if a quote is left open}
+     */
+    private static @Nullable List<String> fields(String line) {
+        var fields = new ArrayList<String>(7);
+        var current = new StringBuilder();
+        boolean quoted = false;
+        boolean inField = false;
+        for (int i = 0; i < line.length(); i++) {
+            var c = line.charAt(i);
+            if (quoted) {
+                if (c != '"') {
+                    current.append(c);
+                } else if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    current.append('"');
+                    i++;
+                } else {
+                    quoted = false;
+                }
+            } else if (c == '"') {
+                quoted = true;
+                inField = true;
+            } else if (Character.isWhitespace(c)) {
+                if (inField) {
+                    fields.add(current.toString());
+                    current.setLength(0);
+                    inField = false;
+                }
+            } else {
+                current.append(c);
+                inField = true;
+            }
+        }
+        if (quoted) {
+            return null;
+        }
+        if (inField) {
+            fields.add(current.toString());
+        }
+        return fields;
+    }
+}
@@ -0,0 +1,365 @@
+package dev.lukebemish.pypigradle;
+
+import org.gradle.nativeplatform.MachineArchitecture;
+import org.gradle.nativeplatform.OperatingSystemFamily;
+import org.jspecify.annotations.Nullable;
+
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * A compiled PEP 508 environment marker. Markers are parsed once into a small expression tree, which is then evaluated
+ * against every {@link PyPIComponentRule.TargetVariant} at once: each comparison yields the bitmask of targets it holds
+ * for, and {@code and} and {@code or} combine those masks. The same few markers appear on requirements of thousands of
+ * releases, so both the trees and the resulting masks are cached by marker text.
+ */
+sealed interface PyPIMarker {
+    BoundedCache<String, PyPIMarker> COMPILED = new BoundedCache<>(4096);
+    BoundedCache<String, Integer> TARGETS = new BoundedCache<>(4096);
+
+    /**
+     * @throws IllegalArgumentException if the marker is not valid PEP 508
+     */
+    static PyPIMarker compile(String marker) {
+        return COMPILED.get(marker, key -> new Parser(marker).parse());
+    }
+
+    /**
+     * {@return the bitmask of targets the marker holds for when running on the given interpreter}
+     *
+     * @param extra the normalized extra being requested, if any
+     * @throws IllegalArgumentException if the marker is not valid PEP 508
+     */
+    static int targets(String marker, PythonInterpreter interpreter, @Nullable String extra) {
+        return TARGETS.get(interpreter.tag() + ";" + (extra == null ? "" : extra) + ";" + marker, key -> compile(marker).targets(interpreter, extra));
+    }
+
+    int targets(PythonInterpreter interpreter, @Nullable String extra);
+
+    /**
+     * {@return the normalized names of the extras the marker compares {@code extra} against}
+     */
+    default List<String> extras() {
+        var extras = new LinkedHashSet<String>();
+        collectExtras(extras);
+        return List.copyOf(extras);
+    }
+
+    void collectExtras(Set<String> extras);
+
+    record And(PyPIMarker left, PyPIMarker right) implements PyPIMarker {
+        @Override
+        public int targets(PythonInterpreter interpreter, @Nullable String extra) {
+            int left = this.left.targets(interpreter, extra);
+            return left == 0 ? 0 : left & right.targets(interpreter, extra);
+        }
+
+        @Override
+        public void collectExtras(Set<String> extras) {
+            left.collectExtras(extras);
+            right.collectExtras(extras);
+        }
+    }
+
+    record Or(PyPIMarker left, PyPIMarker right) implements PyPIMarker {
+        @Override
+        public int targets(PythonInterpreter interpreter, @Nullable String extra) {
+            int left = this.left.targets(interpreter, extra);
+            return left == PyPIComponentRule.TargetVariant.ALL ? left : left | right.targets(interpreter, extra);
+        }
+
+        @Override
+        public void collectExtras(Set<String> extras) {
+            left.collectExtras(extras);
+            right.collectExtras(extras);
+        }
+    }
+
+    /**
+     * A single comparison, with its operands in the order they were written. Each operand is either a quoted string or
+     * the name of a marker variable.
+     */
+    record Compare(String left, boolean leftVariable, String operator, String right, boolean rightVariable) implements PyPIMarker {
+        private static final String[] OS_NAMES = {"posix", "posix", "nt"};
+        private static final String[] SYS_PLATFORMS = {"linux", "darwin", "win32"};
+        private static final String[] PLATFORM_SYSTEMS = {"Linux", "Darwin", "Windows"};
+        // By operating system, then by architecture, in the order of the target indices
+        private static final String[][] PLATFORM_MACHINES = {
+                {"i686", "aarch64", "x86_64"},
+                {"i386", "arm64", "x86_64"},
+                {"x86", "ARM64", "AMD64"}
+        };
+
+        @Override
+        public int targets(PythonInterpreter interpreter, @Nullable String extra) {
+            if (isPatchLevel(left, leftVariable, right, rightVariable, interpreter) || isPatchLevel(right, rightVariable, left, leftVariable, interpreter)) {
+                // Only the interpreter's major.minor is configured, so whether its patch release matches is unknown
+                return PyPIComponentRule.TargetVariant.ALL;
+            }
+            int mask = 0;
+            for (int index = 0; index < PyPIComponentRule.TargetVariant.COUNT; index++) {
+                var l = leftVariable ? value(left, index, interpreter, extra) : left;
+                var r = rightVariable ? value(right, index, interpreter, extra) : right;
+                // Extra names compare normalized, per PEP 685
+                if (isExtra(left, leftVariable) && r != null) {
+                    r = PyPIIndex.normalize(r);
+                } else if (isExtra(right, rightVariable) && l != null) {
+                    l = PyPIIndex.normalize(l);
+                }
+                // Variables that cannot be known ahead of time, such as platform_release, hold everywhere
+                if (l == null || r == null || evaluate(l, r)) {
+                    mask |= 1 << index;
+                }
+            }
+            return mask;
+        }
+
+        private boolean evaluate(String l, String r) {
+            if (isVersion(left, leftVariable) || isVersion(right, rightVariable)) {
+                var result = compareVersions(l, r);
+                if (result != null) {
+                    return result;
+                }
+            }
+            return switch (operator) {
+                case "==", "===" -> l.equals(r);
+                case "!=" -> !l.equals(r);
+                case "in" -> r.contains(l);
+                case "not in" -> !r.contains(l);
+                case "<" -> l.compareTo(r) < 0;
+                case "<=" -> l.compareTo(r) <= 0;
+                case ">" -> l.compareTo(r) > 0;
+                case ">=" -> l.compareTo(r) >= 0;
+                // ~= has no meaning for strings that are not versions
+                default -> false;
+            };
+        }
+
+        private @Nullable Boolean compareVersions(String l, String r) {
+            try {
+                if (leftVariable && !rightVariable) {
+                    return switch (operator) {
+                        case "in", "not in", "===" -> null;
+                        default -> new VersionConstraint(operator + r).constraints().contains(PythonVersion.of(l));
+                    };
+                }
+                if (rightVariable && !leftVariable) {
+                    // Written the other way round, as in "3.8" < python_version
+                    var flipped = switch (operator) {
+                        case "<" -> ">";
+                        case "<=" -> ">=";
+                        case ">" -> "<";
+                        case ">=" -> "<=";
+                        case "==", "!=" -> operator;
+                        default -> null;
+                    };
+                    return flipped == null ? null : new VersionConstraint(flipped + l).constraints().contains(PythonVersion.of(r));
+                }
+            } catch (IllegalArgumentException e) {
+                // Not versions after all; compare them as strings
+            }
+            return null;
+        }
+
+        @Override
+        public void collectExtras(Set<String> extras) {
+            if (isExtra(left, leftVariable) && !rightVariable) {
+                extras.add(PyPIIndex.normalize(right));
+            } else if (isExtra(right, rightVariable) && !leftVariable) {
+                extras.add(PyPIIndex.normalize(left));
+            }
+        }
+
+        private static boolean isExtra(String operand, boolean variable) {
+            return variable && operand.equals("extra");
+        }
+
+        /**
+         * {@return whether the full version variable is compared against a release of the interpreter's own
+         * major.minor series that names a patch or a pre-release, such as {@code 3.12.1}} Versions of other series
+         * compare the same against every patch release of the interpreter.
+         */
+        private static boolean isPatchLevel(String variable, boolean isVariable, String version, boolean versionVariable, PythonInterpreter interpreter) {
+            if (!isVariable || versionVariable || !(variable.equals("python_full_version") || variable.equals("implementation_version"))) {
+                return false;
+            }
+            var release = version.endsWith(".*") ? version.substring(0, version.length() - 2) : version;
+            try {
+                var parsed = PythonVersion.of(release.strip());
+                if (parsed.releaseLength() <= 2 && !parsed.hasPreRelease() && !parsed.hasPost() && !parsed.hasDev()) {
+                    return false;
+                }
+                return parsed.compareTo(PythonVersion.of(interpreter + ".dev0")) >= 0
+                        && parsed.compareTo(PythonVersion.of(interpreter.major() + "." + (interpreter.minor() + 1) + ".dev0")) < 0;
+            } catch (IllegalArgumentException e) {
+                // Compared as a string, which looks at the whole of it
+                return release.contains(interpreter + ".");
+            }
+        }
+
+        private static boolean isVersion(String operand, boolean variable) {
+            return variable && switch (operand) {
+                case "python_version", "python_full_version", "implementation_version" -> true;
+                default -> false;
+            };
+        }
+
+        private static @Nullable String value(String variable, int index, PythonInterpreter interpreter, @Nullable String extra) {
+            var target = PyPIComponentRule.TargetVariant.ALL_VARIANTS.get(index);
+            int os = switch (target.operatingSystemFamily()) {
+                case OperatingSystemFamily.LINUX -> 0;
+                case OperatingSystemFamily.MACOS -> 1;
+                default -> 2;
+            };
+            int arch = switch (target.machineArchitecture()) {
+                case MachineArchitecture.X86 -> 0;
+                case MachineArchitecture.ARM64 -> 1;
+                default -> 2;
+            };
+            return switch (variable) {
+                case "os_name" -> OS_NAMES[os];
+                case "sys_platform" -> SYS_PLATFORMS[os];
+                case "platform_system" -> PLATFORM_SYSTEMS[os];
+                case "platform_machine" -> PLATFORM_MACHINES[os][arch];
+                // The patch version is not configured, so the full version compares as major.minor; comparisons that
+                // depend on the patch never get here
+                case "python_version", "python_full_version", "implementation_version" -> interpreter.toString();
+                case "implementation_name" -> "cpython";
+                case "platform_python_implementation" -> "CPython";
+                case "extra" -> extra == null ? "" : extra;
+                default -> null;
+            };
+        }
+    }
+
+    /**
+     * A recursive descent parser for the {@code marker} rule of the PEP 508 grammar.
+     */
+    final class Parser {
+        private final String input;
+        private int position;
+
+        Parser(String input) {
+            this.input = input;
+        }
+
+        PyPIMarker parse() {
+            var marker = or();
+            skipWhitespace();
+            if (position != input.length()) {
+                throw error("Unexpected input");
+            }
+            return marker;
+        }
+
+        private PyPIMarker or() {
+            var marker = and();
+            while (keyword("or")) {
+                marker = new Or(marker, and());
+            }
+            return marker;
+        }
+
+        private PyPIMarker and() {
+            var marker = expression();
+            while (keyword("and")) {
+                marker = new And(marker, expression());
+            }
+            return marker;
+        }
+
+        private PyPIMarker expression() {
+            skipWhitespace();
+            if (position < input.length() && input.charAt(position) == '(') {
+                position++;
+                var marker = or();
+                skipWhitespace();
+                if (position == input.length() || input.charAt(position) != ')') {
+                    throw error("Expected )");
+                }
+                position++;
+                return marker;
+            }
+            skipWhitespace();
+            boolean leftVariable = position < input.length() && !isQuote(input.charAt(position));
+            var left = operand();
+            var operator = operator();
+            skipWhitespace();
+            boolean rightVariable = position < input.length() && !isQuote(input.charAt(position));
+            var right = operand();
+            return new Compare(left, leftVariable, operator, right, rightVariable);
+        }
+
+        private String operand() {
+            skipWhitespace();
+            if (position == input.length()) {
+                throw error("Expected a value");
+            }
+            var c = input.charAt(position);
+            if (isQuote(c)) {
+                var end = input.indexOf(c, position + 1);
+                if (end == -1) {
+                    throw error("Unclosed string");
+                }
+                var value = input.substring(position + 1, end);
+                position = end + 1;
+                return value;
+            }
+            int start = position;
+            while (position < input.length() && (Character.isLetterOrDigit(input.charAt(position)) || input.charAt(position) == '_' || input.charAt(position) == '.')) {
+                position++;
+            }
+            if (start == position) {
+                throw error("Expected a value");
+            }
+            // os.name and the like are legacy spellings of the underscored variables
+            return input.substring(start, position).replace('.', '_').toLowerCase(Locale.ROOT);
+        }
+
+        private String operator() {
+            skipWhitespace();
+            for (var operator : new String[] {"===", "==", "!=", "<=", ">=", "~=", "<", ">"}) {
+                if (input.startsWith(operator, position)) {
+                    position += operator.length();
+                    return operator;
+                }
+            }
+            if (keyword("in")) {
+                return "in";
+            }
+            if (keyword("not")) {
+                if (!keyword("in")) {
+                    throw error("Expected in");
+                }
+                return "not in";
+            }
+            throw error("Expected a comparison operator");
+        }
+
+        private boolean keyword(String keyword) {
+            skipWhitespace();
+            int end = position + keyword.length();
+            if (input.startsWith(keyword, position) && (end == input.length() || !Character.isLetterOrDigit(input.charAt(end)) && input.charAt(end) != '_')) {
+                position = end;
+                return true;
+            }
+            return false;
+        }
+
+        private void skipWhitespace() {
+            while (position < input.length() && Character.isWhitespace(input.charAt(position))) {
+                position++;
+            }
+        }
+
+        private static boolean isQuote(char c) {
+            return c == '"' || c == '\'';
+        }
+
+        private IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(message + " at position " + position + " of marker: " + input);
+        }
+    }
+}
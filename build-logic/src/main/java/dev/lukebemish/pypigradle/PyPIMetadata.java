@@ -1,207 +1,409 @@
 package dev.lukebemish.pypigradle;
 
-import com.squareup.moshi.Json;
-import com.squareup.moshi.Moshi;
-import org.gradle.api.artifacts.ModuleVersionIdentifier;
-import org.gradle.nativeplatform.MachineArchitecture;
-import org.gradle.nativeplatform.OperatingSystemFamily;
+import com.squareup.moshi.JsonReader;
+import okio.Okio;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
 import org.jspecify.annotations.Nullable;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UncheckedIOException;
-import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Locale;
-import java.util.Objects;
+import java.util.Map;
 import java.util.stream.Stream;
 
 public record PyPIMetadata(
         Info info,
         List<UrlInfo> urls
 ) {
-    public List<UrlInfo> parsedUrlInfo(ModuleVersionIdentifier id) {
-        return urls.stream().filter(p -> p.isUnderstood(id)).toList();
+    private static final Logger LOGGER = Logging.getLogger(PyPIMetadata.class);
+
+    public List<UrlInfo> parsedUrlInfo() {
+        return urls.stream().filter(UrlInfo::isUnderstood).toList();
     }
     
+    /**
+     * @param providesExtra the extras the release declares, normalized per PEP 685; extras can also be named only by
+     *                      the markers of its requirements
+     */
     public record Info(
-            @Json(name = "requires_dist") @Nullable List<String> requiresDist
+            @Nullable List<String> requiresDist,
+            List<String> providesExtra
     ) {
-        public List<DistRequirement> parsedRequirements() {
-            return (requiresDist == null ? Stream.<String>of() : requiresDist.stream()).map(PyPIMetadata::parse).filter(Objects::nonNull).filter(DistRequirement::isUnderstood).toList();
+        /**
+         * {@return the requirements that apply to at least one target when running on the given interpreter}
+         */
+        public List<DistRequirement> parsedRequirements(PythonInterpreter interpreter) {
+            return (requiresDist == null ? Stream.<String>of() : requiresDist.stream()).map(requirement -> parse(requirement, interpreter)).filter(DistRequirement::isUnderstood).toList();
+        }
+
+        /**
+         * {@return the requirements whose environment markers depend on which extras are requested} Only their markers
+         * are parsed; which targets they apply to is left until an extra is actually requested.
+         */
+        public List<DistRequirement> extraRequirements(PythonInterpreter interpreter) {
+            return (requiresDist == null ? Stream.<String>of() : requiresDist.stream()).map(requirement -> parse(requirement, interpreter)).filter(requirement -> !requirement.markerExtras().isEmpty()).toList();
         }
     }
     
+    /**
+     * @param requiresPython the {@code Requires-Python} specifier of the file, if it has one
+     * @param yanked whether the file has been yanked, per PEP 592
+     * @param coreMetadata whether the index serves the file's core metadata on its own, per PEP 658
+     * @param wheel the parsed filename, if this is a wheel
+     */
     public record UrlInfo(
-            @Json(name = "filename") String name,
-            @Json(name = "packagetype") String packageType,
-            @Json(name = "url") String url
+            String name,
+            String packageType,
+            String url,
+            Map<String, String> digests,
+            @Nullable String requiresPython,
+            boolean yanked,
+            boolean coreMetadata,
+            @Nullable WheelFilename wheel
     ) {
-        public static final class UnknownEnvironmentException extends RuntimeException {}
-        
-        public @Nullable String machineArchitecture(ModuleVersionIdentifier id) {
-            if (packageType.equals("sdist")) {
-                return null;
-            }
-            var rest = name;
-            if (rest.startsWith(id.getModule() + "-")) {
-                rest = rest.substring(id.getName().length()+1);
-            }
-            if (rest.startsWith(id.getVersion() + "-")) {
-                rest = rest.substring(id.getVersion().length()+1);
-            }
-            rest = rest.toLowerCase(Locale.ROOT);
-            if (rest.contains("_x86_64.") || rest.contains("_amd64.") || rest.contains("_x64.")) {
-                return MachineArchitecture.X86_64;
-            } else if (rest.contains("_aarch64.") || rest.contains("_arm64.")) {
-                return MachineArchitecture.ARM64;
-            } else if (rest.contains("_i386.") || rest.contains("_i686.") || rest.contains("_x86.")) {
-                return MachineArchitecture.X86;
-            } else if (rest.contains("-any.")) {
-                return null;
-            } else if (rest.contains("-win32")) {
-                return MachineArchitecture.X86;
-            } else {
-                throw new UnknownEnvironmentException();
-            }
-        }
-        
-        public @Nullable String operatingSystemFamily(ModuleVersionIdentifier id) {
-            if (packageType.equals("sdist")) {
-                return null;
-            }
-            var rest = name;
-            if (rest.startsWith(id.getModule() + "-")) {
-                rest = rest.substring(id.getName().length()+1);
-            }
-            if (rest.startsWith(id.getVersion() + "-")) {
-                rest = rest.substring(id.getVersion().length()+1);
-            }
-            rest = rest.toLowerCase(Locale.ROOT);
-            if (rest.contains("-linux") || rest.contains("-manylinux")) {
-                return OperatingSystemFamily.LINUX;
-            } else if (rest.contains("-macosx")) {
-                return OperatingSystemFamily.MACOS;
-            } else if (rest.contains("-win")) {
-                return OperatingSystemFamily.WINDOWS;
-            } else if (rest.contains("-any.")) {
-                return null;
-            } else {
-                throw new UnknownEnvironmentException();
-            }
-        }
-        
-        public boolean isUnderstood(ModuleVersionIdentifier id) {
-            try {
-                machineArchitecture(id);
-                operatingSystemFamily(id);
-            } catch (UnknownEnvironmentException e) {
-                return false;
-            }
-            return true;
+        public UrlInfo(String name, String packageType, String url, Map<String, String> digests, @Nullable String requiresPython, boolean yanked, boolean coreMetadata) {
+            this(name, packageType, url, digests, requiresPython, yanked, coreMetadata, packageType.equals("bdist_wheel") ? WheelFilename.parse(name) : null);
+        }
+
+        /**
+         * {@return whether the file declares no Python requirement, or one the interpreter satisfies} Specifiers we
+         * cannot parse are treated as satisfied.
+         */
+        public boolean supportsPython(PythonInterpreter interpreter) {
+            return PyPIMetadata.supportsPython(requiresPython, interpreter);
+        }
+
+        /**
+         * {@return the bitmask of targets this file can be used on} Source distributions can be used anywhere, while
+         * wheels are limited to their platform tags.
+         */
+        public int targets() {
+            return switch (packageType) {
+                case "sdist" -> PyPIComponentRule.TargetVariant.ALL;
+                case "bdist_wheel" -> wheel == null ? 0 : wheel.targets();
+                default -> 0;
+            };
+        }
+
+        /**
+         * {@return the bitmask of targets a file of the given type and name can be used on} The same as
+         * {@link #targets()}, without parsing the rest of a wheel's filename.
+         */
+        static int targets(String packageType, String filename) {
+            return switch (packageType) {
+                case "sdist" -> PyPIComponentRule.TargetVariant.ALL;
+                case "bdist_wheel" -> WheelFilename.targets(filename);
+                default -> 0;
+            };
+        }
+
+        public boolean isUnderstood() {
+            return targets() != 0;
         }
     }
     
+    /**
+     * @param name the PEP 503 normalized name of the required project
+     * @param extras the extras of the requirement that are requested
+     * @param url the direct reference the requirement is pinned to, if it is a URL requirement; these are resolved by
+     *            name like any other requirement
+     * @param marker the requirement's environment marker, if it has one
+     * @param markerExtras the extras the marker compares against, normalized
+     * @param targets the bitmask of targets the requirement's environment marker holds for when no extras are requested
+     */
     public record DistRequirement(
             String name,
+            List<String> extras,
             @Nullable VersionConstraint versionSpec,
-            @Nullable String sysPlatform,
-            @Nullable String platformMachine
+            @Nullable String url,
+            @Nullable String marker,
+            List<String> markerExtras,
+            int targets
     ) {
         public boolean isUnderstood() {
-            return switch (operatingSystemFamily()) {
-                case OperatingSystemFamily.LINUX, OperatingSystemFamily.MACOS, OperatingSystemFamily.WINDOWS -> true;
-                case null -> true;
-                default -> false;
-            } && switch (machineArchitecture()) {
-                case MachineArchitecture.X86, MachineArchitecture.ARM64, MachineArchitecture.X86_64 -> true;
-                case null -> true;
-                default -> false;
-            };
+            return targets != 0;
         }
-        
-        public @Nullable String operatingSystemFamily() {
-            return switch (sysPlatform) {
-                case "linux", "linux2" -> OperatingSystemFamily.LINUX;
-                case "darwin" -> OperatingSystemFamily.MACOS;
-                case "win32" -> OperatingSystemFamily.WINDOWS;
-                case null -> null;
-                default -> sysPlatform;
-            };
+
+        /**
+         * {@return the bitmask of targets the requirement's environment marker holds for when the given extra is
+         * requested}
+         */
+        public int targets(PythonInterpreter interpreter, String extra) {
+            return marker == null ? targets : PyPIMarker.targets(marker, interpreter, extra);
         }
-        
-        public @Nullable String machineArchitecture() {
-            if (platformMachine == null) {
-                return null;
-            }
-            return switch (platformMachine.toLowerCase(Locale.ROOT)) {
-                case "x86_64", "amd64", "x64" -> MachineArchitecture.X86_64;
-                case "aarch64", "arm64" -> MachineArchitecture.ARM64;
-                case "i386", "i686", "x86" -> MachineArchitecture.X86;
-                default -> platformMachine;
-            };
+    }
+
+    /**
+     * {@return whether a {@code Requires-Python} specifier is absent, or one the interpreter satisfies} Specifiers we
+     * cannot parse are treated as satisfied.
+     */
+    static boolean supportsPython(@Nullable String requiresPython, PythonInterpreter interpreter) {
+        if (requiresPython == null || requiresPython.isBlank()) {
+            return true;
+        }
+        try {
+            return new VersionConstraint(requiresPython.trim()).constraints().contains(interpreter.version());
+        } catch (IllegalArgumentException e) {
+            return true;
         }
     }
-    
+
+    // Consecutive releases of a package mostly share their requirements, so parsed ones are shared between them
+    private static final BoundedCache<String, DistRequirement> REQUIREMENTS = new BoundedCache<>(16384);
+
+    /**
+     * Requirements that are not valid PEP 508 are skipped, as installers do, rather than failing the whole resolution;
+     * they come back as a requirement that applies nowhere.
+     */
+    private static DistRequirement parse(String requirement, PythonInterpreter interpreter) {
+        return REQUIREMENTS.get(interpreter.tag() + ";" + requirement, key -> {
+            try {
+                return parseUncached(requirement, interpreter);
+            } catch (IllegalArgumentException e) {
+                LOGGER.warn("Skipping invalid PyPI requirement '{}': {}", requirement, e.getMessage());
+                return new DistRequirement(requirement, List.of(), null, null, null, List.of(), 0);
+            }
+        });
+    }
+
     private static boolean isIdentifier(char c) {
-        return Character.isAlphabetic(c) || Character.isDigit(c) || c == '_' || c == '-' || c == '.';
+        return Character.isLetterOrDigit(c) || c == '_' || c == '-' || c == '.';
     }
 
-    private static @Nullable DistRequirement parse(String requirement) {
-        requirement = requirement.trim();
-        var firstNonAlphaNum = 0;
-        while (firstNonAlphaNum < requirement.length() && isIdentifier(requirement.charAt(firstNonAlphaNum))) {
-            firstNonAlphaNum++;
+    /**
+     * Parses a PEP 508 requirement in a single pass: the name, then any extras, then either a direct reference or a
+     * version specifier, which may be parenthesized, then any environment marker.
+     */
+    private static DistRequirement parseUncached(String requirement, PythonInterpreter interpreter) {
+        int length = requirement.length();
+        int position = skipWhitespace(requirement, 0);
+        int nameStart = position;
+        while (position < length && isIdentifier(requirement.charAt(position))) {
+            position++;
         }
-        var name = requirement.substring(0, firstNonAlphaNum);
-        var rest = requirement.substring(firstNonAlphaNum).trim();
-        VersionConstraint versionSpec = null;
-        String sysPlatform = null;
-        String platformMachine = null;
-        var parts = rest.split(";");
-        var versionSpecString = parts[0].trim();
-        if (versionSpecString.startsWith("(")) {
-            var end = versionSpecString.indexOf(')');
+        if (position == nameStart) {
+            throw new IllegalArgumentException("Missing name in requirement: " + requirement);
+        }
+        var name = PyPIIndex.normalize(requirement.substring(nameStart, position));
+        position = skipWhitespace(requirement, position);
+
+        List<String> extras = List.of();
+        if (position < length && requirement.charAt(position) == '[') {
+            var end = requirement.indexOf(']', position);
             if (end == -1) {
-                throw new IllegalArgumentException("Unclosed version spec in requirement: " + requirement);
-            }
-            versionSpecString = versionSpecString.substring(1, end).trim();
-        }
-        if (!versionSpecString.isEmpty()) {
-            versionSpec = new VersionConstraint(versionSpecString);
-        }
-        if (parts.length > 1) {
-            var markers = parts[1].trim().split(" and ");
-            for (var marker : markers) {
-                marker = marker.trim();
-                if (marker.startsWith("sys_platform")) {
-                    var markerRest = marker.substring("sys_platform".length()).trim();
-                    var quoteStart = markerRest.indexOf('\"');
-                    if (quoteStart != -1) {
-                        sysPlatform = markerRest.substring(quoteStart + 1, markerRest.length() - 1).trim();
-                    }
-                } else if (marker.startsWith("platform_machine")) {
-                    var markerRest = marker.substring("platform_machine".length()).trim();
-                    var quoteStart = markerRest.indexOf('\"');
-                    if (quoteStart != -1) {
-                        platformMachine = markerRest.substring(quoteStart + 1, markerRest.length() - 1).trim();
+                throw new IllegalArgumentException("Unclosed extras in requirement: " + requirement);
+            }
+            var found = new ArrayList<String>();
+            int extraStart = position + 1;
+            for (int i = extraStart; i <= end; i++) {
+                if (i == end || requirement.charAt(i) == ',') {
+                    var extra = requirement.substring(extraStart, i).trim();
+                    if (!extra.isEmpty()) {
+                        found.add(PyPIIndex.normalize(extra));
                     }
-                } else if (marker.startsWith("extra")) {
-                    return null;
+                    extraStart = i + 1;
+                }
+            }
+            extras = List.copyOf(found);
+            position = skipWhitespace(requirement, end + 1);
+        }
+
+        VersionConstraint versionSpec = null;
+        String url = null;
+        int markerStart;
+        if (position < length && requirement.charAt(position) == '@') {
+            // A direct reference runs to the next whitespace; a marker after it must be separated by some
+            int urlStart = skipWhitespace(requirement, position + 1);
+            position = urlStart;
+            while (position < length && !Character.isWhitespace(requirement.charAt(position))) {
+                position++;
+            }
+            url = requirement.substring(urlStart, position);
+            markerStart = requirement.indexOf(';', position);
+        } else {
+            markerStart = requirement.indexOf(';', position);
+            int specEnd = markerStart == -1 ? length : markerStart;
+            if (position < specEnd && requirement.charAt(position) == '(') {
+                var close = requirement.lastIndexOf(')', specEnd);
+                if (close == -1) {
+                    throw new IllegalArgumentException("Unclosed version spec in requirement: " + requirement);
                 }
+                position++;
+                specEnd = close;
+            }
+            var spec = requirement.substring(position, specEnd).trim();
+            if (!spec.isEmpty()) {
+                versionSpec = new VersionConstraint(spec);
             }
         }
-        return new DistRequirement(name, versionSpec, sysPlatform, platformMachine);
+
+        int targets = PyPIComponentRule.TargetVariant.ALL;
+        String marker = null;
+        List<String> markerExtras = List.of();
+        if (markerStart != -1) {
+            marker = requirement.substring(markerStart + 1).trim();
+            targets = PyPIMarker.targets(marker, interpreter, null);
+            markerExtras = PyPIMarker.compile(marker).extras();
+        }
+        return new DistRequirement(name, extras, versionSpec, url, marker, markerExtras, targets);
     }
-    
+
+    private static int skipWhitespace(String string, int position) {
+        while (position < string.length() && Character.isWhitespace(string.charAt(position))) {
+            position++;
+        }
+        return position;
+    }
+
     public static @Nullable PyPIMetadata fromJson(InputStream input) {
-        var moshi = new Moshi.Builder().build();
-        var adapter = moshi.adapter(PyPIMetadata.class);
-        try {
-            var json = new String(input.readAllBytes(), StandardCharsets.UTF_8);
-            return adapter.fromJson(json);
-        } catch (IOException e) {
-            throw new UncheckedIOException(e);
+        return Reader.read(input, true);
+    }
+
+    /**
+     * Reads only the {@code info} of a per-version document, taking the file list from an already-known source (such
+     * as the project-level document) instead.
+     */
+    public static @Nullable PyPIMetadata fromJson(InputStream input, List<UrlInfo> knownUrls) {
+        var metadata = Reader.read(input, false);
+        return metadata == null ? null : new PyPIMetadata(metadata.info(), knownUrls);
+    }
+
+    /**
+     * Streams only the fields we use out of a per-version PyPI JSON document; everything else is skipped at the token
+     * level.
+     */
+    static final class Reader {
+        private static final JsonReader.Options ROOT = JsonReader.Options.of("info", "urls");
+        private static final JsonReader.Options INFO = JsonReader.Options.of("requires_dist", "provides_extra");
+        private static final JsonReader.Options URL = JsonReader.Options.of("filename", "packagetype", "url", "digests", "requires_python", "yanked");
+
+        private Reader() {}
+
+        /**
+         * @param readUrls whether to read the file list, rather than leaving it empty
+         */
+        static @Nullable PyPIMetadata read(InputStream input, boolean readUrls) {
+            try (var reader = JsonReader.of(Okio.buffer(Okio.source(input)))) {
+                return reader.peek() == JsonReader.Token.NULL ? reader.nextNull() : read(reader, readUrls);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private static PyPIMetadata read(JsonReader reader, boolean readUrls) throws IOException {
+            Info info = new Info(null, List.of());
+            List<UrlInfo> urls = List.of();
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.selectName(ROOT)) {
+                    case 0 -> info = readInfo(reader);
+                    case 1 -> {
+                        if (readUrls) {
+                            urls = readUrls(reader);
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                    default -> {
+                        reader.skipName();
+                        reader.skipValue();
+                    }
+                }
+            }
+            reader.endObject();
+            return new PyPIMetadata(info, urls);
+        }
+
+        private static Info readInfo(JsonReader reader) throws IOException {
+            List<String> requiresDist = null;
+            List<String> providesExtra = null;
+            if (reader.peek() == JsonReader.Token.NULL) {
+                reader.nextNull();
+                return new Info(null, List.of());
+            }
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.selectName(INFO)) {
+                    case 0 -> requiresDist = readStrings(reader);
+                    case 1 -> providesExtra = readStrings(reader);
+                    default -> {
+                        reader.skipName();
+                        reader.skipValue();
+                    }
+                }
+            }
+            reader.endObject();
+            return new Info(requiresDist, providesExtra == null ? List.of() : providesExtra.stream().map(PyPIIndex::normalize).toList());
+        }
+
+        static List<UrlInfo> readUrls(JsonReader reader) throws IOException {
+            if (reader.peek() == JsonReader.Token.NULL) {
+                reader.nextNull();
+                return List.of();
+            }
+            var urls = new ArrayList<UrlInfo>();
+            reader.beginArray();
+            while (reader.hasNext()) {
+                String name = null;
+                String packageType = null;
+                String url = null;
+                Map<String, String> digests = Map.of();
+                String requiresPython = null;
+                boolean yanked = false;
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    switch (reader.selectName(URL)) {
+                        case 0 -> name = reader.nextString();
+                        case 1 -> packageType = reader.nextString();
+                        case 2 -> url = reader.nextString();
+                        case 3 -> digests = readDigests(reader);
+                        case 4 -> requiresPython = reader.peek() == JsonReader.Token.NULL ? reader.nextNull() : reader.nextString();
+                        case 5 -> yanked = reader.nextBoolean();
+                        default -> {
+                            reader.skipName();
+                            reader.skipValue();
+                        }
+                    }
+                }
+                reader.endObject();
+                if (name == null || packageType == null || url == null) {
+                    throw new IOException("Incomplete file entry at " + reader.getPath());
+                }
+                urls.add(new UrlInfo(name, packageType, url, digests, requiresPython, yanked, false));
+            }
+            reader.endArray();
+            return urls;
+        }
+
+        private static @Nullable List<String> readStrings(JsonReader reader) throws IOException {
+            if (reader.peek() == JsonReader.Token.NULL) {
+                return reader.nextNull();
+            }
+            var strings = new ArrayList<String>();
+            reader.beginArray();
+            while (reader.hasNext()) {
+                strings.add(reader.nextString());
+            }
+            reader.endArray();
+            return strings;
+        }
+
+        static Map<String, String> readDigests(JsonReader reader) throws IOException {
+            if (reader.peek() == JsonReader.Token.NULL) {
+                reader.nextNull();
+                return Map.of();
+            }
+            var digests = new LinkedHashMap<String, String>();
+            reader.beginObject();
+            while (reader.hasNext()) {
+                digests.put(reader.nextName(), reader.nextString());
+            }
+            reader.endObject();
+            return digests;
         }
     }
 }
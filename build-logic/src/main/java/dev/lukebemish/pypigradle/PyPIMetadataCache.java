@@ -0,0 +1,360 @@
+package dev.lukebemish.pypigradle;
+
+import org.jspecify.annotations.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipException;
+
+/**
+ * PyPI metadata persisted between builds, as a single compressed file so that it can be saved and restored as a unit.
+ * Only the parsed fields of each document are stored, and for listings, the summary of each release's files the version
+ * lister needs, along with the files themselves where the listing keeps them. Per-version documents never change once
+ * published, so they are never revalidated; project listings are stored with the time they were fetched and their
+ * {@code ETag}, so that they can be revalidated once they grow stale.
+ * <p>
+ * Every entry records when a build last used it, to the day, and entries no build has used for longer than the
+ * retention given to {@link #save} are dropped when the file is next written, so that the file does not keep every
+ * release of every package ever resolved.
+ * <p>
+ * In memory, every document is kept in its encoded form, which is far smaller than the parsed one, and decoded when it
+ * is looked up; {@link PyPIMetadataService} keeps the parsed documents in use in a bounded cache of its own.
+ */
+final class PyPIMetadataCache {
+    private static final int MAGIC = 0x50795049;
+    private static final int FORMAT = 8;
+
+    record Listing(@Nullable String etag, long fetchedAt, PyPIIndexMetadata metadata) {}
+
+    private record EncodedListing(@Nullable String etag, long fetchedAt, long usedAt, byte[] metadata) {}
+
+    private record EncodedRelease(long usedAt, byte[] metadata) {}
+
+    // Entries are only marked as used again once a day, so that a build that only reads the cache does not rewrite it
+    private static final long USE_RESOLUTION = Duration.ofDays(1).toMillis();
+
+    // Far more than any real entry or count, so that a corrupt length is caught before it is allocated
+    private static final int MAX_LENGTH = 64 * 1024 * 1024;
+
+    private static final Object SAVE_LOCK = new Object();
+
+    private final Map<String, EncodedListing> listings = new ConcurrentHashMap<>();
+    private final Map<String, EncodedRelease> releases = new ConcurrentHashMap<>();
+    private final LongSupplier clock;
+    private volatile boolean dirty;
+
+    PyPIMetadataCache() {
+        this(System::currentTimeMillis);
+    }
+
+    /**
+     * @param clock the current time, in milliseconds since the epoch, as entries are marked as used
+     */
+    PyPIMetadataCache(LongSupplier clock) {
+        this.clock = clock;
+    }
+
+    @Nullable Listing listing(String name) {
+        var encoded = listings.get(name);
+        if (encoded == null) {
+            return null;
+        }
+        var now = clock.getAsLong();
+        if (now - encoded.usedAt() >= USE_RESOLUTION) {
+            listings.replace(name, encoded, new EncodedListing(encoded.etag(), encoded.fetchedAt(), now, encoded.metadata()));
+            dirty = true;
+        }
+        try (var input = new DataInputStream(new ByteArrayInputStream(encoded.metadata()))) {
+            int releaseCount = input.readInt();
+            var releases = new LinkedHashMap<String, PyPIIndexMetadata.Release>(releaseCount);
+            for (int i = 0; i < releaseCount; i++) {
+                var version = input.readUTF();
+                var requiresPython = readStrings(input);
+                var yankedRequiresPython = readStrings(input);
+                var files = input.readBoolean() ? readUrls(input) : null;
+                releases.put(version, new PyPIIndexMetadata.Release(requiresPython, yankedRequiresPython, files));
+            }
+            return new Listing(encoded.etag(), encoded.fetchedAt(), PyPIIndexMetadata.ofReleases(releases));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    void putListing(String name, Listing listing) {
+        var bytes = new ByteArrayOutputStream();
+        try (var output = new DataOutputStream(bytes)) {
+            output.writeInt(listing.metadata().releases().size());
+            for (var release : listing.metadata().releases().entrySet()) {
+                output.writeUTF(release.getKey());
+                writeStrings(output, release.getValue().requiresPython());
+                writeStrings(output, release.getValue().yankedRequiresPython());
+                var files = release.getValue().files();
+                output.writeBoolean(files != null);
+                if (files != null) {
+                    writeUrls(output, files);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        listings.put(name, new EncodedListing(listing.etag(), listing.fetchedAt(), clock.getAsLong(), bytes.toByteArray()));
+        dirty = true;
+    }
+
+    @Nullable PyPIMetadata release(String name, String version) {
+        var key = name + "/" + version;
+        var encoded = releases.get(key);
+        if (encoded == null) {
+            return null;
+        }
+        var now = clock.getAsLong();
+        if (now - encoded.usedAt() >= USE_RESOLUTION) {
+            releases.replace(key, encoded, new EncodedRelease(now, encoded.metadata()));
+            dirty = true;
+        }
+        try (var input = new DataInputStream(new ByteArrayInputStream(encoded.metadata()))) {
+            List<String> requiresDist = null;
+            int requirementCount = input.readInt();
+            if (requirementCount >= 0) {
+                requiresDist = new ArrayList<>(requirementCount);
+                for (int i = 0; i < requirementCount; i++) {
+                    requiresDist.add(input.readUTF());
+                }
+            }
+            var providesExtra = readStrings(input);
+            return new PyPIMetadata(new PyPIMetadata.Info(requiresDist, providesExtra), readUrls(input));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    void putRelease(String name, String version, PyPIMetadata metadata) {
+        var bytes = new ByteArrayOutputStream();
+        try (var output = new DataOutputStream(bytes)) {
+            var requiresDist = metadata.info().requiresDist();
+            if (requiresDist == null) {
+                output.writeInt(-1);
+            } else {
+                output.writeInt(requiresDist.size());
+                for (var requirement : requiresDist) {
+                    output.writeUTF(requirement);
+                }
+            }
+            writeStrings(output, metadata.info().providesExtra());
+            writeUrls(output, metadata.urls());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        releases.put(name + "/" + version, new EncodedRelease(clock.getAsLong(), bytes.toByteArray()));
+        dirty = true;
+    }
+
+    boolean isDirty() {
+        return dirty;
+    }
+
+    /**
+     * Reads the cache stored at the given path. A missing file gives an empty cache, and so does one written in another
+     * format, or one that is truncated or corrupt, as a build that was killed while writing it could leave behind.
+     */
+    static PyPIMetadataCache load(Path file) throws IOException {
+        return load(file, System::currentTimeMillis);
+    }
+
+    static PyPIMetadataCache load(Path file, LongSupplier clock) throws IOException {
+        var cache = new PyPIMetadataCache(clock);
+        try (var input = new DataInputStream(new BufferedInputStream(new GZIPInputStream(Files.newInputStream(file))))) {
+            if (input.readInt() != MAGIC || input.readInt() != FORMAT) {
+                return cache;
+            }
+            int listingCount = readLength(input);
+            for (int i = 0; i < listingCount; i++) {
+                var name = input.readUTF();
+                var etag = readNullableString(input);
+                var fetchedAt = input.readLong();
+                var usedAt = input.readLong();
+                cache.listings.put(name, new EncodedListing(etag, fetchedAt, usedAt, readBytes(input)));
+            }
+            int releaseCount = readLength(input);
+            for (int i = 0; i < releaseCount; i++) {
+                var key = input.readUTF();
+                var usedAt = input.readLong();
+                cache.releases.put(key, new EncodedRelease(usedAt, readBytes(input)));
+            }
+            // Reading to the end has the gzip trailer checked, which catches corruption anywhere in the entries
+            if (input.read() != -1) {
+                throw new CorruptCacheException();
+            }
+        } catch (NoSuchFileException e) {
+            return cache;
+        } catch (EOFException | ZipException | UTFDataFormatException | CorruptCacheException e) {
+            return new PyPIMetadataCache(clock);
+        }
+        return cache;
+    }
+
+    private static final class CorruptCacheException extends IOException {}
+
+    /**
+     * Merges the entries of this cache into the file at the given path, replacing it atomically. Entries another build
+     * wrote to the file in the meantime are kept, preferring whichever listing was fetched last, and entries no build
+     * has used within the retention are dropped. Builds saving to the same file take turns, holding a lock on a
+     * sibling {@code .lock} file, so that none of them drops what another merged in.
+     */
+    void save(Path file, Duration retention) throws IOException {
+        var directory = file.toAbsolutePath().getParent();
+        Files.createDirectories(directory);
+        // File locks are held by the whole JVM, so builds sharing one, as nested builds do, take turns here first
+        synchronized (SAVE_LOCK) {
+            try (var channel = FileChannel.open(directory.resolve(file.getFileName() + ".lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                 var lock = channel.lock()) {
+                saveLocked(file, directory, retention);
+            }
+        }
+        dirty = false;
+    }
+
+    private void saveLocked(Path file, Path directory, Duration retention) throws IOException {
+        var merged = load(file, clock);
+        releases.forEach((key, release) -> merged.releases.merge(key, release, (a, b) -> a.usedAt() >= b.usedAt() ? a : b));
+        listings.forEach((name, listing) -> merged.listings.merge(name, listing, (a, b) -> {
+            var newer = a.fetchedAt() >= b.fetchedAt() ? a : b;
+            return new EncodedListing(newer.etag(), newer.fetchedAt(), Math.max(a.usedAt(), b.usedAt()), newer.metadata());
+        }));
+        var cutoff = clock.getAsLong() - retention.toMillis();
+        merged.listings.values().removeIf(listing -> listing.usedAt() < cutoff);
+        merged.releases.values().removeIf(release -> release.usedAt() < cutoff);
+
+        var temp = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+        try {
+            try (var output = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(Files.newOutputStream(temp))))) {
+                output.writeInt(MAGIC);
+                output.writeInt(FORMAT);
+                output.writeInt(merged.listings.size());
+                for (var entry : merged.listings.entrySet()) {
+                    var listing = entry.getValue();
+                    output.writeUTF(entry.getKey());
+                    writeNullableString(output, listing.etag());
+                    output.writeLong(listing.fetchedAt());
+                    output.writeLong(listing.usedAt());
+                    writeBytes(output, listing.metadata());
+                }
+                output.writeInt(merged.releases.size());
+                for (var entry : merged.releases.entrySet()) {
+                    output.writeUTF(entry.getKey());
+                    output.writeLong(entry.getValue().usedAt());
+                    writeBytes(output, entry.getValue().metadata());
+                }
+            }
+            Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private static byte[] readBytes(DataInputStream input) throws IOException {
+        var bytes = new byte[readLength(input)];
+        input.readFully(bytes);
+        return bytes;
+    }
+
+    private static int readLength(DataInputStream input) throws IOException {
+        int length = input.readInt();
+        if (length < 0 || length > MAX_LENGTH) {
+            throw new CorruptCacheException();
+        }
+        return length;
+    }
+
+    private static void writeBytes(DataOutputStream output, byte[] bytes) throws IOException {
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    private static List<PyPIMetadata.UrlInfo> readUrls(DataInputStream input) throws IOException {
+        int count = input.readInt();
+        var urls = new ArrayList<PyPIMetadata.UrlInfo>(count);
+        for (int i = 0; i < count; i++) {
+            var name = input.readUTF();
+            var packageType = input.readUTF();
+            var url = input.readUTF();
+            int digestCount = input.readInt();
+            var digests = new LinkedHashMap<String, String>(digestCount);
+            for (int j = 0; j < digestCount; j++) {
+                digests.put(input.readUTF(), input.readUTF());
+            }
+            var requiresPython = readNullableString(input);
+            var yanked = input.readBoolean();
+            var coreMetadata = input.readBoolean();
+            urls.add(new PyPIMetadata.UrlInfo(name, packageType, url, digests, requiresPython, yanked, coreMetadata));
+        }
+        return urls;
+    }
+
+    private static void writeUrls(DataOutputStream output, List<PyPIMetadata.UrlInfo> urls) throws IOException {
+        output.writeInt(urls.size());
+        for (var url : urls) {
+            output.writeUTF(url.name());
+            output.writeUTF(url.packageType());
+            output.writeUTF(url.url());
+            output.writeInt(url.digests().size());
+            for (var digest : url.digests().entrySet()) {
+                output.writeUTF(digest.getKey());
+                output.writeUTF(digest.getValue());
+            }
+            writeNullableString(output, url.requiresPython());
+            output.writeBoolean(url.yanked());
+            output.writeBoolean(url.coreMetadata());
+        }
+    }
+
+    private static List<String> readStrings(DataInputStream input) throws IOException {
+        int count = input.readInt();
+        var strings = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            strings.add(input.readUTF());
+        }
+        return strings;
+    }
+
+    private static void writeStrings(DataOutputStream output, List<String> strings) throws IOException {
+        output.writeInt(strings.size());
+        for (var string : strings) {
+            output.writeUTF(string);
+        }
+    }
+
+    private static @Nullable String readNullableString(DataInputStream input) throws IOException {
+        return input.readBoolean() ? input.readUTF() : null;
+    }
+
+    private static void writeNullableString(DataOutputStream output, @Nullable String value) throws IOException {
+        output.writeBoolean(value != null);
+        if (value != null) {
+            output.writeUTF(value);
+        }
+    }
+}
@@ -0,0 +1,553 @@
+package dev.lukebemish.pypigradle;
+
+import org.gradle.api.InvalidUserDataException;
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+import org.gradle.api.provider.ListProperty;
+import org.gradle.api.provider.Property;
+import org.gradle.api.services.BuildService;
+import org.gradle.api.services.BuildServiceParameters;
+import org.jspecify.annotations.Nullable;
+
+import javax.inject.Inject;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+/**
+ * Build-scoped store for PyPI metadata that has already been fetched during the build. Component metadata rules and
+ * version listers cannot have build services injected, so the active instance is published statically while the
+ * build runs and withdrawn when the service is closed.
+ * <p>
+ * The service also fetches metadata itself, backed by a {@link PyPIMetadataCache} that is loaded on first use and
+ * written back when the build finishes. Only a package or release that an index does not have is reported as missing;
+ * a request that fails is an error, as Gradle caches what component metadata rules and version listers make of
+ * missing metadata.
+ */
+public abstract class PyPIMetadataService implements BuildService<PyPIMetadataService.Parameters>, AutoCloseable {
+    public static final String NAME = "pypiMetadata";
+
+    private static final Logger LOGGER = Logging.getLogger(PyPIMetadataService.class);
+
+    private static final AtomicReference<@Nullable PyPIMetadataService> CURRENT = new AtomicReference<>();
+
+    public interface Parameters extends BuildServiceParameters {
+        /**
+         * The {@linkplain PyPIIndex#encode() encoded} indexes to resolve packages from, in order.
+         */
+        ListProperty<String> getIndexes();
+
+        RegularFileProperty getCacheFile();
+
+        /**
+         * How long a cached project listing is used before it is revalidated.
+         */
+        Property<Duration> getListingTtl();
+
+        Property<Boolean> getOffline();
+
+        /**
+         * How long metadata no build has used is kept in the cache file.
+         */
+        Property<Duration> getCacheRetention();
+
+        /**
+         * The most requests to the index that may be in flight at once.
+         */
+        Property<Integer> getMaxConnections();
+    }
+
+    // A rough bound on the memory taken by parsed documents, shared by every project in the build
+    private static final long MEMORY_CACHE_BYTES = 64L * 1024 * 1024;
+
+    private final BoundedCache<String, PyPIIndexMetadata> listings = new BoundedCache<>(MEMORY_CACHE_BYTES, PyPIMetadataService::weigh);
+    private final BoundedCache<String, PyPIMetadata> releases = new BoundedCache<>(MEMORY_CACHE_BYTES, PyPIMetadataService::weigh);
+    private volatile @Nullable PyPIMetadataCache cache;
+    private volatile @Nullable HttpClient client;
+    private volatile @Nullable ExecutorService prefetchExecutor;
+    private final Map<String, CompletableFuture<@Nullable PyPIIndexMetadata>> listingRequests = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<@Nullable PyPIMetadata>> releaseRequests = new ConcurrentHashMap<>();
+    private final Set<String> prefetched = ConcurrentHashMap.newKeySet();
+    private final List<PyPIIndex> indexes;
+    private final Map<String, PyPIDirectoryIndex> directories = new ConcurrentHashMap<>();
+    // The index each package was found in, which its releases are then looked up in too
+    private final Map<String, PyPIIndex> sources = new ConcurrentHashMap<>();
+    // Held for the whole of each request, including reading the body, to bound the connections open to the index
+    private final Semaphore connections;
+
+    @Inject
+    public PyPIMetadataService() {
+        this.connections = new Semaphore(getParameters().getMaxConnections().get());
+        this.indexes = getParameters().getIndexes().get().stream().map(PyPIIndex::decode).toList();
+        CURRENT.set(this);
+    }
+
+    static @Nullable PyPIMetadataService current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * {@return the project-level metadata of a package, or {@code null} if no index has it} Cached
+     * listings are used as they are until they are older than the configured TTL, and are then revalidated with their
+     * {@code ETag}. Parsed listings are shared by every project in the build, and concurrent callers share the same
+     * request.
+     */
+    @Nullable PyPIIndexMetadata listing(String name) {
+        var known = listings.getIfPresent(name);
+        if (known != null) {
+            return known;
+        }
+        return once(listingRequests, name, this::fetchListing);
+    }
+
+    /**
+     * Looks the package up in each index in turn. The first index to have it is the only one used for it, so a package
+     * in a private index cannot be shadowed by one of the same name in a later, public one.
+     */
+    private @Nullable PyPIIndexMetadata fetchListing(String name) {
+        for (var index : indexes) {
+            var listing = index.kind() == PyPIIndex.Kind.DIRECTORY ? directory(index).listing(name) : fetchRemoteListing(index, name);
+            if (listing != null && !listing.isEmpty()) {
+                sources.put(name, index);
+                listings.put(name, listing);
+                return listing;
+            }
+        }
+        return null;
+    }
+
+    private @Nullable PyPIIndexMetadata fetchRemoteListing(PyPIIndex index, String name) {
+        var cache = cache();
+        var key = index.url() + name;
+        var cached = cache.listing(key);
+        var now = System.currentTimeMillis();
+        var offline = getParameters().getOffline().get();
+        if (cached != null && (offline || now - cached.fetchedAt() < getParameters().getListingTtl().get().toMillis())) {
+            return cached.metadata();
+        }
+        if (offline) {
+            return null;
+        }
+        var simple = index.kind() == PyPIIndex.Kind.SIMPLE;
+        var request = simple
+                ? request(URI.create(index.url()).resolve(PyPIIndex.normalize(name) + "/"), PyPISimpleIndex.CONTENT_TYPE)
+                : request(URI.create(index.url()).resolve(name + "/json"), "application/json");
+        if (cached != null && cached.etag() != null) {
+            request.header("If-None-Match", cached.etag());
+        }
+        return send(request.build(), response -> {
+            PyPIIndexMetadata metadata;
+            if (response.statusCode() == 304 && cached != null) {
+                metadata = cached.metadata();
+            } else if (response.statusCode() == 200) {
+                metadata = simple ? PyPISimpleIndex.fromJson(response.body(), response.uri()) : PyPIIndexMetadata.fromJson(response.body());
+                if (metadata == null) {
+                    return null;
+                }
+            } else if (response.statusCode() == 404) {
+                return null;
+            } else {
+                throw unexpectedStatus(response);
+            }
+            var etag = response.headers().firstValue("ETag").orElse(cached == null ? null : cached.etag());
+            cache.putListing(key, new PyPIMetadataCache.Listing(etag, now, metadata));
+            return metadata;
+        });
+    }
+
+    private PyPIDirectoryIndex directory(PyPIIndex index) {
+        return directories.computeIfAbsent(index.url(), url -> PyPIDirectoryIndex.scan(URI.create(url)));
+    }
+
+    /**
+     * {@return the metadata of a single release, or {@code null} if its index does not have it} Releases never
+     * change once published, so a cached release is never fetched again.
+     */
+    @Nullable PyPIMetadata release(String name, String version) {
+        var key = name + "/" + version;
+        var known = releases.getIfPresent(key);
+        if (known != null) {
+            return known;
+        }
+        var metadata = once(releaseRequests, key, k -> fetchRelease(name, version));
+        return metadata == null ? null : releases.put(key, metadata);
+    }
+
+    /**
+     * Looks the release up in the index its package was found in, and only that one. Exact versions are resolved
+     * without listing them, so the package is looked up here if it has not been yet; otherwise a release missing from a
+     * private index could be picked up from a public one.
+     */
+    private @Nullable PyPIMetadata fetchRelease(String name, String version) {
+        var source = sources.get(name);
+        if (source == null) {
+            once(listingRequests, name, this::fetchListing);
+            source = sources.get(name);
+        }
+        return source == null ? null : fetchRelease(source, name, version);
+    }
+
+    private @Nullable PyPIMetadata fetchRelease(PyPIIndex index, String name, String version) {
+        if (index.kind() == PyPIIndex.Kind.DIRECTORY) {
+            return directory(index).release(name, version);
+        }
+        var cache = cache();
+        var key = index.url() + name;
+        var cached = cache.release(key, version);
+        if (cached != null || getParameters().getOffline().get()) {
+            return cached;
+        }
+        PyPIMetadata metadata;
+        if (index.kind() == PyPIIndex.Kind.SIMPLE) {
+            var listing = listing(name);
+            var files = listing == null ? null : listing.files(version);
+            metadata = files == null ? null : fetchWheelMetadata(index, name, version, files);
+        } else {
+            // JSON API listings only summarize the files of each release, so they are read from the release's document
+            metadata = fetchJsonRelease(index.url(), name, version, null);
+        }
+        if (metadata != null) {
+            cache.putRelease(key, version, metadata);
+        }
+        return metadata;
+    }
+
+    private @Nullable PyPIMetadata fetchJsonRelease(String jsonUrl, String name, String version, @Nullable List<PyPIMetadata.UrlInfo> knownFiles) {
+        var request = request(URI.create(jsonUrl).resolve(name + "/" + version + "/json"), "application/json");
+        return send(request.build(), response -> {
+            if (response.statusCode() == 404) {
+                return null;
+            } else if (response.statusCode() != 200) {
+                throw unexpectedStatus(response);
+            }
+            return knownFiles == null ? PyPIMetadata.fromJson(response.body()) : PyPIMetadata.fromJson(response.body(), knownFiles);
+        });
+    }
+
+    /**
+     * Builds the metadata of a release of a package from a simple index. Wheels of the same release share their
+     * requirements, with any platform differences expressed as markers, so the core metadata of one is enough. The
+     * PEP 658 metadata file is used where the index serves one, and the index's JSON API otherwise. A release with only
+     * source distributions is read from the JSON API too, or else treated as having no requirements.
+     *
+     * @throws InvalidUserDataException if the release's wheels have no PEP 658 metadata and the index has no JSON API
+     */
+    private PyPIMetadata fetchWheelMetadata(PyPIIndex index, String name, String version, List<PyPIMetadata.UrlInfo> files) {
+        PyPIMetadata.UrlInfo representative = null;
+        for (var file : files) {
+            if (file.wheel() != null && (representative == null || rank(file) > rank(representative))) {
+                representative = file;
+            }
+        }
+        if (representative != null && representative.coreMetadata()) {
+            return send(request(URI.create(representative.url() + ".metadata"), "*/*").build(), response -> {
+                if (response.statusCode() != 200) {
+                    throw unexpectedStatus(response);
+                }
+                return new PyPIMetadata(PyPISimpleIndex.coreMetadata(response.body()), files);
+            });
+        }
+        if (index.jsonUrl() != null) {
+            var metadata = fetchJsonRelease(index.jsonUrl(), name, version, files);
+            if (metadata == null) {
+                throw new UncheckedIOException(new IOException("The JSON API " + index.jsonUrl() + " of index " + index.url() + " does not have " + name + " " + version));
+            }
+            return metadata;
+        }
+        if (representative == null) {
+            LOGGER.warn("{} {} in PyPI index {} has no wheels to read its requirements from; assuming it has none", name, version, index.url());
+            return new PyPIMetadata(new PyPIMetadata.Info(null, List.of()), files);
+        }
+        throw new InvalidUserDataException("PyPI index " + index.url() + " has no PEP 658 metadata for " + name + " " + version
+                + ", so its requirements can only be read from a JSON API; declare the index with simpleIndex(url, jsonUrl)");
+    }
+
+    // Prefers wheels whose metadata can be fetched on its own, and then ones that have not been yanked
+    private static int rank(PyPIMetadata.UrlInfo file) {
+        return (file.coreMetadata() ? 2 : 0) + (file.yanked() ? 0 : 1);
+    }
+
+    @FunctionalInterface
+    private interface ResponseReader<T> {
+        @Nullable T read(HttpResponse<InputStream> response) throws IOException;
+    }
+
+    /**
+     * Sends a request to the index, holding one of the connection permits until the response has been read.
+     *
+     * @return what the reader made of the response
+     * @throws UncheckedIOException if the request could not be made, or the reader could not make sense of the response
+     */
+    private <T> @Nullable T send(HttpRequest request, ResponseReader<T> reader) {
+        try {
+            connections.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UncheckedIOException(new InterruptedIOException("Interrupted before fetching " + request.uri()));
+        }
+        try {
+            var response = client().send(request, HttpResponse.BodyHandlers.ofInputStream());
+            try (var body = response.body()) {
+                return reader.read(response);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not fetch " + request.uri(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UncheckedIOException(new InterruptedIOException("Interrupted while fetching " + request.uri()));
+        } finally {
+            connections.release();
+        }
+    }
+
+    private static IOException unexpectedStatus(HttpResponse<?> response) {
+        return new IOException("Unexpected HTTP status " + response.statusCode() + " from " + response.uri());
+    }
+
+    /**
+     * {@return where a package is looked up, for messages about it not being found} That is the index it was found
+     * in, if it was, and otherwise every index.
+     */
+    String describeSource(String name) {
+        var source = sources.get(name);
+        var described = source != null ? source.url() : String.join(", ", indexes.stream().map(PyPIIndex::url).toList());
+        return getParameters().getOffline().get() ? described + " (Gradle is offline, so only cached metadata is used)" : described;
+    }
+
+    private static <T> @Nullable T once(Map<String, CompletableFuture<@Nullable T>> requests, String key, Function<String, @Nullable T> fetch) {
+        var future = new CompletableFuture<@Nullable T>();
+        var existing = requests.putIfAbsent(key, future);
+        if (existing != null) {
+            try {
+                return existing.join();
+            } catch (CompletionException e) {
+                // Callers sharing a request fail the same way as the one that made it
+                if (e.getCause() instanceof RuntimeException cause) {
+                    throw cause;
+                }
+                throw e;
+            }
+        }
+        try {
+            future.complete(fetch.apply(key));
+        } catch (RuntimeException | Error e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            // Results are kept in the bounded caches; only requests in flight are tracked here
+            requests.remove(key, future);
+        }
+        return future.join();
+    }
+
+    private static long weigh(PyPIIndexMetadata listing) {
+        long weight = 0;
+        for (var release : listing.releases().values()) {
+            weight += 64;
+            for (var specifier : release.requiresPython()) {
+                weight += 48 + 2L * specifier.length();
+            }
+            for (var specifier : release.yankedRequiresPython()) {
+                weight += 48 + 2L * specifier.length();
+            }
+            if (release.files() != null) {
+                weight += weigh(release.files());
+            }
+        }
+        return weight;
+    }
+
+    private static long weigh(PyPIMetadata release) {
+        long weight = weigh(release.urls());
+        var requiresDist = release.info().requiresDist();
+        if (requiresDist != null) {
+            for (var requirement : requiresDist) {
+                weight += 48 + 2L * requirement.length();
+            }
+        }
+        for (var extra : release.info().providesExtra()) {
+            weight += 48 + 2L * extra.length();
+        }
+        return weight;
+    }
+
+    // Roughly the bytes retained by the parsed entries, so that the bound holds however many files packages have
+    private static long weigh(List<PyPIMetadata.UrlInfo> files) {
+        long weight = 0;
+        for (var file : files) {
+            weight += 160 + 2L * (file.name().length() + file.url().length()) + 96L * file.digests().size();
+        }
+        return weight;
+    }
+
+    /**
+     * Starts fetching, in the background, the metadata a resolution of the given package is likely to need: its
+     * listing, the release it will probably resolve to, and the same again for each of that release's requirements.
+     * Versions are guessed as the newest final release matching the requirement, so the guess can be wrong, in which
+     * case the resolution simply fetches what it needs itself. Each package is only prefetched once per build.
+     *
+     * @param version the requested version, if it is a single exact version
+     * @param interpreter the interpreter whose environment markers decide which requirements are followed
+     */
+    void prefetch(String name, @Nullable String version, PythonInterpreter interpreter) {
+        prefetch(name, version, null, interpreter);
+    }
+
+    private void prefetch(String name, @Nullable String version, VersionConstraint.@Nullable Constraints constraints, PythonInterpreter interpreter) {
+        if (getParameters().getOffline().get() || !prefetched.add(name)) {
+            return;
+        }
+        prefetchExecutor().execute(() -> {
+            try {
+                var resolved = version;
+                if (resolved == null) {
+                    var listing = listing(name);
+                    resolved = listing == null ? null : likelyVersion(listing, constraints);
+                }
+                if (resolved == null) {
+                    return;
+                }
+                var release = release(name, resolved);
+                if (release == null) {
+                    return;
+                }
+                for (var requirement : release.info().parsedRequirements(interpreter)) {
+                    prefetch(requirement.name(), null, requirement.versionSpec() == null ? null : requirement.versionSpec().constraints(), interpreter);
+                }
+            } catch (RuntimeException e) {
+                LOGGER.debug("Could not prefetch PyPI metadata for {}", name, e);
+            }
+        });
+    }
+
+    private static @Nullable String likelyVersion(PyPIIndexMetadata listing, VersionConstraint.@Nullable Constraints constraints) {
+        PythonVersion best = null;
+        for (var release : listing.releases().entrySet()) {
+            PythonVersion version;
+            try {
+                version = PythonVersion.of(release.getKey());
+            } catch (IllegalArgumentException e) {
+                continue;
+            }
+            if (version.hasPreRelease() || version.hasDev() || (constraints != null && !constraints.contains(version))) {
+                continue;
+            }
+            if ((best == null || version.compareTo(best) > 0) && !release.getValue().isYanked()) {
+                best = version;
+            }
+        }
+        return best == null ? null : best.getName();
+    }
+
+    private ExecutorService prefetchExecutor() {
+        var executor = this.prefetchExecutor;
+        if (executor == null) {
+            synchronized (this) {
+                executor = this.prefetchExecutor;
+                if (executor == null) {
+                    executor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("pypi-prefetch-", 0).factory());
+                    this.prefetchExecutor = executor;
+                }
+            }
+        }
+        return executor;
+    }
+
+    private static HttpRequest.Builder request(URI uri, String accept) {
+        return HttpRequest.newBuilder(uri)
+                .header("Accept", accept)
+                .timeout(Duration.ofMinutes(1));
+    }
+
+    private HttpClient client() {
+        var client = this.client;
+        if (client == null) {
+            synchronized (this) {
+                client = this.client;
+                if (client == null) {
+                    client = HttpClient.newBuilder()
+                            .followRedirects(HttpClient.Redirect.NORMAL)
+                            .connectTimeout(Duration.ofSeconds(30))
+                            .build();
+                    this.client = client;
+                }
+            }
+        }
+        return client;
+    }
+
+    private PyPIMetadataCache cache() {
+        var cache = this.cache;
+        if (cache == null) {
+            synchronized (this) {
+                cache = this.cache;
+                if (cache == null) {
+                    var file = getParameters().getCacheFile().get().getAsFile().toPath();
+                    try {
+                        cache = PyPIMetadataCache.load(file);
+                    } catch (IOException e) {
+                        LOGGER.warn("Could not read PyPI metadata cache {}, starting with an empty one", file, e);
+                        cache = new PyPIMetadataCache();
+                    }
+                    this.cache = cache;
+                }
+            }
+        }
+        return cache;
+    }
+
+    @Override
+    public void close() {
+        CURRENT.compareAndSet(this, null);
+        var executor = this.prefetchExecutor;
+        if (executor != null) {
+            executor.shutdownNow();
+            // Prefetches still writing to the cache, or using the client, are given a moment to finish
+            try {
+                if (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
+                    LOGGER.info("PyPI prefetches did not finish before the build ended");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        var cache = this.cache;
+        if (cache != null && cache.isDirty()) {
+            var file = getParameters().getCacheFile().get().getAsFile().toPath();
+            try {
+                cache.save(file, getParameters().getCacheRetention().get());
+            } catch (IOException e) {
+                LOGGER.warn("Could not write PyPI metadata cache {}", file, e);
+            }
+        }
+        var client = this.client;
+        if (client != null) {
+            // Only abandoned prefetches can still have requests open; an interrupted request may never complete, so
+            // waiting for them, as close does, could hang the end of the build
+            client.shutdownNow();
+        }
+        LOGGER.info("PyPI listings in memory: {}", listings);
+        LOGGER.info("PyPI releases in memory: {}", releases);
+        LOGGER.info("Interned PyPI versions: {}", PythonVersion.INTERNED);
+        LOGGER.info("Interned PyPI version constraints: {}", VersionConstraint.INTERNED);
+    }
+}
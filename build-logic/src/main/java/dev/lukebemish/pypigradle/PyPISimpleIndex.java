@@ -0,0 +1,198 @@
+package dev.lukebemish.pypigradle;
+
+import com.squareup.moshi.JsonReader;
+import okio.Okio;
+import org.jspecify.annotations.Nullable;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Reads the project pages of the PEP 691 Simple JSON API, and the PEP 658 core metadata files it links to. Together
+ * they give everything {@link PyPIMetadata} holds for a release, from far smaller documents than the JSON API's, and
+ * from indexes that only implement the simple API.
+ */
+public final class PyPISimpleIndex {
+    private PyPISimpleIndex() {}
+
+    public static final String CONTENT_TYPE = "application/vnd.pypi.simple.v1+json";
+
+    private static final JsonReader.Options ROOT = JsonReader.Options.of("files");
+    private static final JsonReader.Options FILE = JsonReader.Options.of("filename", "url", "hashes", "requires-python", "yanked", "core-metadata", "data-dist-info-metadata");
+
+    /**
+     * Reads a project page, grouping its files into releases by the version in their filenames. Relative file URLs are
+     * resolved against the page's own URL.
+     */
+    public static @Nullable PyPIIndexMetadata fromJson(InputStream input, URI page) {
+        try (var reader = JsonReader.of(Okio.buffer(Okio.source(input)))) {
+            return reader.peek() == JsonReader.Token.NULL ? reader.nextNull() : read(reader, page);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Reads the {@code Requires-Dist} and {@code Provides-Extra} fields out of a core metadata file. Only the header
+     * section is read; the description that may follow it is not.
+     */
+    public static PyPIMetadata.Info coreMetadata(InputStream input) throws IOException {
+        var requirements = new ArrayList<String>();
+        var extras = new ArrayList<String>();
+        var reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8));
+        List<String> field = null;
+        StringBuilder current = null;
+        String line;
+        while ((line = reader.readLine()) != null && !line.isEmpty()) {
+            if (Character.isWhitespace(line.charAt(0))) {
+                // Folded continuation of the previous field
+                if (current != null) {
+                    current.append(' ').append(line.trim());
+                }
+                continue;
+            }
+            if (current != null) {
+                field.add(current.toString());
+                current = null;
+            }
+            var colon = line.indexOf(':');
+            if (colon == -1) {
+                continue;
+            }
+            field = switch (line.substring(0, colon).trim().toLowerCase(Locale.ROOT)) {
+                case "requires-dist" -> requirements;
+                case "provides-extra" -> extras;
+                default -> null;
+            };
+            if (field != null) {
+                current = new StringBuilder(line.substring(colon + 1).trim());
+            }
+        }
+        if (current != null) {
+            field.add(current.toString());
+        }
+        return new PyPIMetadata.Info(requirements, extras.stream().map(PyPIIndex::normalize).toList());
+    }
+
+    /**
+     * {@return the version in a wheel or source distribution filename, or {@code null} for other kinds of files}
+     */
+    static @Nullable String version(String filename, String packageType) {
+        if (packageType.equals("bdist_wheel")) {
+            var wheel = WheelFilename.parse(filename);
+            return wheel == null ? null : wheel.version();
+        }
+        String stem;
+        if (filename.endsWith(".tar.gz")) {
+            stem = filename.substring(0, filename.length() - ".tar.gz".length());
+        } else if (filename.endsWith(".zip")) {
+            stem = filename.substring(0, filename.length() - ".zip".length());
+        } else {
+            return null;
+        }
+        var separator = stem.lastIndexOf('-');
+        return separator == -1 ? null : stem.substring(separator + 1);
+    }
+
+    private static @Nullable String packageType(String filename) {
+        if (filename.endsWith(".whl")) {
+            return "bdist_wheel";
+        } else if (filename.endsWith(".tar.gz") || filename.endsWith(".zip")) {
+            return "sdist";
+        }
+        return null;
+    }
+
+    private static PyPIIndexMetadata read(JsonReader reader, URI page) throws IOException {
+        var releases = new LinkedHashMap<String, List<PyPIMetadata.UrlInfo>>();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (reader.selectName(ROOT) != 0) {
+                reader.skipName();
+                reader.skipValue();
+                continue;
+            }
+            reader.beginArray();
+            while (reader.hasNext()) {
+                readFile(reader, page, releases);
+            }
+            reader.endArray();
+        }
+        reader.endObject();
+        return PyPIIndexMetadata.of(releases);
+    }
+
+    private static void readFile(JsonReader reader, URI page, Map<String, List<PyPIMetadata.UrlInfo>> releases) throws IOException {
+        String filename = null;
+        String url = null;
+        Map<String, String> digests = Map.of();
+        String requiresPython = null;
+        boolean yanked = false;
+        boolean coreMetadata = false;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.selectName(FILE)) {
+                case 0 -> filename = reader.nextString();
+                case 1 -> url = reader.nextString();
+                case 2 -> digests = PyPIMetadata.Reader.readDigests(reader);
+                case 3 -> requiresPython = reader.peek() == JsonReader.Token.NULL ? reader.nextNull() : reader.nextString();
+                // Either a boolean or the reason the file was yanked
+                case 4 -> yanked = isSet(reader);
+                // Either a boolean or the hashes of the metadata file; data-dist-info-metadata is the older name
+                case 5, 6 -> coreMetadata |= isSet(reader);
+                default -> {
+                    reader.skipName();
+                    reader.skipValue();
+                }
+            }
+        }
+        reader.endObject();
+        if (filename == null || url == null) {
+            throw new IOException("Incomplete file entry at " + reader.getPath());
+        }
+        var packageType = packageType(filename);
+        var version = packageType == null ? null : version(filename, packageType);
+        if (version == null) {
+            return;
+        }
+        releases.computeIfAbsent(version, k -> new ArrayList<>()).add(new PyPIMetadata.UrlInfo(
+                filename,
+                packageType,
+                withoutFragment(page.resolve(url).toString()),
+                digests,
+                requiresPython,
+                yanked,
+                coreMetadata
+        ));
+    }
+
+    // Simple indexes may put the file's hash in the URL fragment
+    private static String withoutFragment(String url) {
+        var fragment = url.indexOf('#');
+        return fragment == -1 ? url : url.substring(0, fragment);
+    }
+
+    private static boolean isSet(JsonReader reader) throws IOException {
+        return switch (reader.peek()) {
+            case BOOLEAN -> reader.nextBoolean();
+            case NULL -> {
+                reader.nextNull();
+                yield false;
+            }
+            default -> {
+                reader.skipValue();
+                yield true;
+            }
+        };
+    }
+}
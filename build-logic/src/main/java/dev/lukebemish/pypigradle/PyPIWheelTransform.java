@@ -0,0 +1,165 @@
+package dev.lukebemish.pypigradle;
+
+import org.gradle.api.artifacts.transform.CacheableTransform;
+import org.gradle.api.artifacts.transform.InputArtifact;
+import org.gradle.api.artifacts.transform.TransformAction;
+import org.gradle.api.artifacts.transform.TransformOutputs;
+import org.gradle.api.artifacts.transform.TransformParameters;
+import org.gradle.api.file.FileSystemLocation;
+import org.gradle.api.provider.Provider;
+import org.gradle.api.tasks.PathSensitive;
+import org.gradle.api.tasks.PathSensitivity;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Unpacks a wheel into the layout it is installed in, a directory that can be put on {@code sys.path} as it is. Entries
+ * are streamed straight from the archive to disk, hashing them on the way, and checked against the wheel's
+ * {@code RECORD} once it has been read. The contents of the {@code purelib} and {@code platlib} data directories are
+ * moved to the root, as an installer would; other data directories are left where they are.
+ * <p>
+ * The transform takes no parameters, so its output depends on the wheel alone and is shared by every project and build
+ * on the machine. Locked digests are checked where files are resolved instead.
+ */
+@CacheableTransform
+public abstract class PyPIWheelTransform implements TransformAction<TransformParameters.None> {
+    @InputArtifact
+    @PathSensitive(PathSensitivity.NAME_ONLY)
+    public abstract Provider<FileSystemLocation> getInputArtifact();
+
+    @Override
+    public void transform(TransformOutputs outputs) {
+        var wheel = getInputArtifact().get().getAsFile().toPath();
+        var filename = wheel.getFileName().toString();
+        var output = outputs.dir(filename.endsWith(".whl") ? filename.substring(0, filename.length() - ".whl".length()) : filename).toPath().normalize();
+        var hashes = new HashMap<String, String>();
+        String record = null;
+        try (var zip = new ZipInputStream(Files.newInputStream(wheel))) {
+            var buffer = new byte[8192];
+            var digest = MessageDigest.getInstance("SHA-256");
+            var encoder = Base64.getUrlEncoder().withoutPadding();
+            ZipEntry entry;
+            while ((entry = zip.getNextEntry()) != null) {
+                var name = entry.getName();
+                var target = output.resolve(installedPath(name)).normalize();
+                if (!target.startsWith(output)) {
+                    throw new IOException("Wheel " + filename + " has an entry outside of its root: " + name);
+                }
+                if (entry.isDirectory()) {
+                    Files.createDirectories(target);
+                    continue;
+                }
+                Files.createDirectories(target.getParent());
+                // RECORD lists the hashes of every other file; it is small, so keep it to check them against
+                var recordCopy = isRecord(name) ? new ByteArrayOutputStream() : null;
+                digest.reset();
+                try (var out = Files.newOutputStream(target)) {
+                    int read;
+                    while ((read = zip.read(buffer)) != -1) {
+                        digest.update(buffer, 0, read);
+                        out.write(buffer, 0, read);
+                        if (recordCopy != null) {
+                            recordCopy.write(buffer, 0, read);
+                        }
+                    }
+                }
+                hashes.put(name, encoder.encodeToString(digest.digest()));
+                if (recordCopy != null) {
+                    record = recordCopy.toString(StandardCharsets.UTF_8);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        if (record == null) {
+            throw new IllegalStateException("Wheel " + filename + " has no RECORD");
+        }
+        verify(filename, record, hashes);
+    }
+
+    private static void verify(String filename, String record, Map<String, String> hashes) {
+        for (var line : record.split("\\r?\\n")) {
+            if (line.isBlank()) {
+                continue;
+            }
+            var fields = csvFields(line);
+            // The RECORD itself, and files compiled after installation, are listed without a hash
+            if (fields.size() < 2 || fields.get(1).isEmpty()) {
+                continue;
+            }
+            var hash = fields.get(1);
+            var separator = hash.indexOf('=');
+            if (separator == -1 || !hash.substring(0, separator).equals("sha256")) {
+                continue;
+            }
+            var actual = hashes.get(fields.getFirst());
+            if (actual == null) {
+                throw new IllegalStateException("Wheel " + filename + " is missing " + fields.getFirst() + ", which its RECORD lists");
+            }
+            if (!actual.equals(hash.substring(separator + 1))) {
+                throw new IllegalStateException("Hash of " + fields.getFirst() + " in wheel " + filename + " does not match its RECORD");
+            }
+        }
+    }
+
+    private static List<String> csvFields(String line) {
+        var fields = new ArrayList<String>(3);
+        var current = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            var c = line.charAt(i);
+            if (c == '"') {
+                if (quoted && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    current.append('"');
+                    i++;
+                } else {
+                    quoted = !quoted;
+                }
+            } else if (c == ',' && !quoted) {
+                fields.add(current.toString());
+                current.setLength(0);
+            } else {
+                current.append(c);
+            }
+        }
+        fields.add(current.toString());
+        return fields;
+    }
+
+    private static boolean isRecord(String entry) {
+        var separator = entry.indexOf('/');
+        return separator != -1
+                && entry.indexOf('/', separator + 1) == -1
+                && entry.substring(0, separator).endsWith(".dist-info")
+                && entry.substring(separator + 1).equals("RECORD");
+    }
+
+    // <name>-<version>.data/purelib/... and .../platlib/... are installed at the root of site-packages
+    private static String installedPath(String entry) {
+        var separator = entry.indexOf('/');
+        if (separator == -1 || !entry.substring(0, separator).endsWith(".data")) {
+            return entry;
+        }
+        for (var scheme : new String[] {"purelib/", "platlib/"}) {
+            if (entry.startsWith(scheme, separator + 1)) {
+                return entry.substring(separator + 1 + scheme.length());
+            }
+        }
+        return entry;
+    }
+}
@@ -0,0 +1,54 @@
+package dev.lukebemish.pypigradle;
+
+/**
+ * The CPython interpreter that resolved packages are meant to run on, used to tell which wheels it can load.
+ */
+public record PythonInterpreter(int major, int minor) {
+    /**
+     * @param version a version of the form {@code major.minor}, such as {@code 3.12}
+     */
+    public static PythonInterpreter parse(String version) {
+        var dot = version.indexOf('.');
+        try {
+            if (dot != -1) {
+                return new PythonInterpreter(Integer.parseInt(version.substring(0, dot)), Integer.parseInt(version.substring(dot + 1)));
+            }
+        } catch (NumberFormatException ignored) {
+            // Reported below
+        }
+        throw new IllegalArgumentException("Invalid Python version, expected major.minor: " + version);
+    }
+
+    /**
+     * @param tag an interpreter tag of the form {@code cp<major><minor>}, such as {@code cp312}
+     */
+    public static PythonInterpreter fromTag(String tag) {
+        if (tag.length() > 3 && tag.startsWith("cp") && Character.isDigit(tag.charAt(2))) {
+            try {
+                return new PythonInterpreter(tag.charAt(2) - '0', Integer.parseInt(tag.substring(3)));
+            } catch (NumberFormatException ignored) {
+                // Reported below
+            }
+        }
+        throw new IllegalArgumentException("Invalid CPython interpreter tag: " + tag);
+    }
+
+    /**
+     * {@return the interpreter's version, as compared against {@code Requires-Python}}
+     */
+    public PythonVersion version() {
+        return PythonVersion.of(toString());
+    }
+
+    /**
+     * {@return the CPython interpreter tag, such as {@code cp312}}
+     */
+    public String tag() {
+        return "cp" + major + minor;
+    }
+
+    @Override
+    public String toString() {
+        return major + "." + minor;
+    }
+}
@@ -4,165 +4,456 @@ import org.gradle.api.Named;
 import org.jspecify.annotations.Nullable;
 
 import javax.inject.Inject;
-import java.util.List;
-import java.util.Objects;
-import java.util.OptionalInt;
-import java.util.regex.Pattern;
-import java.util.stream.Stream;
+import java.util.Arrays;
 
 public class PythonVersion implements Named, Comparable<PythonVersion> {
+    private static final int NONE = -1;
+
     private final int epoch;
-    private final List<Integer> release;
+    private final int[] release;
     private final @Nullable PreRelease preRelease;
-    private final OptionalInt post;
-    private final OptionalInt dev;
+    private final int post;
+    private final int dev;
+    private final @Nullable String local;
     private final String name;
+    private final long key;
+    private final int precision;
     
-    static final Pattern REGEX = Pattern.compile(
-            "v?(?:(?:(?<epoch>[0-9]+)!)?(?<release>[0-9]+(?:\\.[0-9]+)*)(?<pre>[-_.]?(?<preL>alpha|a|beta|b|preview|pre|c|rc)[-_.]?(?<preN>[0-9]+)?)?(?<post>(?:-(?<postN1>[0-9]+))|(?:[-_.]?(?<postL>post|rev|r)[-_.]?(?<postN2>[0-9]+)?))?(?<dev>[-_.]?(?<devL>dev)[-_.]?(?<devN>[0-9]+)?)?)"
-    );
+    static final BoundedCache<String, PythonVersion> INTERNED = new BoundedCache<>(16384);
+
+    /**
+     * {@return a shared instance for the given version string} Versions are immutable, so repeated parses of the same
+     * string across a resolution can reuse one instance.
+     */
+    public static PythonVersion of(String name) {
+        return INTERNED.get(name, PythonVersion::new);
+    }
     
-    private PythonVersion(int epoch, List<Integer> release, @Nullable PreRelease preRelease, OptionalInt post, OptionalInt dev) {
+    private PythonVersion(int epoch, int[] release, @Nullable PreRelease preRelease, int post, int dev) {
         this.epoch = epoch;
         this.release = release;
         this.preRelease = preRelease;
         this.post = post;
         this.dev = dev;
-        this.name = canonicalName(epoch, release, preRelease, post, dev);
+        this.local = null;
+        this.name = canonicalName(epoch, release, preRelease, post, dev, null);
+        this.key = packKey(epoch, release, preRelease, post, dev);
+        this.precision = precision(epoch, release, preRelease, post, dev);
     }
     
     PythonVersion upperForWildcard(VersionConstraint.EndsAt endsAt, boolean dropLast) {
         return switch (endsAt) {
             case AFTER_RELEASE -> {
-                if (dropLast && release.size() == 1) {
+                if (dropLast && release.length == 1) {
                     throw new IllegalArgumentException("Cannot drop last part of release when only one part exists");
                 }
-                var lastOfRelease = release.get(release.size() - (dropLast ? 2 : 1)) + 1;
-                var releaseNew = Stream.concat(this.release.stream().limit(this.release.size() - (dropLast ? 2 : 1)), Stream.of(lastOfRelease, 0)).toList();
-                yield new PythonVersion(epoch, releaseNew, null, OptionalInt.empty(), OptionalInt.of(0));
+                var kept = release.length - (dropLast ? 2 : 1);
+                var releaseNew = Arrays.copyOf(release, kept + 2);
+                releaseNew[kept] = release[kept] + 1;
+                // The copy still holds the part after the one bumped, as in 1.4.5, which has to start again from zero
+                releaseNew[kept + 1] = 0;
+                yield new PythonVersion(epoch, releaseNew, null, NONE, 0);
             }
             case AFTER_PRE_RELEASE -> dropLast ? upperForWildcard(VersionConstraint.EndsAt.AFTER_RELEASE, false) : new PythonVersion(
                     epoch,
                     release,
                     new PreRelease(preRelease.type, preRelease.version + 1),
-                    OptionalInt.empty(),
-                    OptionalInt.of(0)
+                    NONE,
+                    0
             );
             case AFTER_POST -> dropLast ? upperForWildcard(preRelease == null ? VersionConstraint.EndsAt.AFTER_RELEASE : VersionConstraint.EndsAt.AFTER_PRE_RELEASE, false) : new PythonVersion(
                     epoch,
                     release,
                     preRelease,
-                    OptionalInt.of(post.orElseThrow() + 1),
-                    OptionalInt.of(0)
+                    post + 1,
+                    0
             );
         };
     }
     
+    /**
+     * Parses a version according to the PEP 440 grammar, including local versions, in a single pass over the string.
+     * The original string is kept as the name of the version.
+     */
     @Inject
     public PythonVersion(String name) {
         this.name = name;
-        var match = REGEX.matcher(name);
-        if (!match.matches()) {
-            throw new IllegalArgumentException("Invalid version: " + name);
-        }
-        this.epoch = match.group("epoch") == null ? 0 : Integer.parseInt(match.group("epoch"));
-        this.release = match.group("release") == null ? List.of() : 
-                Stream.of(match.group("release").split("\\.")).map(Integer::parseInt).toList();
-        if (match.group("preL") != null) {
-            PreReleaseType type = switch (match.group("preL")) {
-                case "alpha", "a" -> PreReleaseType.ALPHA;
-                case "beta", "b" -> PreReleaseType.BETA;
-                case "preview", "pre", "c", "rc" -> PreReleaseType.RC;
-                default -> throw new IllegalStateException("Unexpected value: " + match.group("preL"));
-            };
-            int version = match.group("preN") == null ? 0 : Integer.parseInt(match.group("preN"));
-            this.preRelease = new PreRelease(type, version);
+        int end = name.length();
+        int i = 0;
+        while (i < end && Character.isWhitespace(name.charAt(i))) {
+            i++;
+        }
+        while (end > i && Character.isWhitespace(name.charAt(end - 1))) {
+            end--;
+        }
+        if (i < end && (name.charAt(i) == 'v' || name.charAt(i) == 'V')) {
+            i++;
+        }
+
+        int digitsEnd = scanDigits(name, i, end);
+        if (digitsEnd == i) {
+            throw invalid(name);
+        }
+        if (digitsEnd < end && name.charAt(digitsEnd) == '!') {
+            this.epoch = parseNumber(name, i, digitsEnd);
+            i = digitsEnd + 1;
+            digitsEnd = scanDigits(name, i, end);
+            if (digitsEnd == i) {
+                throw invalid(name);
+            }
         } else {
-            this.preRelease = null;
+            this.epoch = 0;
+        }
+
+        var parts = new int[3];
+        int count = 0;
+        while (true) {
+            if (count == parts.length) {
+                parts = Arrays.copyOf(parts, count * 2);
+            }
+            parts[count++] = parseNumber(name, i, digitsEnd);
+            i = digitsEnd;
+            if (i + 1 < end && name.charAt(i) == '.' && isDigit(name.charAt(i + 1))) {
+                i++;
+                digitsEnd = scanDigits(name, i, end);
+            } else {
+                break;
+            }
         }
-        if (match.group("postN1") != null) {
-            this.post = OptionalInt.of(Integer.parseInt(match.group("postN1")));
-        } else if (match.group("postL") != null) {
-            this.post = OptionalInt.of(match.group("postN2") == null ? 0 : Integer.parseInt(match.group("postN2")));
+        this.release = count == parts.length ? parts : Arrays.copyOf(parts, count);
+
+        PreRelease preRelease = null;
+        int wordStart = skipSeparator(name, i, end);
+        for (int w = 0; w < PRE_RELEASE_WORDS.length; w++) {
+            var word = PRE_RELEASE_WORDS[w];
+            if (name.regionMatches(true, wordStart, word, 0, word.length())) {
+                i = skipSeparator(name, wordStart + word.length(), end);
+                digitsEnd = scanDigits(name, i, end);
+                int number = parseNumber(name, i, digitsEnd);
+                i = digitsEnd;
+                preRelease = new PreRelease(PRE_RELEASE_TYPES[w], number);
+                break;
+            }
+        }
+        this.preRelease = preRelease;
+
+        int post = NONE;
+        if (i + 1 < end && name.charAt(i) == '-' && isDigit(name.charAt(i + 1))) {
+            digitsEnd = scanDigits(name, i + 1, end);
+            post = parseNumber(name, i + 1, digitsEnd);
+            i = digitsEnd;
         } else {
-            this.post = OptionalInt.empty();
+            wordStart = skipSeparator(name, i, end);
+            for (var word : POST_WORDS) {
+                if (name.regionMatches(true, wordStart, word, 0, word.length())) {
+                    i = skipSeparator(name, wordStart + word.length(), end);
+                    digitsEnd = scanDigits(name, i, end);
+                    int number = parseNumber(name, i, digitsEnd);
+                    i = digitsEnd;
+                    post = number;
+                    break;
+                }
+            }
         }
-        if (match.group("devL") != null) {
-            this.dev = OptionalInt.of(match.group("devN") == null ? 0 : Integer.parseInt(match.group("devN")));
+        this.post = post;
+
+        int dev = NONE;
+        wordStart = skipSeparator(name, i, end);
+        if (name.regionMatches(true, wordStart, "dev", 0, 3)) {
+            i = skipSeparator(name, wordStart + 3, end);
+            digitsEnd = scanDigits(name, i, end);
+            int number = parseNumber(name, i, digitsEnd);
+            i = digitsEnd;
+            dev = number;
+        }
+        this.dev = dev;
+
+        if (i < end && name.charAt(i) == '+') {
+            this.local = parseLocal(name, i + 1, end);
+            i = end;
         } else {
-            this.dev = OptionalInt.empty();
+            this.local = null;
+        }
+
+        if (i != end) {
+            throw invalid(name);
+        }
+        this.key = packKey(epoch, release, preRelease, post, dev);
+        this.precision = precision(epoch, release, preRelease, post, dev);
+    }
+
+    private static final String[] PRE_RELEASE_WORDS = {"alpha", "a", "beta", "b", "preview", "pre", "c", "rc"};
+    private static final PreReleaseType[] PRE_RELEASE_TYPES = {
+            PreReleaseType.ALPHA, PreReleaseType.ALPHA,
+            PreReleaseType.BETA, PreReleaseType.BETA,
+            PreReleaseType.RC, PreReleaseType.RC, PreReleaseType.RC, PreReleaseType.RC
+    };
+    private static final String[] POST_WORDS = {"post", "rev", "r"};
+
+    private static IllegalArgumentException invalid(String name) {
+        return new IllegalArgumentException("Invalid version: " + name);
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static int scanDigits(String string, int start, int end) {
+        int i = start;
+        while (i < end && isDigit(string.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    private static int skipSeparator(String string, int i, int end) {
+        if (i < end) {
+            var c = string.charAt(i);
+            if (c == '.' || c == '-' || c == '_') {
+                return i + 1;
+            }
+        }
+        return i;
+    }
+
+    private static int parseNumber(String string, int start, int end) {
+        int value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = string.charAt(i) - '0';
+            if (value > (Integer.MAX_VALUE - digit) / 10) {
+                throw new IllegalArgumentException("Version component too large: " + string);
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    private static String parseLocal(String string, int start, int end) {
+        var sb = new StringBuilder(end - start);
+        boolean segmentStart = true;
+        for (int i = start; i < end; i++) {
+            var c = string.charAt(i);
+            if (c == '.' || c == '-' || c == '_') {
+                if (segmentStart) {
+                    throw invalid(string);
+                }
+                sb.append('.');
+                segmentStart = true;
+            } else if (isDigit(c) || (c >= 'a' && c <= 'z')) {
+                sb.append(c);
+                segmentStart = false;
+            } else if (c >= 'A' && c <= 'Z') {
+                sb.append((char) (c - 'A' + 'a'));
+                segmentStart = false;
+            } else {
+                throw invalid(string);
+            }
+        }
+        if (segmentStart) {
+            throw invalid(string);
+        }
+        return sb.toString();
+    }
+
+    int releaseLength() {
+        return release.length;
+    }
+
+    boolean hasPreRelease() {
+        return preRelease != null;
+    }
+
+    boolean hasPost() {
+        return post != NONE;
+    }
+
+    boolean hasDev() {
+        return dev != NONE;
+    }
+
+    // The sort key packs, from the most significant bits down: the epoch, the first three release parts, and then the
+    // pre-release phase and number, the post-release number and the dev-release number. Every field saturates at its
+    // maximum, and once one has saturated all later fields are left as zero, so that whenever two keys differ they
+    // order the same way as the versions they were built from.
+    private static final int EPOCH_BITS = 3;
+    private static final int RELEASE_PART_BITS = 12;
+    private static final int PACKED_RELEASE_PARTS = 3;
+    private static final int PHASE_BITS = 3;
+    private static final int PRE_NUMBER_BITS = 6;
+    private static final int POST_BITS = 8;
+    private static final int DEV_BITS = 8;
+    private static final int SUFFIX_BITS = PHASE_BITS + PRE_NUMBER_BITS + POST_BITS + DEV_BITS;
+    private static final long SUFFIX_MASK = (1L << SUFFIX_BITS) - 1;
+
+    // Orders the pre-release phase like PEP 440: a dev release of the final version sorts before every pre-release,
+    // and a version with no pre-release sorts after all of them.
+    private static final int PHASE_DEV_ONLY = 0;
+    private static final int PHASE_FINAL = 4;
+
+    // How much of the ordering the key decides on its own
+    private static final int PRECISION_NONE = 0;
+    private static final int PRECISION_PREFIX = 1;
+    private static final int PRECISION_FULL = 2;
+
+    private static int phase(@Nullable PreRelease preRelease, int post, int dev) {
+        if (preRelease != null) {
+            return preRelease.type().ordinal() + 1;
+        }
+        return post == NONE && dev != NONE ? PHASE_DEV_ONLY : PHASE_FINAL;
+    }
+
+    private static int significantParts(int[] release) {
+        int length = release.length;
+        while (length > 1 && release[length - 1] == 0) {
+            length--;
+        }
+        return length;
+    }
+
+    private static int precision(int epoch, int[] release, @Nullable PreRelease preRelease, int post, int dev) {
+        if (epoch >= max(EPOCH_BITS) || significantParts(release) > PACKED_RELEASE_PARTS) {
+            return PRECISION_NONE;
+        }
+        for (int i = 0; i < Math.min(release.length, PACKED_RELEASE_PARTS); i++) {
+            if (release[i] >= max(RELEASE_PART_BITS)) {
+                return PRECISION_NONE;
+            }
+        }
+        if ((preRelease != null && preRelease.version() >= max(PRE_NUMBER_BITS)) || post + 1 >= max(POST_BITS) || dev >= max(DEV_BITS)) {
+            return PRECISION_PREFIX;
         }
+        return PRECISION_FULL;
+    }
+
+    private static long packKey(int epoch, int[] release, @Nullable PreRelease preRelease, int post, int dev) {
+        long key = field(0, epoch, EPOCH_BITS, false);
+        boolean saturated = epoch >= max(EPOCH_BITS);
+        for (int i = 0; i < PACKED_RELEASE_PARTS; i++) {
+            var part = i < release.length ? release[i] : 0;
+            key = field(key, part, RELEASE_PART_BITS, saturated);
+            saturated = saturated || part >= max(RELEASE_PART_BITS);
+        }
+        saturated = saturated || significantParts(release) > PACKED_RELEASE_PARTS;
+        key = field(key, phase(preRelease, post, dev), PHASE_BITS, saturated);
+        var preNumber = preRelease == null ? 0 : preRelease.version();
+        key = field(key, preNumber, PRE_NUMBER_BITS, saturated);
+        saturated = saturated || preNumber >= max(PRE_NUMBER_BITS);
+        key = field(key, post + 1, POST_BITS, saturated);
+        saturated = saturated || post + 1 >= max(POST_BITS);
+        return field(key, dev == NONE ? max(DEV_BITS) : dev, DEV_BITS, saturated);
+    }
+
+    private static long field(long key, int value, int bits, boolean saturated) {
+        return (key << bits) | (saturated ? 0 : Math.min(value, max(bits)));
+    }
+
+    private static int max(int bits) {
+        return (1 << bits) - 1;
     }
 
     @Override
     public int compareTo(PythonVersion other) {
+        if (this.key != other.key) {
+            long prefix = this.key >>> SUFFIX_BITS;
+            long otherPrefix = other.key >>> SUFFIX_BITS;
+            if (prefix != otherPrefix) {
+                return Long.compare(prefix, otherPrefix);
+            }
+            if (this.precision != PRECISION_NONE && other.precision != PRECISION_NONE) {
+                return Long.compare(this.key & SUFFIX_MASK, other.key & SUFFIX_MASK);
+            }
+        } else if (this.precision == PRECISION_FULL && other.precision == PRECISION_FULL) {
+            return compareLocal(this.local, other.local);
+        }
+        return compareUnpacked(other);
+    }
+
+    private int compareUnpacked(PythonVersion other) {
         if (this.epoch != other.epoch) {
             return Integer.compare(this.epoch, other.epoch);
         }
-        var thisSize = this.release.size();
-        var otherSize = other.release.size();
-        for (int i = 0; i < Math.max(thisSize, otherSize); i++) {
-            var thisPart = i < thisSize ? this.release.get(i) : 0;
-            var otherPart = i < otherSize ? other.release.get(i) : 0;
+        for (int i = 0; i < Math.max(this.release.length, other.release.length); i++) {
+            var thisPart = i < this.release.length ? this.release[i] : 0;
+            var otherPart = i < other.release.length ? other.release[i] : 0;
             if (thisPart != otherPart) {
                 return Integer.compare(thisPart, otherPart);
             }
         }
-        if (this.preRelease == null && other.preRelease != null) {
-            if (this.dev.isPresent()) {
-                return -1; // Dev-release is less than pre-release
+        var phase = phase(this.preRelease, this.post, this.dev);
+        var otherPhase = phase(other.preRelease, other.post, other.dev);
+        if (phase != otherPhase) {
+            return Integer.compare(phase, otherPhase);
+        }
+        if (this.preRelease != null && other.preRelease != null && this.preRelease.version() != other.preRelease.version()) {
+            return Integer.compare(this.preRelease.version(), other.preRelease.version());
+        }
+        if (this.post != other.post) {
+            return Integer.compare(this.post, other.post);
+        }
+        if (this.dev != other.dev) {
+            // No dev release is greater than any dev release
+            return this.dev == NONE ? 1 : other.dev == NONE ? -1 : Integer.compare(this.dev, other.dev);
+        }
+        return compareLocal(this.local, other.local);
+    }
+
+    private static int compareLocal(@Nullable String local, @Nullable String other) {
+        if (local == null || other == null) {
+            return local == null ? (other == null ? 0 : -1) : 1;
+        }
+        int i = 0;
+        int j = 0;
+        while (i < local.length() && j < other.length()) {
+            int iEnd = local.indexOf('.', i);
+            int jEnd = other.indexOf('.', j);
+            if (iEnd == -1) {
+                iEnd = local.length();
             }
-            return 1; // No pre-release is greater than any pre-release
-        } else if (this.preRelease != null) {
-            if (other.preRelease == null) {
-                if (other.dev.isPresent()) {
-                    return 1;
-                }
-                return -1;
-            } else {
-                var typeCompare = this.preRelease.type().compareTo(other.preRelease.type());
-                if (typeCompare != 0) {
-                    return typeCompare;
-                }
-                if (this.preRelease.version() != other.preRelease.version()) {
-                    return Integer.compare(this.preRelease.version(), other.preRelease.version());
-                }
+            if (jEnd == -1) {
+                jEnd = other.length();
             }
-        }
-        if (this.post.isPresent() && other.post.isEmpty()) {
-            return 1; // Post-release is greater than no post-release
-        } else if (other.post.isPresent()) {
-            if (this.post.isEmpty()) {
-                return -1;
+            boolean numeric = scanDigits(local, i, iEnd) == iEnd;
+            boolean otherNumeric = scanDigits(other, j, jEnd) == jEnd;
+            int cmp;
+            if (numeric && otherNumeric) {
+                cmp = compareNumeric(local, i, iEnd, other, j, jEnd);
+            } else if (numeric != otherNumeric) {
+                // Numeric segments sort after alphanumeric ones
+                cmp = numeric ? 1 : -1;
             } else {
-                if (this.post.getAsInt() != other.post.getAsInt()) {
-                    return Integer.compare(this.post.getAsInt(), other.post.getAsInt());
-                }
+                cmp = CharSequence.compare(local.subSequence(i, iEnd), other.subSequence(j, jEnd));
             }
-        }
-        if (this.dev.isPresent() && other.dev.isEmpty()) {
-            return -1; // Dev-release is less than no dev-release
-        } else if (other.dev.isPresent()) {
-            if (this.dev.isEmpty()) {
-                return 1;
-            } else {
-                if (this.dev.getAsInt() != other.dev.getAsInt()) {
-                    return Integer.compare(this.dev.getAsInt(), other.dev.getAsInt());
-                }
+            if (cmp != 0) {
+                return cmp;
             }
+            i = iEnd + 1;
+            j = jEnd + 1;
         }
-        return 0;
+        return Integer.compare(local.length() - i, other.length() - j);
+    }
+
+    private static int compareNumeric(String a, int aStart, int aEnd, String b, int bStart, int bEnd) {
+        while (aStart < aEnd - 1 && a.charAt(aStart) == '0') {
+            aStart++;
+        }
+        while (bStart < bEnd - 1 && b.charAt(bStart) == '0') {
+            bStart++;
+        }
+        if (aEnd - aStart != bEnd - bStart) {
+            return Integer.compare(aEnd - aStart, bEnd - bStart);
+        }
+        return CharSequence.compare(a.subSequence(aStart, aEnd), b.subSequence(bStart, bEnd));
     }
 
     @Override
     public boolean equals(Object o) {
         if (!(o instanceof PythonVersion that)) return false;
-        return epoch == that.epoch && Objects.equals(release, that.release) && Objects.equals(preRelease, that.preRelease) && Objects.equals(post, that.post) && Objects.equals(dev, that.dev);
+        return key == that.key && compareTo(that) == 0;
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(epoch, release, preRelease, post, dev);
+        return Long.hashCode(key);
     }
 
     public record PreRelease(PreReleaseType type, int version) {}
@@ -184,28 +475,31 @@ public class PythonVersion implements Named, Comparable<PythonVersion> {
         return this.name;
     }
     
-    private static String canonicalName(int epoch, List<Integer> release, @Nullable PreRelease preRelease, OptionalInt post, OptionalInt dev) {
+    private static String canonicalName(int epoch, int[] release, @Nullable PreRelease preRelease, int post, int dev, @Nullable String local) {
         var sb = new StringBuilder();
         if (epoch != 0) {
             sb.append(epoch).append("!");
         }
-        sb.append(release.get(0));
-        for (int i = 1; i < release.size(); i++) {
-            sb.append(".").append(release.get(i));
+        sb.append(release[0]);
+        for (int i = 1; i < release.length; i++) {
+            sb.append(".").append(release[i]);
         }
         if (preRelease != null) {
             sb.append(preRelease.type().identifier).append(preRelease.version);
         }
-        if (post.isPresent()) {
-            sb.append(".post").append(post.getAsInt());
+        if (post != NONE) {
+            sb.append(".post").append(post);
+        }
+        if (dev != NONE) {
+            sb.append(".dev").append(dev);
         }
-        if (dev.isPresent()) {
-            sb.append(".dev").append(dev.getAsInt());
+        if (local != null) {
+            sb.append("+").append(local);
         }
         return sb.toString();
     }
     
     public String getCanonicalName() {
-        return canonicalName(epoch, release, preRelease, post, dev);
+        return canonicalName(epoch, release, preRelease, post, dev, local);
     }
 }
@@ -7,7 +7,6 @@ import org.jspecify.annotations.Nullable;
 import javax.inject.Inject;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.stream.Stream;
 
 public class VersionConstraint implements Named {
     private final String name;
@@ -17,10 +16,28 @@ public class VersionConstraint implements Named {
         return constraint;
     }
     
+    static final BoundedCache<String, Constraints> INTERNED = new BoundedCache<>(4096);
+
+    // Keyed by the specifier as written, not by the set it parses to: sets compare versions by value, so ==1.0 and
+    // ==1.0.0 are the same set, but Gradle matches the strings it is given, so each has to keep its own spelling
+    private static final BoundedCache<String, Constraints.GradleConstraint> GRADLE_CONSTRAINTS = new BoundedCache<>(4096);
+
     @Inject
     public VersionConstraint(String name) {
         this.name = name;
-        this.constraint = parseConstraints(name);
+        this.constraint = INTERNED.get(name, VersionConstraint::parseConstraints);
+    }
+
+    /**
+     * Applies the versions this specifier allows to a Gradle version constraint, as {@link Constraints#apply} does,
+     * reusing the strings emitted the last time the same specifier was applied.
+     */
+    public void apply(MutableVersionConstraint version) {
+        gradleConstraint().apply(version);
+    }
+
+    Constraints.GradleConstraint gradleConstraint() {
+        return GRADLE_CONSTRAINTS.get(name, key -> constraint.toGradleConstraint());
     }
 
     enum EndsAt {
@@ -28,181 +45,295 @@ public class VersionConstraint implements Named {
     }
     
     private static Constraints parseConstraints(String string) {
-        var parts = string.split(",");
-        var ranges = Stream.of(parts).map(part -> {
-            part = part.trim();
-            if (part.startsWith("===")) {
-                var rest = part.substring(3).trim();
-                var lower = new PythonVersion(rest);
-                return new RangeOrOr.Range(new VersionRange(lower, true, lower, true));
-            } else if (part.startsWith("==")) {
-                var rest = part.substring(2).trim();
-                boolean isWildcard = rest.endsWith(".*");
-                if (isWildcard) {
-                    rest = rest.substring(0, rest.length() - 2).trim();
-                }
-                EndsAt endsAt = findEndsAt(rest);
-                var lower = new PythonVersion(rest);
-                var upper = isWildcard ? lower.upperForWildcard(endsAt, false) : lower;
-                return new RangeOrOr.Range(new VersionRange(lower, true, upper, !isWildcard));
-            } else if (part.startsWith("~=")) {
-                var rest = part.substring(2).trim();
-                EndsAt endsAt = findEndsAt(rest);
-                var lower = new PythonVersion(rest);
-                var upper = lower.upperForWildcard(endsAt, true);
-                return new RangeOrOr.Range(new VersionRange(lower, true, upper, false));
-            } else if (part.startsWith(">=")) {
-                var rest = part.substring(2).trim();
-                var lower = new PythonVersion(rest);
-                return new RangeOrOr.Range(new VersionRange(lower, true, null, false));
-            } else if (part.startsWith("<=")) {
-                var rest = part.substring(2).trim();
-                var upper = new PythonVersion(rest);
-                return new RangeOrOr.Range(new VersionRange(null, false, upper, true));
-            } else if (part.startsWith(">")) {
-                var rest = part.substring(1).trim();
-                var lower = new PythonVersion(rest);
-                return new RangeOrOr.Range(new VersionRange(lower, false, null, false));
-            } else if (part.startsWith("<")) {
-                var rest = part.substring(1).trim();
-                var upper = new PythonVersion(rest);
-                return new RangeOrOr.Range(new VersionRange(null, false, upper, false));
-            } else if (part.startsWith("!=")) {
-                var rest = part.substring(2).trim();
-                boolean isWildcard = rest.endsWith(".*");
-                if (isWildcard) {
-                    rest = rest.substring(0, rest.length() - 2).trim();
-                }
-                EndsAt endsAt = findEndsAt(rest);
-                var lower = new PythonVersion(rest);
-                var upper = isWildcard ? lower.upperForWildcard(endsAt, false) : lower;
-                // TODO: this needs to be a weird sort of constraint, not a range
-                return new RangeOrOr.Or(List.of(new VersionRange(null, false, lower, false), new VersionRange(upper, isWildcard, null, false)));
-            } else {
-                throw new IllegalArgumentException("Invalid constraint: " + part);
+        var result = Constraints.ANY;
+        for (var part : string.split(",")) {
+            result = result.and(parseClause(part.trim()));
+            if (result.ranges().isEmpty()) {
+                break;
             }
-        }).toList();
-
-        return processConstraints(ranges);
+        }
+        return result;
     }
 
-    private static Constraints processConstraints(List<? extends RangeOrOr> ranges) {
-        if (ranges.isEmpty()) {
-            return new Constraints(List.of(new VersionRange(null, false, null, false)));
-        }
-        List<VersionRange> rangeList = new ArrayList<>();
-        switch (ranges.getFirst()) {
-            case RangeOrOr.Range r -> rangeList.add(r.range);
-            case RangeOrOr.Or o -> rangeList.addAll(o.options);
-        }
-        for (int i = 1; i < ranges.size(); i++) {
-            var r = ranges.get(i);
-            List<VersionRange> newRangeList = new ArrayList<>();
-            switch (r) {
-                case RangeOrOr.Range range -> {
-                    for (var existing : rangeList) {
-                        var combined = existing.and(range.range);
-                        if (combined != null) {
-                            newRangeList.add(combined);
-                        }
-                    }
-                }
-                case RangeOrOr.Or o -> {
-                    for (var option : o.options) {
-                        for (var existing : rangeList) {
-                            var combined = existing.and(option);
-                            if (combined != null) {
-                                newRangeList.add(combined);
-                            }
-                        }
-                    }
-                }
+    private static Constraints parseClause(String part) {
+        if (part.startsWith("===")) {
+            var rest = part.substring(3).trim();
+            var lower = PythonVersion.of(rest);
+            return Constraints.of(new VersionRange(lower, true, lower, true));
+        } else if (part.startsWith("==")) {
+            var rest = part.substring(2).trim();
+            boolean isWildcard = rest.endsWith(".*");
+            if (isWildcard) {
+                rest = rest.substring(0, rest.length() - 2).trim();
             }
-            rangeList = newRangeList;
-            if (rangeList.isEmpty()) {
-                break;
+            var lower = PythonVersion.of(rest);
+            EndsAt endsAt = findEndsAt(lower);
+            var upper = isWildcard ? lower.upperForWildcard(endsAt, false) : lower;
+            return Constraints.of(new VersionRange(lower, true, upper, !isWildcard));
+        } else if (part.startsWith("~=")) {
+            var rest = part.substring(2).trim();
+            var lower = PythonVersion.of(rest);
+            EndsAt endsAt = findEndsAt(lower);
+            var upper = lower.upperForWildcard(endsAt, true);
+            return Constraints.of(new VersionRange(lower, true, upper, false));
+        } else if (part.startsWith(">=")) {
+            var rest = part.substring(2).trim();
+            var lower = PythonVersion.of(rest);
+            return Constraints.of(new VersionRange(lower, true, null, false));
+        } else if (part.startsWith("<=")) {
+            var rest = part.substring(2).trim();
+            var upper = PythonVersion.of(rest);
+            return Constraints.of(new VersionRange(null, false, upper, true));
+        } else if (part.startsWith(">")) {
+            var rest = part.substring(1).trim();
+            var lower = PythonVersion.of(rest);
+            return Constraints.of(new VersionRange(lower, false, null, false));
+        } else if (part.startsWith("<")) {
+            var rest = part.substring(1).trim();
+            var upper = PythonVersion.of(rest);
+            return Constraints.of(new VersionRange(null, false, upper, false));
+        } else if (part.startsWith("!=")) {
+            var rest = part.substring(2).trim();
+            boolean isWildcard = rest.endsWith(".*");
+            if (isWildcard) {
+                rest = rest.substring(0, rest.length() - 2).trim();
             }
+            var lower = PythonVersion.of(rest);
+            EndsAt endsAt = findEndsAt(lower);
+            var upper = isWildcard ? lower.upperForWildcard(endsAt, false) : lower;
+            // An exclusion is a hole in the set: for a single version, two ranges that both exclude it
+            return new Constraints(List.of(new VersionRange(null, false, lower, false), new VersionRange(upper, isWildcard, null, false)));
+        } else {
+            throw new IllegalArgumentException("Invalid constraint: " + part);
         }
-
-        return new Constraints(rangeList);
     }
 
-    private static EndsAt findEndsAt(String rest) {
-        EndsAt endsAt = EndsAt.AFTER_RELEASE;
-
-        var match = PythonVersion.REGEX.matcher(rest);
-        if (!match.matches()) {
-            throw new IllegalArgumentException("Invalid version: " + rest);
-        }
-        if (match.group("preL") != null) {
-            endsAt = EndsAt.AFTER_PRE_RELEASE;
+    private static EndsAt findEndsAt(PythonVersion version) {
+        if (version.hasDev()) {
+            throw new IllegalArgumentException("Cannot use dev releases with wildcard constraints: " + version.getName());
         }
-        if (match.group("postN1") != null || match.group("postL") != null) {
-            endsAt = EndsAt.AFTER_POST;
+        if (version.hasPost()) {
+            return EndsAt.AFTER_POST;
         }
-        if (match.group("devL") != null) {
-            throw new IllegalArgumentException("Cannot use dev releases with wildcard constraints: " + rest);
+        if (version.hasPreRelease()) {
+            return EndsAt.AFTER_PRE_RELEASE;
         }
-        return endsAt;
+        return EndsAt.AFTER_RELEASE;
     }
-    
-    private sealed interface RangeOrOr {
-        record Range(VersionRange range) implements RangeOrOr {}
-        record Or(List<VersionRange> options) implements RangeOrOr {}
-    } 
 
+    /**
+     * A set of versions, kept as a sorted list of disjoint, non-adjacent ranges, so that every set has exactly one
+     * representation and set operations are linear merges over the two lists.
+     */
     public record Constraints(List<VersionRange> ranges) implements Comparable<Constraints> {
+        public static final Constraints ANY = new Constraints(List.of(new VersionRange(null, false, null, false)));
+        public static final Constraints NONE = new Constraints(List.of());
+
+        public Constraints {
+            ranges = normalize(ranges);
+        }
+
+        static Constraints of(VersionRange range) {
+            return new Constraints(List.of(range));
+        }
+
         public void apply(MutableVersionConstraint version) {
-            var complement = complement();
-            if (complement.ranges.isEmpty()) {
-                version.strictly("+");
-                return;
+            toGradleConstraint().apply(version);
+        }
+
+        /**
+         * Emits the set as the smallest Gradle constraint we can: an exact pin as a plain version, and anything else as
+         * one strict range spanning the whole set, with each gap inside it rejected. Gaps of a single version, such as
+         * those left by {@code !=}, are rejected as plain versions rather than ranges.
+         */
+        GradleConstraint toGradleConstraint() {
+            if (ranges.isEmpty()) {
+                return new GradleConstraint(null, new String[0]);
             }
-            PythonVersion lower = null;
-            boolean lowerInclusive = false;
-            PythonVersion upper = null;
-            boolean upperInclusive = false;
-            List<String> reject = new ArrayList<>();
-            for (var range : complement.ranges) {
-                if (range.lower == null) {
-                    if (range.upper == null) {
-                        version.rejectAll();
-                        return;
-                    }
-                    lower = range.upper;
-                    lowerInclusive = !range.upperInclusive;
-                } else if (range.upper == null) {
-                    upper = range.lower;
-                    upperInclusive = !range.lowerInclusive;
+            var first = ranges.getFirst();
+            var last = ranges.getLast();
+            if (ranges.size() == 1 && first.isPoint()) {
+                return new GradleConstraint(first.lower.getName(), new String[0]);
+            }
+            String strictly;
+            if (first.lower == null && last.upper == null) {
+                strictly = "+";
+            } else {
+                strictly = new VersionRange(first.lower, first.lowerInclusive, last.upper, last.upperInclusive).toGradleString();
+            }
+            var reject = new String[ranges.size() - 1];
+            for (int i = 1; i < ranges.size(); i++) {
+                var before = ranges.get(i - 1);
+                var after = ranges.get(i);
+                // Both bounds are present, since only the first and last ranges can be unbounded
+                var gap = new VersionRange(before.upper, !before.upperInclusive, after.lower, !after.lowerInclusive);
+                reject[i - 1] = gap.isPoint() ? gap.lower.getName() : gap.toGradleString();
+            }
+            return new GradleConstraint(strictly, reject);
+        }
+
+        record GradleConstraint(@Nullable String strictly, String[] reject) {
+            void apply(MutableVersionConstraint version) {
+                if (strictly == null) {
+                    version.rejectAll();
+                    return;
+                }
+                version.strictly(strictly);
+                if (reject.length != 0) {
+                    version.reject(reject);
+                }
+            }
+        }
+
+        public Constraints and(Constraints other) {
+            var result = new ArrayList<VersionRange>();
+            int i = 0;
+            int j = 0;
+            while (i < ranges.size() && j < other.ranges.size()) {
+                var range = ranges.get(i);
+                var otherRange = other.ranges.get(j);
+                var combined = range.and(otherRange);
+                if (combined != null) {
+                    result.add(combined);
+                }
+                // Whichever range ends first cannot intersect anything further along the other list
+                if (compareUpper(range, otherRange) <= 0) {
+                    i++;
                 } else {
-                    reject.add(range.toGradleString());
+                    j++;
                 }
             }
-            var range = new VersionRange(lower, lowerInclusive, upper, upperInclusive);
-            version.strictly(range.toGradleString());
-            version.reject(reject.toArray(String[]::new));
+            return new Constraints(result);
         }
-        
-        public boolean overlaps(Constraints other) {
+
+        public Constraints or(Constraints other) {
+            var result = new ArrayList<VersionRange>(ranges.size() + other.ranges.size());
+            int i = 0;
+            int j = 0;
+            while (i < ranges.size() || j < other.ranges.size()) {
+                if (j == other.ranges.size() || (i < ranges.size() && compareLower(ranges.get(i), other.ranges.get(j)) <= 0)) {
+                    result.add(ranges.get(i++));
+                } else {
+                    result.add(other.ranges.get(j++));
+                }
+            }
+            return new Constraints(result);
+        }
+
+        public boolean contains(PythonVersion version) {
             for (var range : ranges) {
-                for (var otherRange : other.ranges) {
-                    if (range.and(otherRange) != null) {
-                        return true;
-                    }
+                if (range.contains(version)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public boolean overlaps(Constraints other) {
+            int i = 0;
+            int j = 0;
+            while (i < ranges.size() && j < other.ranges.size()) {
+                var range = ranges.get(i);
+                var otherRange = other.ranges.get(j);
+                if (range.and(otherRange) != null) {
+                    return true;
+                }
+                if (compareUpper(range, otherRange) <= 0) {
+                    i++;
+                } else {
+                    j++;
                 }
             }
             return false;
         }
         
         public Constraints complement() {
-            if (ranges.isEmpty()) {
-                return new Constraints(List.of(new VersionRange(null, false, null, false)));
+            var result = new ArrayList<VersionRange>(ranges.size() + 1);
+            PythonVersion lower = null;
+            boolean lowerInclusive = false;
+            boolean open = true;
+            for (var range : ranges) {
+                if (range.lower != null) {
+                    result.add(new VersionRange(lower, lowerInclusive, range.lower, !range.lowerInclusive));
+                }
+                if (range.upper == null) {
+                    open = false;
+                    break;
+                }
+                lower = range.upper;
+                lowerInclusive = !range.upperInclusive;
             }
-            var ranges = new ArrayList<RangeOrOr>();
-            for (var range : this.ranges) {
-                ranges.add(range.complement());
+            if (open) {
+                result.add(new VersionRange(lower, lowerInclusive, null, false));
             }
-            return processConstraints(ranges);
+            return new Constraints(result);
+        }
+
+        private static List<VersionRange> normalize(List<VersionRange> ranges) {
+            boolean canonical = true;
+            for (int i = 0; i < ranges.size(); i++) {
+                if (ranges.get(i).isEmpty() || (i > 0 && !isSeparate(ranges.get(i - 1), ranges.get(i)))) {
+                    canonical = false;
+                    break;
+                }
+            }
+            if (canonical) {
+                return List.copyOf(ranges);
+            }
+            var sorted = new ArrayList<VersionRange>(ranges.size());
+            for (var range : ranges) {
+                if (!range.isEmpty()) {
+                    sorted.add(range);
+                }
+            }
+            sorted.sort(Constraints::compareLower);
+            var merged = new ArrayList<VersionRange>(sorted.size());
+            for (var range : sorted) {
+                if (!merged.isEmpty() && !isSeparate(merged.getLast(), range)) {
+                    var last = merged.removeLast();
+                    merged.add(compareUpper(last, range) >= 0 ? last : new VersionRange(last.lower, last.lowerInclusive, range.upper, range.upperInclusive));
+                } else {
+                    merged.add(range);
+                }
+            }
+            return List.copyOf(merged);
+        }
+
+        /**
+         * Whether {@code second}, which does not start before {@code first}, starts strictly after {@code first} ends
+         * with a gap between them, so that the two cannot be merged into one range.
+         */
+        private static boolean isSeparate(VersionRange first, VersionRange second) {
+            if (compareLower(first, second) > 0) {
+                return false;
+            }
+            if (first.upper == null || second.lower == null) {
+                return false;
+            }
+            int cmp = first.upper.compareTo(second.lower);
+            return cmp < 0 || (cmp == 0 && !first.upperInclusive && !second.lowerInclusive);
+        }
+
+        private static int compareLower(VersionRange a, VersionRange b) {
+            if (a.lower == null || b.lower == null) {
+                return a.lower == null ? (b.lower == null ? 0 : -1) : 1;
+            }
+            int cmp = a.lower.compareTo(b.lower);
+            if (cmp != 0 || a.lowerInclusive == b.lowerInclusive) {
+                return cmp;
+            }
+            return a.lowerInclusive ? -1 : 1;
+        }
+
+        private static int compareUpper(VersionRange a, VersionRange b) {
+            if (a.upper == null || b.upper == null) {
+                return a.upper == null ? (b.upper == null ? 0 : 1) : -1;
+            }
+            int cmp = a.upper.compareTo(b.upper);
+            if (cmp != 0 || a.upperInclusive == b.upperInclusive) {
+                return cmp;
+            }
+            return a.upperInclusive ? 1 : -1;
         }
         
         @Override
@@ -217,35 +348,43 @@ public class VersionConstraint implements Named {
                 return 1;
             }
             
-            var sorted = ranges.stream().sorted().toList();
-            var otherSorted = o.ranges.stream().sorted().toList();
-            int len = Math.min(sorted.size(), otherSorted.size());
+            int len = Math.min(ranges.size(), o.ranges.size());
             for (int i = 0; i < len; i++) {
-                int cmp = sorted.get(i).compareTo(otherSorted.get(i));
+                int cmp = ranges.get(i).compareTo(o.ranges.get(i));
                 if (cmp != 0) {
                     return cmp;
                 }
             }
-            return Integer.compare(sorted.size(), otherSorted.size());
+            return Integer.compare(ranges.size(), o.ranges.size());
         }
     }
     public record VersionRange(@Nullable PythonVersion lower, boolean lowerInclusive, @Nullable PythonVersion upper, boolean upperInclusive) implements Comparable<VersionRange> {
-        RangeOrOr complement() {
-            if (lower == null) {
-                if (upper == null) {
-                    return new RangeOrOr.Or(List.of());
+        public boolean contains(PythonVersion version) {
+            if (lower != null) {
+                int cmp = version.compareTo(lower);
+                if (cmp < 0 || (cmp == 0 && !lowerInclusive)) {
+                    return false;
                 }
-                return new RangeOrOr.Range(new VersionRange(upper, !upperInclusive, null, false));
-            } else if (upper == null) {
-                return new RangeOrOr.Range(new VersionRange(null, false, lower, !lowerInclusive));
-            } else {
-                return new RangeOrOr.Or(List.of(
-                        new VersionRange(null, false, lower, !lowerInclusive),
-                        new VersionRange(upper, !upperInclusive, null, false)
-                ));
             }
+            if (upper != null) {
+                int cmp = version.compareTo(upper);
+                return cmp < 0 || (cmp == 0 && upperInclusive);
+            }
+            return true;
         }
-        
+
+        boolean isPoint() {
+            return lower != null && lowerInclusive && upperInclusive && lower.equals(upper);
+        }
+
+        boolean isEmpty() {
+            if (lower == null || upper == null) {
+                return false;
+            }
+            int cmp = lower.compareTo(upper);
+            return cmp > 0 || (cmp == 0 && (!lowerInclusive || !upperInclusive));
+        }
+
         public @Nullable VersionRange and(VersionRange other) {
             PythonVersion lower;
             boolean lowerInclusive;
@@ -292,13 +431,8 @@ public class VersionConstraint implements Named {
                 }
             }
             
-            if (lower != null && upper != null) {
-                int cmp = lower.compareTo(upper);
-                if (cmp > 0 || (cmp == 0 && (!lowerInclusive || !upperInclusive))) {
-                    return null; // No intersection
-                }
-            }
-            return new VersionRange(lower, lowerInclusive, upper, upperInclusive);
+            var range = new VersionRange(lower, lowerInclusive, upper, upperInclusive);
+            return range.isEmpty() ? null : range; // Empty if no intersection
         }
         
         @Override
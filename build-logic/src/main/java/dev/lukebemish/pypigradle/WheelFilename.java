@@ -0,0 +1,326 @@
+package dev.lukebemish.pypigradle;
+
+import org.gradle.nativeplatform.MachineArchitecture;
+import org.gradle.nativeplatform.OperatingSystemFamily;
+import org.jspecify.annotations.Nullable;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The parts of a wheel filename, as laid out by PEP 427: {@code name-version(-build)?-python-abi-platform.whl}, where
+ * each of the last three tags may be a {@code .}-separated set.
+ *
+ * @param targets the bitmask of {@link PyPIComponentRule.TargetVariant} indices that any of the platform tags runs on
+ */
+public record WheelFilename(
+        String name,
+        String version,
+        @Nullable String build,
+        List<String> pythonTags,
+        List<String> abiTags,
+        List<String> platformTags,
+        int targets
+) {
+    private static final String SUFFIX = ".whl";
+
+    private static final int LINUX = PyPIComponentRule.TargetVariant.matching(OperatingSystemFamily.LINUX, null);
+    private static final int MACOS = PyPIComponentRule.TargetVariant.matching(OperatingSystemFamily.MACOS, null);
+    private static final int WINDOWS = PyPIComponentRule.TargetVariant.matching(OperatingSystemFamily.WINDOWS, null);
+    private static final int X86 = PyPIComponentRule.TargetVariant.matching(null, MachineArchitecture.X86);
+    private static final int ARM64 = PyPIComponentRule.TargetVariant.matching(null, MachineArchitecture.ARM64);
+    private static final int X86_64 = PyPIComponentRule.TargetVariant.matching(null, MachineArchitecture.X86_64);
+
+    // Platform tags are "<os prefix><os version>_<arch>", apart from a few that are looked up whole
+    private static final Map<String, Integer> WHOLE_PLATFORMS = Map.of(
+            "any", PyPIComponentRule.TargetVariant.ALL,
+            "win32", WINDOWS & X86,
+            "win_amd64", WINDOWS & X86_64,
+            "win_arm64", WINDOWS & ARM64
+    );
+    private static final Map<String, Integer> OPERATING_SYSTEM_PREFIXES = Map.of(
+            "manylinux", LINUX,
+            "musllinux", LINUX,
+            "linux", LINUX,
+            "macosx", MACOS
+    );
+    private static final Map<String, Integer> ARCHITECTURE_SUFFIXES = Map.of(
+            "x86_64", X86_64,
+            "amd64", X86_64,
+            "aarch64", ARM64,
+            "arm64", ARM64,
+            "i386", X86,
+            "i686", X86,
+            "intel", X86 | X86_64,
+            "universal", X86 | X86_64,
+            "universal2", X86_64 | ARM64
+    );
+
+    private static final BoundedCache<String, Integer> PLATFORM_TARGETS = new BoundedCache<>(1024);
+
+    /**
+     * {@return the parsed filename, or {@code null} if it is not a well-formed wheel filename}
+     */
+    public static @Nullable WheelFilename parse(String filename) {
+        if (!filename.regionMatches(true, filename.length() - SUFFIX.length(), SUFFIX, 0, SUFFIX.length())) {
+            return null;
+        }
+        var parts = filename.substring(0, filename.length() - SUFFIX.length()).split("-");
+        if (parts.length != 5 && parts.length != 6) {
+            return null;
+        }
+        int tags = parts.length - 3;
+        var platformTags = List.of(parts[tags + 2].toLowerCase(Locale.ROOT).split("\\."));
+        int targets = 0;
+        for (var platform : platformTags) {
+            targets |= PLATFORM_TARGETS.get(platform, WheelFilename::platformTargets);
+        }
+        return new WheelFilename(
+                parts[0],
+                parts[1],
+                parts.length == 6 ? parts[2] : null,
+                List.of(parts[tags].toLowerCase(Locale.ROOT).split("\\.")),
+                List.of(parts[tags + 1].toLowerCase(Locale.ROOT).split("\\.")),
+                platformTags,
+                targets
+        );
+    }
+
+    /**
+     * {@return the bitmask of targets a wheel of the given filename runs on, or {@code 0} if it is not a well-formed
+     * wheel filename} Only the platform tags are looked at, so this is cheaper than {@link #parse(String)}.
+     */
+    public static int targets(String filename) {
+        if (!filename.regionMatches(true, filename.length() - SUFFIX.length(), SUFFIX, 0, SUFFIX.length())) {
+            return 0;
+        }
+        int end = filename.length() - SUFFIX.length();
+        int separators = 0;
+        int platformStart = 0;
+        for (int i = 0; i < end; i++) {
+            if (filename.charAt(i) == '-') {
+                separators++;
+                platformStart = i + 1;
+            }
+        }
+        if (separators != 4 && separators != 5) {
+            return 0;
+        }
+        int targets = 0;
+        int tagStart = platformStart;
+        for (int i = platformStart; i <= end; i++) {
+            if (i == end || filename.charAt(i) == '.') {
+                targets |= PLATFORM_TARGETS.get(filename.substring(tagStart, i).toLowerCase(Locale.ROOT), WheelFilename::platformTargets);
+                tagStart = i + 1;
+            }
+        }
+        return targets;
+    }
+
+    /**
+     * {@return how well this wheel's interpreter and ABI tags suit the given interpreter, or {@code -1} if it cannot
+     * load the wheel at all} Like pip, a wheel built for exactly this interpreter beats a stable-ABI wheel, which beats
+     * a pure-Python one.
+     */
+    public int interpreterScore(PythonInterpreter interpreter) {
+        int best = -1;
+        for (var python : pythonTags) {
+            for (var abi : abiTags) {
+                best = Math.max(best, interpreterScore(python, abi, interpreter));
+            }
+        }
+        return best;
+    }
+
+    /**
+     * {@return the best {@code <python>-<abi>} tag pair of this wheel for the interpreter, or {@code null} if it
+     * cannot load the wheel} This is the value of {@link PyPIAttributes#PYTHON_INTERPRETER} on variants carrying it.
+     */
+    public @Nullable String interpreterTag(PythonInterpreter interpreter) {
+        int best = -1;
+        String tag = null;
+        for (var python : pythonTags) {
+            for (var abi : abiTags) {
+                var score = interpreterScore(python, abi, interpreter);
+                if (score > best) {
+                    best = score;
+                    tag = python + "-" + abi;
+                }
+            }
+        }
+        return tag;
+    }
+
+    static int interpreterScore(String python, String abi, PythonInterpreter interpreter) {
+        if (python.startsWith("cp")) {
+            var tagMajor = python.length() > 2 ? python.charAt(2) - '0' : -1;
+            var tagMinor = python.length() > 3 ? parseMinor(python, 3) : -1;
+            if (tagMajor != interpreter.major() || tagMinor < 0) {
+                return -1;
+            }
+            if (abi.equals("abi3")) {
+                return tagMinor <= interpreter.minor() ? 2000 + tagMinor : -1;
+            }
+            if (tagMinor != interpreter.minor()) {
+                return -1;
+            }
+            // Interpreters up to 3.7 used an "m" suffix on their ABI tag
+            if (abi.equals(python) || abi.equals(python + "m")) {
+                return 3000;
+            }
+            return abi.equals("none") ? 1500 : -1;
+        }
+        if (python.startsWith("py") && abi.equals("none")) {
+            var tagMajor = python.length() > 2 ? python.charAt(2) - '0' : -1;
+            if (tagMajor != interpreter.major()) {
+                return -1;
+            }
+            if (python.length() == 3) {
+                return 1000;
+            }
+            var tagMinor = parseMinor(python, 3);
+            return tagMinor >= 0 && tagMinor <= interpreter.minor() ? 1000 + tagMinor : -1;
+        }
+        return -1;
+    }
+
+    private static int parseMinor(String tag, int start) {
+        int minor = 0;
+        for (int i = start; i < tag.length(); i++) {
+            var c = tag.charAt(i);
+            if (c < '0' || c > '9' || i - start > 3) {
+                return -1;
+            }
+            minor = minor * 10 + (c - '0');
+        }
+        return start < tag.length() ? minor : -1;
+    }
+
+    /**
+     * A platform baseline meaning the target's glibc or macOS version is not known, so wheels of any baseline fit it.
+     */
+    public static final int ANY_BASELINE = 0;
+
+    /**
+     * {@return a glibc or macOS version of the form {@code major.minor}, such as {@code 2.28}, as a platform baseline}
+     *
+     * @throws IllegalArgumentException if the version is not of that form
+     */
+    public static int baseline(String version) {
+        var dot = version.indexOf('.');
+        var baseline = dot == -1 ? UNKNOWN_VERSION : version(version.substring(0, dot), version.substring(dot + 1));
+        if (baseline <= ANY_BASELINE) {
+            throw new IllegalArgumentException("Invalid platform baseline, expected major.minor: " + version);
+        }
+        return baseline;
+    }
+
+    /**
+     * {@return how well this wheel's best platform tag for the target suits it, or {@code -1} if no platform tag covers
+     * the target} As with pip, manylinux and macOS tags built against a newer glibc or macOS win over older ones, as
+     * newer builds tend to be faster and are what projects test most; an architecture-specific tag wins over a
+     * multi-architecture one, and {@code any} comes last. musllinux wheels are never picked, as the Linux targets are
+     * glibc-based.
+     * <p>
+     * pip can take the newest tag because it knows the glibc or macOS of the machine it installs onto. A target names
+     * just an operating system and architecture, so when the machines it deploys to are older, give their version as
+     * the baseline: tags needing anything newer are then skipped.
+     *
+     * @param baseline the newest glibc or macOS version the target's machines are known to have, from
+     *                 {@link #baseline(String)}, or {@link #ANY_BASELINE}
+     */
+    public int platformScore(int targetIndex, int baseline) {
+        int best = -1;
+        for (var platform : platformTags) {
+            if ((PLATFORM_TARGETS.get(platform, WheelFilename::platformTargets) & (1 << targetIndex)) != 0) {
+                best = Math.max(best, platformScore(platform, baseline));
+            }
+        }
+        return best;
+    }
+
+    private static int platformScore(String platform, int baseline) {
+        if (platform.equals("any")) {
+            return 0;
+        }
+        if (platform.startsWith("musllinux")) {
+            return -1;
+        }
+        if (platform.startsWith("manylinux")) {
+            var version = switch (platform.substring("manylinux".length(), platform.indexOf('_'))) {
+                case "1" -> 205;
+                case "2010" -> 212;
+                case "2014" -> 217;
+                case "" -> {
+                    // manylinux_<glibc major>_<glibc minor>_<arch>
+                    var parts = platform.split("_", 4);
+                    yield parts.length == 4 ? version(parts[1], parts[2]) : UNKNOWN_VERSION;
+                }
+                default -> UNKNOWN_VERSION;
+            };
+            return withinBaseline(20000, version, baseline);
+        }
+        if (platform.startsWith("macosx_")) {
+            var parts = platform.split("_", 4);
+            var version = parts.length == 4 ? version(parts[1], parts[2]) : UNKNOWN_VERSION;
+            var fat = platform.endsWith("_universal2") || platform.endsWith("_universal") || platform.endsWith("_intel");
+            return withinBaseline(fat ? 10000 : 20000, version, baseline);
+        }
+        if (platform.startsWith("linux_")) {
+            return 100;
+        }
+        return 1000;
+    }
+
+    // Versions are major * 100 + minor
+    private static final int UNKNOWN_VERSION = -1;
+
+    private static int version(String major, String minor) {
+        var majorVersion = parseMinor(major, 0);
+        var minorVersion = parseMinor(minor, 0);
+        return majorVersion < 0 || minorVersion < 0 || minorVersion > 99 ? UNKNOWN_VERSION : majorVersion * 100 + minorVersion;
+    }
+
+    /**
+     * {@return the score of a tag of the given kind, newest version first, or {@code -1} if it needs more than the
+     * baseline} A version that cannot be read ranks below every other of its kind, and never fits a baseline.
+     */
+    private static int withinBaseline(int kind, int version, int baseline) {
+        if (version == UNKNOWN_VERSION) {
+            return baseline == ANY_BASELINE ? kind : -1;
+        }
+        if (baseline != ANY_BASELINE && version > baseline) {
+            return -1;
+        }
+        return kind + 1 + Math.min(version, 9998);
+    }
+
+    private static int platformTargets(String platform) {
+        var whole = WHOLE_PLATFORMS.get(platform);
+        if (whole != null) {
+            return whole;
+        }
+        var osEnd = 0;
+        while (osEnd < platform.length() && Character.isLetter(platform.charAt(osEnd))) {
+            osEnd++;
+        }
+        var os = OPERATING_SYSTEM_PREFIXES.get(platform.substring(0, osEnd));
+        if (os == null) {
+            return 0;
+        }
+        var archStart = platform.lastIndexOf('_') + 1;
+        if (platform.endsWith("_x86_64")) {
+            // The only architecture that itself contains an underscore
+            archStart -= "x86_".length();
+        }
+        if (archStart <= osEnd) {
+            return 0;
+        }
+        var arch = ARCHITECTURE_SUFFIXES.get(platform.substring(archStart));
+        if (arch != null) {
+            return os & arch;
+        }
+        return 0;
+    }
+}
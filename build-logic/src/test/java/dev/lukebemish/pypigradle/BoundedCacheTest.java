@@ -0,0 +1,54 @@
+package dev.lukebemish.pypigradle;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BoundedCacheTest {
+    @Test
+    void evictsEntriesNotReadSinceTheHandPassed() {
+        var cache = new BoundedCache<String, String>(2);
+        cache.put("a", "a");
+        cache.put("b", "b");
+        cache.getIfPresent("a");
+        cache.put("c", "c");
+        assertEquals(2, cache.size());
+        assertNull(cache.getIfPresent("b"));
+        assertEquals("a", cache.getIfPresent("a"));
+        assertEquals(1, cache.evictions());
+    }
+
+    @Test
+    void staysBoundedUnderContention() throws InterruptedException, ExecutionException {
+        var cache = new BoundedCache<Integer, Integer>(16);
+        try (var executor = Executors.newFixedThreadPool(8)) {
+            var tasks = new ArrayList<Future<?>>();
+            for (int thread = 0; thread < 8; thread++) {
+                tasks.add(executor.submit(() -> {
+                    var random = ThreadLocalRandom.current();
+                    for (int i = 0; i < 20000; i++) {
+                        cache.get(random.nextInt(64), key -> key);
+                    }
+                }));
+            }
+            for (var task : tasks) {
+                task.get();
+            }
+        }
+        assertEquals(cache.size(), cache.weight());
+        // Every entry left over from the contended puts must still be evictable
+        for (int i = 0; i < 64; i++) {
+            cache.put(1000 + i, i);
+        }
+        assertTrue(cache.size() <= 16, cache.toString());
+        assertEquals(cache.size(), cache.weight());
+    }
+}
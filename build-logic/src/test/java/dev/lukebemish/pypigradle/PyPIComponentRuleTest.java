@@ -0,0 +1,92 @@
+package dev.lukebemish.pypigradle;
+
+import org.gradle.api.Project;
+import org.gradle.api.artifacts.type.ArtifactTypeDefinition;
+import org.gradle.api.attributes.Category;
+import org.gradle.api.internal.project.ProjectInternal;
+import org.gradle.nativeplatform.MachineArchitecture;
+import org.gradle.nativeplatform.OperatingSystemFamily;
+import org.gradle.testfixtures.ProjectBuilder;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Objects;
+import java.util.Set;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PyPIComponentRuleTest {
+    @TempDir
+    Path directory;
+
+    private void indexWheel(String filename) throws IOException {
+        var parts = filename.split("-");
+        var wheel = Files.createDirectories(directory.resolve("index")).resolve(filename);
+        try (var zip = new ZipOutputStream(Files.newOutputStream(wheel))) {
+            zip.putNextEntry(new ZipEntry(parts[0] + "-" + parts[1] + ".dist-info/METADATA"));
+            zip.write(("Metadata-Version: 2.1\nName: " + parts[0] + "\nVersion: " + parts[1] + "\n").getBytes(StandardCharsets.UTF_8));
+            zip.closeEntry();
+        }
+    }
+
+    private Project project(String dependency) throws IOException {
+        var project = ProjectBuilder.builder()
+                .withProjectDir(Files.createDirectories(directory.resolve("project")).toFile())
+                .withGradleUserHomeDir(directory.resolve("home").toFile())
+                .build();
+        project.getPluginManager().apply(PyPIGradlePlugin.class);
+        var extension = project.getExtensions().getByType(PyPIExtension.class);
+        extension.directoryIndex(directory.resolve("index").toFile());
+        extension.target(OperatingSystemFamily.LINUX, MachineArchitecture.X86_64);
+        extension.getMetadataCacheFile().set(directory.resolve("metadata.bin").toFile());
+        project.getConfigurations().create("packages", config -> {
+            config.getAttributes().attribute(OperatingSystemFamily.OPERATING_SYSTEM_ATTRIBUTE, project.getObjects().named(OperatingSystemFamily.class, OperatingSystemFamily.LINUX));
+            config.getAttributes().attribute(MachineArchitecture.ARCHITECTURE_ATTRIBUTE, project.getObjects().named(MachineArchitecture.class, MachineArchitecture.X86_64));
+            config.getAttributes().attribute(Category.CATEGORY_ATTRIBUTE, project.getObjects().named(Category.class, Category.LIBRARY));
+            config.getAttributes().attribute(PyPIAttributes.PYTHON_INTERPRETER, "cp312");
+        });
+        project.getDependencies().add("packages", dependency);
+        ((ProjectInternal) project).evaluate();
+        return project;
+    }
+
+    private static Set<File> wheels(Project project) {
+        return project.getConfigurations().getByName("packages").getIncoming().artifactView(view -> view.attributes(attributes ->
+                attributes.attribute(ArtifactTypeDefinition.ARTIFACT_TYPE_ATTRIBUTE, PyPIAttributes.WHEEL)
+        )).getFiles().getFiles();
+    }
+
+    @Test
+    void picksTheWheelForTheTarget() throws IOException {
+        indexWheel("demo-1.0-cp312-cp312-manylinux_2_17_x86_64.whl");
+        indexWheel("demo-1.0-cp312-cp312-manylinux_2_28_x86_64.whl");
+        indexWheel("demo-1.0-cp312-cp312-musllinux_1_1_x86_64.whl");
+        var files = wheels(project("pypi:demo:1.0"));
+        assertEquals(1, files.size());
+        assertTrue(files.iterator().next().getName().startsWith("demo-1.0-cp312-cp312-manylinux_2_28_x86_64"), files.toString());
+    }
+
+    @Test
+    void failsWhenNoWheelRunsOnTheTarget() throws IOException {
+        // Wheels for another C library and another interpreter, but none for glibc and CPython 3.12
+        indexWheel("demo-1.0-cp312-cp312-musllinux_1_1_x86_64.whl");
+        indexWheel("demo-1.0-cp311-cp311-manylinux_2_17_x86_64.whl");
+        var project = project("pypi:demo:1.0");
+        var exception = assertThrows(Exception.class, () -> wheels(project));
+        assertTrue(causes(exception).anyMatch(cause -> String.valueOf(cause.getMessage()).contains("no wheel for linux/x86-64/cp312")), () -> causes(exception).map(Throwable::getMessage).toList().toString());
+    }
+
+    private static Stream<Throwable> causes(Throwable throwable) {
+        return Stream.iterate(throwable, Objects::nonNull, Throwable::getCause);
+    }
+}
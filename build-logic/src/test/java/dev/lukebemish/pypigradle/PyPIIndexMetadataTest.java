@@ -0,0 +1,73 @@
+package dev.lukebemish.pypigradle;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PyPIIndexMetadataTest {
+    private static final PythonInterpreter PYTHON_3_12 = PythonInterpreter.parse("3.12");
+
+    private static final String LISTING = """
+            {
+              "info": {"name": "demo", "requires_dist": ["ignored"]},
+              "releases": {
+                "0.1": [],
+                "0.2": [{"filename": "demo-0.2.tar.gz", "packagetype": "sdist", "url": "https://files.pythonhosted.org/packages/demo-0.2.tar.gz", "yanked": true, "requires_python": null}],
+                "0.3": [{"filename": "demo-0.3.tar.gz", "packagetype": "sdist", "requires_python": ">=3.13", "digests": {"sha256": "00"}, "yanked": false}],
+                "0.4": [{"filename": "demo-0.4-py3.8.egg", "packagetype": "bdist_egg", "yanked": false}],
+                "0.5": [
+                  {"filename": "demo-0.5-cp312-cp312-win_amd64.whl", "packagetype": "bdist_wheel", "requires_python": " >=3.8", "yanked": false},
+                  {"filename": "demo-0.5-cp312-cp312-manylinux_2_17_x86_64.whl", "packagetype": "bdist_wheel", "requires_python": ">=3.8", "yanked": false},
+                  {"filename": "demo-0.5.tar.gz", "packagetype": "sdist", "requires_python": "<3", "yanked": true}
+                ]
+              },
+              "urls": []
+            }
+            """;
+
+    private static PyPIIndexMetadata listing() {
+        return PyPIIndexMetadata.fromJson(new ByteArrayInputStream(LISTING.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    void summarizesEachReleaseWhileStreaming() {
+        var releases = listing().releases();
+        assertEquals(List.of("0.1", "0.2", "0.3", "0.4", "0.5"), List.copyOf(releases.keySet()));
+        assertEquals(List.of(), releases.get("0.1").requiresPython());
+        assertEquals(List.of(""), releases.get("0.2").yankedRequiresPython());
+        // Distinct specifiers only, trimmed
+        assertEquals(List.of(">=3.8"), releases.get("0.5").requiresPython());
+        assertEquals(List.of("<3"), releases.get("0.5").yankedRequiresPython());
+        // JSON API listings leave the files to the per-version documents
+        assertNull(listing().files("0.5"));
+    }
+
+    @Test
+    void listsOnlyReleasesWithUsableFiles() {
+        var releases = listing().releases();
+        assertFalse(releases.get("0.1").isListed(PYTHON_3_12, true), "no files");
+        assertFalse(releases.get("0.2").isListed(PYTHON_3_12, false), "yanked");
+        assertTrue(releases.get("0.2").isListed(PYTHON_3_12, true), "yanked, but listed anyway");
+        assertFalse(releases.get("0.3").isListed(PYTHON_3_12, false), "needs a newer interpreter");
+        assertFalse(releases.get("0.4").isListed(PYTHON_3_12, false), "only files we cannot use");
+        assertTrue(releases.get("0.5").isListed(PYTHON_3_12, false));
+        assertTrue(releases.get("0.2").isYanked());
+        assertFalse(releases.get("0.5").isYanked());
+    }
+
+    @Test
+    void parsedListingsKeepTheirFiles() {
+        var file = new PyPIMetadata.UrlInfo("demo-1.0-py3-none-any.whl", "bdist_wheel", "https://example.com/demo-1.0-py3-none-any.whl", Map.of(), ">=3.8", false, false);
+        var listing = PyPIIndexMetadata.of(Map.of("1.0", List.of(file)));
+        assertEquals(List.of(file), listing.files("1.0"));
+        assertTrue(listing.releases().get("1.0").isListed(PYTHON_3_12, false));
+    }
+}
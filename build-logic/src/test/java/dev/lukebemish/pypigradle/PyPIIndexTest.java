@@ -0,0 +1,41 @@
+package dev.lukebemish.pypigradle;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class PyPIIndexTest {
+    @Test
+    void normalizesNames() {
+        assertEquals("foo-bar", PyPIIndex.normalize("Foo_Bar"));
+        assertEquals("foo-bar", PyPIIndex.normalize("foo.bar"));
+        assertEquals("foo-bar", PyPIIndex.normalize("FOO-bar"));
+        // Runs of separators collapse into one
+        assertEquals("foo-bar", PyPIIndex.normalize("foo__-.bar"));
+        assertEquals("zope-interface", PyPIIndex.normalize("zope.interface"));
+        assertEquals("pyyaml", PyPIIndex.normalize("PyYAML"));
+        assertEquals("ruamel-yaml-clib", PyPIIndex.normalize("ruamel.yaml.clib"));
+        // Separators at either end are collapsed like any others, not dropped
+        assertEquals("-foo", PyPIIndex.normalize("_foo"));
+        assertEquals("-foo-", PyPIIndex.normalize("._Foo.-"));
+        assertEquals("-foo", PyPIIndex.normalize("-foo"));
+    }
+
+    @Test
+    void normalizedNamesAreKept() {
+        var name = "requests-oauthlib2";
+        assertSame(name, PyPIIndex.normalize(name));
+    }
+
+    @Test
+    void encodesIndexes() {
+        var simple = new PyPIIndex(PyPIIndex.Kind.SIMPLE, "https://example.com/simple", "https://example.com/pypi");
+        assertEquals("https://example.com/simple/", simple.url());
+        assertEquals("https://example.com/pypi/", simple.jsonUrl());
+        assertEquals(simple, PyPIIndex.decode(simple.encode()));
+        var json = new PyPIIndex(PyPIIndex.Kind.JSON, "https://pypi.org/pypi/");
+        assertEquals(json, PyPIIndex.decode(json.encode()));
+        assertEquals("https://pypi.org/", json.fileHost());
+    }
+}
@@ -0,0 +1,239 @@
+package dev.lukebemish.pypigradle;
+
+import org.gradle.api.InvalidUserDataException;
+import org.gradle.api.Project;
+import org.gradle.api.artifacts.Configuration;
+import org.gradle.api.artifacts.Dependency;
+import org.gradle.api.artifacts.type.ArtifactTypeDefinition;
+import org.gradle.api.internal.project.ProjectInternal;
+import org.gradle.nativeplatform.MachineArchitecture;
+import org.gradle.nativeplatform.OperatingSystemFamily;
+import org.gradle.testfixtures.ProjectBuilder;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PyPILockfileTest {
+    private static final String URL = "https://files.pythonhosted.org/packages/ab/cd/demo-1.0-py3-none-any.whl";
+
+    @TempDir
+    Path directory;
+
+    private static PyPILockfile lockfile(PyPILockfile.Declaration... declarations) {
+        return new PyPILockfile(
+                Map.of("packages", List.of(
+                        new PyPILockfile.Entry("linux", "x86-64", "demo", "1.0", URL, "00ff"),
+                        new PyPILockfile.Entry("linux", "x86-64", "sdist-only", "2.0", null, null)
+                )),
+                Map.of("packages", List.of(declarations))
+        );
+    }
+
+    @Test
+    void roundTrips() throws IOException {
+        var file = directory.resolve("pypi.lockfile");
+        var lockfile = lockfile(new PyPILockfile.Declaration("demo", "1.0"), new PyPILockfile.Declaration("demo[extra]", null));
+        lockfile.write(file);
+        assertEquals(lockfile, PyPILockfile.read(file));
+        assertTrue(Files.readAllLines(file).contains("packages declares demo[extra] -"));
+    }
+
+    @Test
+    void quotesValuesWithWhitespace() throws IOException {
+        var file = directory.resolve("pypi.lockfile");
+        var lockfile = new PyPILockfile(
+                Map.of("my packages", List.of(new PyPILockfile.Entry("linux", "x86-64", "legacy", "1.0 beta \"2\"", URL, null))),
+                Map.of("my packages", List.of(new PyPILockfile.Declaration("demo", "[1.0, 2.0)"), new PyPILockfile.Declaration("legacy", "")))
+        );
+        lockfile.write(file);
+        assertEquals(lockfile, PyPILockfile.read(file));
+        assertTrue(Files.readAllLines(file).contains("\"my packages\" declares demo \"[1.0, 2.0)\""), Files.readString(file));
+        Files.writeString(file, "packages declares demo \"[1.0,\n");
+        assertThrows(IllegalArgumentException.class, () -> PyPILockfile.read(file));
+    }
+
+    @Test
+    void missingLockfileIsEmpty() {
+        var lockfile = PyPILockfile.read(directory.resolve("missing.lockfile"));
+        assertEquals(Map.of(), lockfile.configurations());
+        assertEquals(Map.of(), lockfile.declarations());
+    }
+
+    @Test
+    void rejectsMalformedLines() throws IOException {
+        var file = directory.resolve("pypi.lockfile");
+        Files.writeString(file, "packages linux x86-64 demo\n");
+        assertThrows(IllegalArgumentException.class, () -> PyPILockfile.read(file));
+    }
+
+    private Project lockedProject() throws IOException {
+        var project = ProjectBuilder.builder().withProjectDir(directory.toFile()).build();
+        project.getPluginManager().apply(PyPIGradlePlugin.class);
+        project.getExtensions().getByType(PyPIExtension.class).getLocked().set(true);
+        lockfile(new PyPILockfile.Declaration("demo", "1.0")).write(directory.resolve("pypi.lockfile"));
+        project.getConfigurations().create("packages", config -> target(project, config, OperatingSystemFamily.LINUX, MachineArchitecture.X86_64));
+        return project;
+    }
+
+    private static void target(Project project, Configuration config, String operatingSystemFamily, String machineArchitecture) {
+        config.getAttributes().attribute(OperatingSystemFamily.OPERATING_SYSTEM_ATTRIBUTE, project.getObjects().named(OperatingSystemFamily.class, operatingSystemFamily));
+        config.getAttributes().attribute(MachineArchitecture.ARCHITECTURE_ATTRIBUTE, project.getObjects().named(MachineArchitecture.class, machineArchitecture));
+    }
+
+    @Test
+    void lockedConfigurationsDependOnTheLockedFiles() throws IOException {
+        var project = lockedProject();
+        project.getDependencies().add("packages", "pypi:demo:1.0");
+        var dependencies = project.getConfigurations().getByName("packages").getIncoming().getDependencies();
+        assertEquals(List.of("_extract-extension.org.pythonhosted.files:ab/cd/demo-1.0-py3-none-any.whl:1.0"), dependencies.stream().map(PyPILockfileTest::notation).toList());
+    }
+
+    @Test
+    void lockedConfigurationsMustDeclareWhatWasLocked() throws IOException {
+        var project = lockedProject();
+        project.getDependencies().add("packages", "pypi:demo:1.0");
+        project.getDependencies().add("packages", "pypi:other:2.0");
+        var dependencies = project.getConfigurations().getByName("packages").getIncoming();
+        var exception = assertThrows(InvalidUserDataException.class, dependencies::getDependencies);
+        assertTrue(exception.getMessage().contains("not locked: other:2.0"), exception.getMessage());
+        assertTrue(exception.getMessage().contains("run " + PyPIGradlePlugin.LOCK_TASK_NAME), exception.getMessage());
+    }
+
+    // A directory index holding a single wheel, and a project locked to it
+    private Project resolvingProject(Path gradleUserHome, Map<String, List<PyPILockfile.Entry>> entries) throws IOException {
+        var project = ProjectBuilder.builder()
+                .withProjectDir(Files.createDirectories(directory.resolve("project")).toFile())
+                .withGradleUserHomeDir(gradleUserHome.toFile())
+                .build();
+        project.getPluginManager().apply(PyPIGradlePlugin.class);
+        var extension = project.getExtensions().getByType(PyPIExtension.class);
+        extension.getLocked().set(true);
+        extension.directoryIndex(directory.resolve("index").toFile());
+        new PyPILockfile(entries, Map.of("packages", List.of(new PyPILockfile.Declaration("demo", "1.0")))).write(directory.resolve("project/pypi.lockfile"));
+        project.getConfigurations().create("packages");
+        project.getDependencies().add("packages", "pypi:demo:1.0");
+        ((ProjectInternal) project).evaluate();
+        return project;
+    }
+
+    private String indexedWheel() throws IOException {
+        var wheel = Files.createDirectories(directory.resolve("index")).resolve("demo-1.0-py3-none-any.whl");
+        try (var zip = new ZipOutputStream(Files.newOutputStream(wheel))) {
+            zip.putNextEntry(new ZipEntry("demo-1.0.dist-info/RECORD"));
+            zip.write("demo-1.0.dist-info/RECORD,,\n".getBytes(StandardCharsets.UTF_8));
+            zip.closeEntry();
+        }
+        return wheel.toUri().toString();
+    }
+
+    private static String sha256(Path file) throws IOException {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(Files.readAllBytes(file)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Set<File> sitePackages(Project project) {
+        return project.getConfigurations().getByName("packages").getIncoming().artifactView(view -> view.attributes(attributes ->
+                attributes.attribute(ArtifactTypeDefinition.ARTIFACT_TYPE_ATTRIBUTE, PyPIAttributes.SITE_PACKAGES)
+        )).getFiles().getFiles();
+    }
+
+    @Test
+    void lockedFilesAreCheckedAsTheyAreResolved() throws IOException {
+        var url = indexedWheel();
+        var digest = sha256(directory.resolve("index/demo-1.0-py3-none-any.whl"));
+        var good = resolvingProject(directory.resolve("home"), Map.of("packages", List.of(new PyPILockfile.Entry("-", "-", "demo", "1.0", url, digest))));
+        assertEquals(1, good.getConfigurations().getByName("packages").getFiles().size());
+
+        var bad = resolvingProject(directory.resolve("home"), Map.of("packages", List.of(new PyPILockfile.Entry("-", "-", "demo", "1.0", url, "00"))));
+        // Checked whether or not the wheel is unpacked
+        var exception = assertThrows(Exception.class, () -> bad.getConfigurations().getByName("packages").getFiles());
+        assertTrue(causes(exception).anyMatch(cause -> cause instanceof InvalidUserDataException && cause.getMessage().contains("the PyPI lockfile expects 00")), exception::toString);
+    }
+
+    @Test
+    void unrelatedLockfileChangesKeepUnpackedWheels() throws IOException {
+        var url = indexedWheel();
+        var entry = new PyPILockfile.Entry("-", "-", "demo", "1.0", url, sha256(directory.resolve("index/demo-1.0-py3-none-any.whl")));
+        var first = sitePackages(resolvingProject(directory.resolve("home"), Map.of("packages", List.of(entry))));
+        var unrelated = new PyPILockfile.Entry("linux", "x86-64", "other", "2.0", "https://files.pythonhosted.org/packages/other-2.0-py3-none-any.whl", "ff");
+        var second = sitePackages(resolvingProject(directory.resolve("home"), Map.of("packages", List.of(entry), "other", List.of(unrelated))));
+        // The transform's output is keyed by the wheel alone, so the same unpacked directory is reused
+        assertEquals(1, first.size());
+        assertEquals(first, second);
+    }
+
+    @Test
+    void lockedConfigurationsMustResolveForTheLockedTarget() throws IOException {
+        var project = lockedProject();
+        project.getDependencies().add("packages", "pypi:demo:1.0");
+        var config = project.getConfigurations().getByName("packages");
+        target(project, config, OperatingSystemFamily.WINDOWS, MachineArchitecture.X86_64);
+        var exception = assertThrows(InvalidUserDataException.class, () -> config.getIncoming().getDependencies());
+        assertTrue(exception.getMessage().contains("was locked for linux x86-64 but resolves for windows x86-64"), exception.getMessage());
+    }
+
+    @Test
+    void lockedTargetsMustStillBeTargeted() throws IOException {
+        var project = lockedProject();
+        project.getExtensions().getByType(PyPIExtension.class).getTargets().set(List.of(new PyPIComponentRule.TargetVariant(OperatingSystemFamily.MACOS, MachineArchitecture.ARM64)));
+        project.getDependencies().add("packages", "pypi:demo:1.0");
+        var dependencies = project.getConfigurations().getByName("packages").getIncoming();
+        var exception = assertThrows(InvalidUserDataException.class, dependencies::getDependencies);
+        assertTrue(exception.getMessage().contains("not one of the PyPI targets macos aarch64"), exception.getMessage());
+    }
+
+    @Test
+    void lockedConfigurationsResolveForRealWhileLocking() throws IOException {
+        var project = ProjectBuilder.builder().withProjectDir(directory.toFile()).build();
+        // Set before the plugin is applied, as it is for a build started with the task
+        project.getGradle().getStartParameter().setTaskNames(List.of(":" + PyPIGradlePlugin.LOCK_TASK_NAME));
+        project.getPluginManager().apply(PyPIGradlePlugin.class);
+        project.getExtensions().getByType(PyPIExtension.class).getLocked().set(true);
+        lockfile(new PyPILockfile.Declaration("demo", "1.0")).write(directory.resolve("pypi.lockfile"));
+        project.getConfigurations().create("packages");
+        project.getDependencies().add("packages", "pypi:demo:1.0");
+        project.getDependencies().add("packages", "pypi:other:2.0");
+        // Neither replaced by the locked files nor checked against the locked declarations
+        var dependencies = project.getConfigurations().getByName("packages").getIncoming().getDependencies();
+        assertEquals(List.of("pypi:demo:1.0", "pypi:other:2.0"), dependencies.stream().map(PyPILockfileTest::notation).toList());
+    }
+
+    @Test
+    void recognizesTheLockTask() {
+        assertTrue(PyPIGradlePlugin.requestsLockTask(List.of("build", "lockPypi")));
+        assertTrue(PyPIGradlePlugin.requestsLockTask(List.of(":sub:lockPypi")));
+        assertFalse(PyPIGradlePlugin.requestsLockTask(List.of("build", "lockPypiLater")));
+        assertFalse(PyPIGradlePlugin.requestsLockTask(List.of()));
+    }
+
+    private static Stream<Throwable> causes(Throwable throwable) {
+        return Stream.iterate(throwable, Objects::nonNull, Throwable::getCause);
+    }
+
+    private static String notation(Dependency dependency) {
+        return dependency.getGroup() + ":" + dependency.getName() + ":" + dependency.getVersion();
+    }
+}
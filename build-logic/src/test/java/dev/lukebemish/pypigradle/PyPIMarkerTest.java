@@ -0,0 +1,111 @@
+package dev.lukebemish.pypigradle;
+
+import org.gradle.nativeplatform.MachineArchitecture;
+import org.gradle.nativeplatform.OperatingSystemFamily;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class PyPIMarkerTest {
+    private static final PythonInterpreter PYTHON_3_12 = PythonInterpreter.parse("3.12");
+    private static final int ALL = PyPIComponentRule.TargetVariant.ALL;
+    private static final int LINUX = PyPIComponentRule.TargetVariant.matching(OperatingSystemFamily.LINUX, null);
+    private static final int MACOS = PyPIComponentRule.TargetVariant.matching(OperatingSystemFamily.MACOS, null);
+    private static final int WINDOWS = PyPIComponentRule.TargetVariant.matching(OperatingSystemFamily.WINDOWS, null);
+    private static final int ARM64 = PyPIComponentRule.TargetVariant.matching(null, MachineArchitecture.ARM64);
+
+    private static int targets(String marker) {
+        return targets(marker, null);
+    }
+
+    private static int targets(String marker, String extra) {
+        return PyPIMarker.compile(marker).targets(PYTHON_3_12, extra);
+    }
+
+    @Test
+    void flippedVersionComparisons() {
+        assertEquals(ALL, targets("'3.8' < python_version"));
+        assertEquals(0, targets("'3.13' <= python_version"));
+        assertEquals(ALL, targets("'3.12' == python_version"));
+        assertEquals(0, targets("'3.12' != python_version"));
+        assertEquals(targets("python_version >= '3.10'"), targets("'3.10' <= python_version"));
+    }
+
+    @Test
+    void flippedPlatformComparisons() {
+        assertEquals(WINDOWS, targets("'win32' == sys_platform"));
+        assertEquals(LINUX | MACOS, targets("'nt' != os_name"));
+    }
+
+    @Test
+    void inAndNotIn() {
+        assertEquals(LINUX, targets("'linux' in sys_platform"));
+        assertEquals(LINUX | MACOS, targets("sys_platform not in 'win32 cygwin'"));
+        assertEquals(MACOS & ARM64, targets("platform_machine in 'arm64 armv7l' and sys_platform == 'darwin'"));
+        assertEquals(ALL, targets("'3.1' in python_full_version"));
+    }
+
+    @Test
+    void fullVersionsCompareAsMajorMinor() {
+        assertEquals(ALL, targets("python_full_version >= '3.12'"));
+        assertEquals(0, targets("python_full_version < '3.12'"));
+        assertEquals(ALL, targets("python_full_version == '3.12.*'"));
+        assertEquals(0, targets("implementation_version >= '3.13'"));
+        assertEquals(0, targets("'3.13' <= python_full_version"));
+    }
+
+    @Test
+    void patchLevelFullVersionsHoldEverywhere() {
+        // Any of these may or may not hold depending on which 3.12 release runs the package
+        assertEquals(ALL, targets("python_full_version >= '3.12.1'"));
+        assertEquals(ALL, targets("python_full_version < '3.12.4'"));
+        assertEquals(ALL, targets("python_full_version == '3.12.0'"));
+        assertEquals(ALL, targets("python_full_version != '3.12.0'"));
+        assertEquals(ALL, targets("python_full_version >= '3.12.0rc1'"));
+        assertEquals(ALL, targets("'3.12.1' > implementation_version"));
+        assertEquals(ALL, targets("python_full_version in '3.12.1 3.12.2'"));
+        // Patch releases of other series compare the same against every 3.12 release
+        assertEquals(0, targets("python_full_version < '3.8.10'"));
+        assertEquals(ALL, targets("python_full_version >= '3.11.4'"));
+        assertEquals(0, targets("python_full_version == '3.13.0'"));
+        // Other variables in the same marker still narrow it down
+        assertEquals(WINDOWS, targets("python_full_version >= '3.12.1' and sys_platform == 'win32'"));
+        // python_version has no patch component, so it still compares as written
+        assertEquals(0, targets("python_version > '3.12.1'"));
+    }
+
+    @Test
+    void andBindsTighterThanOr() {
+        assertEquals(WINDOWS | LINUX & ARM64, targets("sys_platform == 'win32' or sys_platform == 'linux' and platform_machine == 'aarch64'"));
+        assertEquals((WINDOWS | LINUX) & ARM64, targets("(sys_platform == 'win32' or sys_platform == 'linux') and platform_machine in 'aarch64 ARM64'"));
+    }
+
+    @Test
+    void extrasCompareNormalized() {
+        assertEquals(ALL, targets("extra == 'Socks_Proxy'", "socks-proxy"));
+        assertEquals(ALL, targets("'socks.proxy' == extra", "socks-proxy"));
+        assertEquals(0, targets("extra == 'socks'", "socks-proxy"));
+        assertEquals(0, targets("extra == 'socks'"));
+    }
+
+    @Test
+    void extrasAreCollectedNormalized() {
+        assertEquals(List.of("socks-proxy", "all"), PyPIMarker.compile("extra == 'Socks__Proxy' or ('ALL' == extra and python_version >= '3.8')").extras());
+        assertEquals(List.of(), PyPIMarker.compile("sys_platform == 'linux'").extras());
+    }
+
+    @Test
+    void unknownVariablesHoldEverywhere() {
+        assertEquals(ALL, targets("platform_release >= '5.0'"));
+    }
+
+    @Test
+    void rejectsInvalidMarkers() {
+        for (var marker : List.of("python_version <<< '3'", "python_version >= '3.8' and", "(sys_platform == 'linux'", "sys_platform == 'linux")) {
+            assertThrows(IllegalArgumentException.class, () -> PyPIMarker.compile(marker), marker);
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package dev.lukebemish.pypigradle;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PyPIMetadataCacheTest {
+    private static final Duration RETENTION = Duration.ofDays(30);
+
+    @TempDir
+    Path directory;
+
+    private static PyPIMetadata release(String requirement) {
+        var file = new PyPIMetadata.UrlInfo("demo-1.0-py3-none-any.whl", "bdist_wheel", "https://example.com/demo-1.0-py3-none-any.whl", Map.of("sha256", "00"), ">=3.8", false, false);
+        return new PyPIMetadata(new PyPIMetadata.Info(List.of(requirement), List.of("extra")), List.of(file));
+    }
+
+    private static PyPIMetadataCache.Listing listing(long fetchedAt) {
+        var file = new PyPIMetadata.UrlInfo("demo-1.0-py3-none-any.whl", "bdist_wheel", "https://example.com/demo-1.0-py3-none-any.whl", Map.of(), null, false, false);
+        return new PyPIMetadataCache.Listing("\"etag\"", fetchedAt, PyPIIndexMetadata.of(Map.of("1.0", List.of(file))));
+    }
+
+    @Test
+    void roundTrips() throws IOException {
+        var file = directory.resolve("metadata.bin");
+        var cache = new PyPIMetadataCache();
+        cache.putRelease("demo", "1.0", release("other>=1"));
+        cache.putListing("demo", listing(5));
+        assertTrue(cache.isDirty());
+        cache.save(file, RETENTION);
+        assertFalse(cache.isDirty());
+
+        var loaded = PyPIMetadataCache.load(file);
+        assertEquals(release("other>=1"), loaded.release("demo", "1.0"));
+        var listing = loaded.listing("demo");
+        assertNotNull(listing);
+        assertEquals("\"etag\"", listing.etag());
+        assertEquals(5, listing.fetchedAt());
+        assertEquals(List.of("1.0"), List.copyOf(listing.metadata().releases().keySet()));
+    }
+
+    @Test
+    void mergesWithWhatAnotherBuildSaved() throws IOException {
+        var file = directory.resolve("metadata.bin");
+        var first = new PyPIMetadataCache();
+        var second = new PyPIMetadataCache();
+        first.putRelease("a", "1.0", release("x"));
+        first.putListing("demo", listing(10));
+        second.putRelease("b", "1.0", release("y"));
+        second.putListing("demo", listing(5));
+        first.save(file, RETENTION);
+        second.save(file, RETENTION);
+
+        var loaded = PyPIMetadataCache.load(file);
+        assertNotNull(loaded.release("a", "1.0"));
+        assertNotNull(loaded.release("b", "1.0"));
+        // The listing fetched last wins, whichever build saved last
+        assertEquals(10, loaded.listing("demo").fetchedAt());
+    }
+
+    @Test
+    void concurrentSavesKeepEveryEntry() throws Exception {
+        var file = directory.resolve("metadata.bin");
+        int builds = 8;
+        var futures = new ArrayList<Future<?>>();
+        try (var executor = Executors.newFixedThreadPool(builds)) {
+            for (int i = 0; i < builds; i++) {
+                var cache = new PyPIMetadataCache();
+                cache.putRelease("package" + i, "1.0", release("x"));
+                futures.add(executor.submit(() -> {
+                    cache.save(file, RETENTION);
+                    return null;
+                }));
+            }
+            for (var future : futures) {
+                future.get();
+            }
+        }
+        var loaded = PyPIMetadataCache.load(file);
+        for (int i = 0; i < builds; i++) {
+            assertNotNull(loaded.release("package" + i, "1.0"), "package" + i);
+        }
+    }
+
+    @Test
+    void prunesEntriesNoBuildUsed() throws IOException {
+        var file = directory.resolve("metadata.bin");
+        var now = new AtomicLong(0);
+        var cache = new PyPIMetadataCache(now::get);
+        cache.putRelease("used", "1.0", release("x"));
+        cache.putRelease("unused", "1.0", release("y"));
+        cache.putListing("unused", listing(0));
+        cache.save(file, RETENTION);
+
+        now.set(Duration.ofDays(20).toMillis());
+        var later = PyPIMetadataCache.load(file, now::get);
+        assertNotNull(later.release("used", "1.0"));
+        // Marking an entry as used has the file written again
+        assertTrue(later.isDirty());
+        later.save(file, RETENTION);
+
+        now.set(Duration.ofDays(40).toMillis());
+        var pruned = PyPIMetadataCache.load(file, now::get);
+        pruned.save(file, RETENTION);
+        var loaded = PyPIMetadataCache.load(file, now::get);
+        assertNotNull(loaded.release("used", "1.0"));
+        assertNull(loaded.release("unused", "1.0"));
+        assertNull(loaded.listing("unused"));
+    }
+
+    @Test
+    void usingAnEntryTwiceInADayDoesNotDirtyTheCache() throws IOException {
+        var file = directory.resolve("metadata.bin");
+        var now = new AtomicLong(0);
+        var cache = new PyPIMetadataCache(now::get);
+        cache.putRelease("demo", "1.0", release("x"));
+        cache.save(file, RETENTION);
+
+        now.set(Duration.ofHours(12).toMillis());
+        var loaded = PyPIMetadataCache.load(file, now::get);
+        assertNotNull(loaded.release("demo", "1.0"));
+        assertFalse(loaded.isDirty());
+    }
+
+    @Test
+    void startsEmptyFromCorruptFiles() throws IOException {
+        var file = directory.resolve("metadata.bin");
+        var cache = new PyPIMetadataCache();
+        cache.putRelease("demo", "1.0", release("x"));
+        cache.save(file, RETENTION);
+        var bytes = Files.readAllBytes(file);
+
+        Files.write(file, Arrays.copyOf(bytes, bytes.length / 2));
+        assertNull(PyPIMetadataCache.load(file).release("demo", "1.0"), "truncated");
+
+        Files.writeString(file, "not gzip");
+        assertNull(PyPIMetadataCache.load(file).release("demo", "1.0"), "not gzip");
+
+        byte[] header;
+        try (var input = new GZIPInputStream(new ByteArrayInputStream(bytes))) {
+            header = input.readNBytes(8);
+        }
+        for (int length : new int[] {-1, Integer.MAX_VALUE}) {
+            try (var output = new DataOutputStream(new GZIPOutputStream(Files.newOutputStream(file)))) {
+                // The header of the current format, then an impossible count of listings
+                output.write(header);
+                output.writeInt(length);
+            }
+            assertNull(PyPIMetadataCache.load(file).listing("demo"), "length " + length);
+        }
+    }
+
+    @Test
+    void missingFileIsEmpty() throws IOException {
+        var cache = PyPIMetadataCache.load(directory.resolve("missing.bin"));
+        assertNull(cache.listing("demo"));
+        assertFalse(cache.isDirty());
+    }
+}
@@ -0,0 +1,309 @@
+package dev.lukebemish.pypigradle;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.gradle.api.InvalidUserDataException;
+import org.gradle.api.Project;
+import org.gradle.testfixtures.ProjectBuilder;
+import org.jspecify.annotations.Nullable;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+class PyPIMetadataServiceTest {
+    private static final AtomicInteger SERVICES = new AtomicInteger();
+
+    @TempDir
+    Path directory;
+
+    private HttpServer server;
+    private Project project;
+    // Responses by path, and how many requests each path has had
+    private final Map<String, Response> responses = new ConcurrentHashMap<>();
+    private final Map<String, AtomicInteger> requests = new ConcurrentHashMap<>();
+    // Injected into every response, and how many requests were being handled at once, at most
+    private volatile Duration latency = Duration.ZERO;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+
+    private record Response(int status, String body, @Nullable String etag) {}
+
+    @BeforeEach
+    void start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/", this::handle);
+        server.start();
+        project = ProjectBuilder.builder().withProjectDir(directory.resolve("project").toFile()).build();
+    }
+
+    @AfterEach
+    void stop() {
+        server.stop(0);
+    }
+
+    void handle(HttpExchange exchange) throws IOException {
+        maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+        try {
+            Thread.sleep(latency);
+            respond(exchange);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            inFlight.decrementAndGet();
+        }
+    }
+
+    private void respond(HttpExchange exchange) throws IOException {
+        var path = exchange.getRequestURI().getPath();
+        requests.computeIfAbsent(path, p -> new AtomicInteger()).incrementAndGet();
+        var response = responses.getOrDefault(path, new Response(404, "", null));
+        if (response.etag() != null) {
+            exchange.getResponseHeaders().set("ETag", response.etag());
+            if (response.etag().equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                exchange.sendResponseHeaders(304, -1);
+                exchange.close();
+                return;
+            }
+        }
+        var body = response.body().getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(response.status(), body.length == 0 ? -1 : body.length);
+        try (var output = exchange.getResponseBody()) {
+            output.write(body);
+        }
+    }
+
+    private String index() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/pypi/";
+    }
+
+    private void serve(String name, @Nullable String etag, String... versions) {
+        var releases = new StringBuilder();
+        for (var version : versions) {
+            if (!releases.isEmpty()) {
+                releases.append(", ");
+            }
+            releases.append("\"").append(version).append("\": [{\"filename\": \"").append(name).append("-").append(version)
+                    .append("-py3-none-any.whl\", \"packagetype\": \"bdist_wheel\", \"yanked\": false}]");
+        }
+        responses.put("/pypi/" + name + "/json", new Response(200, "{\"releases\": {" + releases + "}}", etag));
+    }
+
+    private void serveRelease(String name, String version, String... requirements) {
+        var requiresDist = String.join(", ", List.of(requirements).stream().map(requirement -> "\"" + requirement + "\"").toList());
+        var file = name + "-" + version + "-py3-none-any.whl";
+        responses.put("/pypi/" + name + "/" + version + "/json", new Response(200, """
+                {"info": {"requires_dist": [%s]}, "urls": [{"filename": "%s", "packagetype": "bdist_wheel", "url": "https://files.example.com/%s", "digests": {"sha256": "00"}, "yanked": false}]}
+                """.formatted(requiresDist, file, file), null));
+    }
+
+    private int requests(String path) {
+        var count = requests.get(path);
+        return count == null ? 0 : count.get();
+    }
+
+    private PyPIMetadataService service(Duration listingTtl, boolean offline) {
+        return service(listingTtl, offline, 4);
+    }
+
+    private PyPIMetadataService service(Duration listingTtl, boolean offline, int maxConnections) {
+        return service(new PyPIIndex(PyPIIndex.Kind.JSON, index()), listingTtl, offline, maxConnections);
+    }
+
+    private PyPIMetadataService service(PyPIIndex index, Duration listingTtl, boolean offline, int maxConnections) {
+        var provider = project.getGradle().getSharedServices().registerIfAbsent("pypiMetadata" + SERVICES.incrementAndGet(), PyPIMetadataService.class, spec -> {
+            spec.getParameters().getIndexes().add(index.encode());
+            spec.getParameters().getCacheFile().set(directory.resolve("metadata.bin").toFile());
+            spec.getParameters().getListingTtl().set(listingTtl);
+            spec.getParameters().getCacheRetention().set(Duration.ofDays(30));
+            spec.getParameters().getOffline().set(offline);
+            spec.getParameters().getMaxConnections().set(maxConnections);
+        });
+        return provider.get();
+    }
+
+    @Test
+    void cachedListingsAreUsedWithoutARequestWithinTheirTtl() {
+        serve("demo", null, "1.0");
+        try (var first = service(Duration.ofHours(1), false)) {
+            assertNotNull(first.listing("demo"));
+        }
+        try (var second = service(Duration.ofHours(1), false)) {
+            assertNotNull(second.listing("demo"));
+        }
+        assertEquals(1, requests("/pypi/demo/json"));
+    }
+
+    @Test
+    void staleListingsAreRevalidated() {
+        serve("demo", "\"v1\"", "1.0");
+        try (var first = service(Duration.ZERO, false)) {
+            assertNotNull(first.listing("demo"));
+        }
+        // The server answers 304 to the stored ETag, so the cached listing is used again
+        responses.put("/pypi/demo/json", new Response(500, "", "\"v1\""));
+        try (var second = service(Duration.ZERO, false)) {
+            var listing = second.listing("demo");
+            assertNotNull(listing);
+            assertEquals(List.of("1.0"), List.copyOf(listing.releases().keySet()));
+        }
+        assertEquals(2, requests("/pypi/demo/json"));
+
+        serve("demo", "\"v2\"", "1.0", "2.0");
+        try (var third = service(Duration.ZERO, false)) {
+            assertEquals(List.of("1.0", "2.0"), List.copyOf(third.listing("demo").releases().keySet()));
+        }
+    }
+
+    @Test
+    void releasesAreNeverFetchedTwice() {
+        serve("demo", null, "1.0");
+        serveRelease("demo", "1.0", "other>=1");
+        try (var first = service(Duration.ZERO, false)) {
+            assertEquals(List.of("other>=1"), first.release("demo", "1.0").info().requiresDist());
+        }
+        try (var second = service(Duration.ZERO, false)) {
+            assertEquals(List.of("other>=1"), second.release("demo", "1.0").info().requiresDist());
+        }
+        assertEquals(1, requests("/pypi/demo/1.0/json"));
+    }
+
+    @Test
+    void offlineBuildsOnlyUseTheCache() {
+        serve("demo", null, "1.0");
+        try (var offline = service(Duration.ZERO, true)) {
+            assertNull(offline.listing("demo"));
+        }
+        assertEquals(0, requests("/pypi/demo/json"));
+
+        try (var online = service(Duration.ZERO, false)) {
+            assertNotNull(online.listing("demo"));
+        }
+        // However stale the cached listing is, an offline build uses it as it is
+        try (var offline = service(Duration.ZERO, true)) {
+            assertNotNull(offline.listing("demo"));
+        }
+        assertEquals(1, requests("/pypi/demo/json"));
+    }
+
+    @Test
+    void onlyMissingPackagesAreMissing() {
+        responses.put("/pypi/broken/json", new Response(500, "", null));
+        try (var service = service(Duration.ZERO, false)) {
+            assertNull(service.listing("missing"));
+            assertThrows(UncheckedIOException.class, () -> service.listing("broken"));
+        }
+    }
+
+    private void awaitRequests(String path, int count) throws InterruptedException {
+        var deadline = System.nanoTime() + Duration.ofSeconds(10).toNanos();
+        while (requests(path) < count) {
+            if (System.nanoTime() > deadline) {
+                fail("Timed out waiting for " + count + " requests to " + path);
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    void prefetchesEachPackageOnce() throws InterruptedException {
+        serve("root", null, "1.0");
+        serveRelease("root", "1.0", "shared>=1", "other");
+        serve("other", null, "1.0");
+        serveRelease("other", "1.0", "shared");
+        serve("shared", null, "1.0", "2.0");
+        serveRelease("shared", "2.0");
+        var python = PythonInterpreter.parse("3.12");
+        try (var service = service(Duration.ZERO, false)) {
+            service.prefetch("root", "1.0", python);
+            service.prefetch("root", "1.0", python);
+            awaitRequests("/pypi/shared/2.0/json", 1);
+            // What was prefetched is used by the resolution itself
+            assertEquals(List.of(), service.release("shared", "2.0").info().requiresDist());
+            assertNotNull(service.release("other", "1.0"));
+        }
+        for (var path : List.of("/pypi/root/json", "/pypi/root/1.0/json", "/pypi/other/json", "/pypi/other/1.0/json", "/pypi/shared/json", "/pypi/shared/2.0/json")) {
+            assertEquals(1, requests(path), path);
+        }
+    }
+
+    @Test
+    void prefetchesHoldToTheConnectionLimit() throws InterruptedException {
+        var dependencies = List.of("a", "b", "c", "d", "e", "f");
+        serve("root", null, "1.0");
+        serveRelease("root", "1.0", dependencies.toArray(String[]::new));
+        for (var dependency : dependencies) {
+            serve(dependency, null, "1.0");
+            serveRelease(dependency, "1.0");
+        }
+        latency = Duration.ofMillis(100);
+        try (var service = service(Duration.ZERO, false, 2)) {
+            service.prefetch("root", "1.0", PythonInterpreter.parse("3.12"));
+            for (var dependency : dependencies) {
+                awaitRequests("/pypi/" + dependency + "/1.0/json", 1);
+            }
+        }
+        assertEquals(2, maxInFlight.get());
+    }
+
+    private void serveSimple() {
+        responses.put("/simple/demo/", new Response(200, """
+                {"meta": {"api-version": "1.1"}, "name": "demo", "files": [
+                  {"filename": "demo-1.0-py3-none-any.whl", "url": "../../files/demo-1.0-py3-none-any.whl#sha256=00", "hashes": {"sha256": "00"}, "core-metadata": {"sha256": "11"}},
+                  {"filename": "demo-2.0-py3-none-any.whl", "url": "../../files/demo-2.0-py3-none-any.whl", "hashes": {"sha256": "22"}}
+                ]}
+                """, null));
+        responses.put("/files/demo-1.0-py3-none-any.whl.metadata", new Response(200, "Metadata-Version: 2.1\nName: demo\nRequires-Dist: dep>=1\n\nDescription\n", null));
+    }
+
+    @Test
+    void simpleIndexesServeCoreMetadata() {
+        serveSimple();
+        var simple = new PyPIIndex(PyPIIndex.Kind.SIMPLE, "http://127.0.0.1:" + server.getAddress().getPort() + "/simple/");
+        try (var service = service(simple, Duration.ZERO, false, 4)) {
+            var release = service.release("demo", "1.0");
+            assertEquals(List.of("dep>=1"), release.info().requiresDist());
+            assertEquals("http://127.0.0.1:" + server.getAddress().getPort() + "/files/demo-1.0-py3-none-any.whl", release.urls().getFirst().url());
+        }
+    }
+
+    @Test
+    void simpleIndexesWithoutCoreMetadataNeedAJsonApi() {
+        serveSimple();
+        serveRelease("demo", "2.0", "other");
+        var base = "http://127.0.0.1:" + server.getAddress().getPort();
+        try (var service = service(new PyPIIndex(PyPIIndex.Kind.SIMPLE, base + "/simple/"), Duration.ZERO, false, 4)) {
+            var exception = assertThrows(InvalidUserDataException.class, () -> service.release("demo", "2.0"));
+            assertTrue(exception.getMessage().contains("simpleIndex(url, jsonUrl)"), exception.getMessage());
+        }
+        try (var service = service(new PyPIIndex(PyPIIndex.Kind.SIMPLE, base + "/simple/", index()), Duration.ZERO, false, 4)) {
+            var release = service.release("demo", "2.0");
+            assertEquals(List.of("other"), release.info().requiresDist());
+            // The files are still the ones the simple index lists
+            assertEquals(base + "/files/demo-2.0-py3-none-any.whl", release.urls().getFirst().url());
+        }
+        // No wheel is ever downloaded to read its metadata
+        assertEquals(0, requests("/files/demo-2.0-py3-none-any.whl"));
+    }
+}
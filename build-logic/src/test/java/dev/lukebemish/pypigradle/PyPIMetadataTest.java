@@ -0,0 +1,59 @@
+package dev.lukebemish.pypigradle;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class PyPIMetadataTest {
+    private static final PythonInterpreter PYTHON_3_12 = PythonInterpreter.parse("3.12");
+
+    private static PyPIMetadata release(String json) {
+        return PyPIMetadata.fromJson(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    void readsDeclaredExtrasNormalized() {
+        var release = release("""
+                {"info": {"requires_dist": null, "provides_extra": ["Socks", "use_chardet_on_py3"], "summary": "ignored"}, "urls": []}
+                """);
+        assertEquals(List.of("socks", "use-chardet-on-py3"), release.info().providesExtra());
+        assertNull(release.info().requiresDist());
+    }
+
+    @Test
+    void releasesWithoutDeclaredExtrasHaveNone() {
+        assertEquals(List.of(), release("""
+                {"info": {"requires_dist": ["dep"], "provides_extra": null}, "urls": []}
+                """).info().providesExtra());
+        assertEquals(List.of(), release("""
+                {"info": {"requires_dist": ["dep"]}, "urls": []}
+                """).info().providesExtra());
+    }
+
+    @Test
+    void separatesTheRequirementsOfExtras() {
+        var info = new PyPIMetadata.Info(List.of(
+                "charset-normalizer<4,>=2",
+                "PySocks!=1.5.7,>=1.5.6; extra == \"socks\"",
+                "chardet<6,>=3.0.2; extra == \"Use_Chardet_on_Py3\"",
+                "win-inet-pton; sys_platform == \"win32\" and extra == \"socks\""
+        ), List.of("socks", "use-chardet-on-py3"));
+        assertEquals(List.of("charset-normalizer"), info.parsedRequirements(PYTHON_3_12).stream().map(PyPIMetadata.DistRequirement::name).toList());
+        var extraRequirements = info.extraRequirements(PYTHON_3_12);
+        assertEquals(List.of("pysocks", "chardet", "win-inet-pton"), extraRequirements.stream().map(PyPIMetadata.DistRequirement::name).map(PyPIIndex::normalize).toList());
+        assertEquals(List.of(List.of("socks"), List.of("use-chardet-on-py3"), List.of("socks")), extraRequirements.stream().map(PyPIMetadata.DistRequirement::markerExtras).toList());
+    }
+
+    @Test
+    void readsTheExtrasARequirementRequests() {
+        var info = new PyPIMetadata.Info(List.of("requests[socks, security] >=2"), List.of());
+        var requirement = info.parsedRequirements(PYTHON_3_12).getFirst();
+        assertEquals("requests", requirement.name());
+        assertEquals(List.of("socks", "security"), requirement.extras());
+    }
+}
@@ -0,0 +1,136 @@
+package dev.lukebemish.pypigradle;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PyPISimpleIndexTest {
+    private static final String PAGE = """
+            {
+              "meta": {"api-version": "1.1"},
+              "name": "demo",
+              "files": [
+                {"filename": "demo-1.0-py3-none-any.whl", "url": "../../packages/demo-1.0-py3-none-any.whl#sha256=00", "hashes": {"sha256": "00"}, "requires-python": ">=3.8", "core-metadata": {"sha256": "11"}},
+                {"filename": "demo-1.0.tar.gz", "url": "https://files.example.com/demo-1.0.tar.gz", "hashes": {}, "yanked": "broken build"},
+                {"filename": "demo-1.1-cp312-cp312-manylinux_2_17_x86_64.whl", "url": "demo-1.1-cp312-cp312-manylinux_2_17_x86_64.whl", "hashes": {}, "data-dist-info-metadata": true, "yanked": false},
+                {"filename": "demo-1.2-py3.8.egg", "url": "demo-1.2-py3.8.egg", "hashes": {}}
+              ],
+              "versions": ["1.0", "1.1", "1.2"]
+            }
+            """;
+
+    private static PyPIIndexMetadata page() {
+        return PyPISimpleIndex.fromJson(new ByteArrayInputStream(PAGE.getBytes(StandardCharsets.UTF_8)), URI.create("https://example.com/simple/demo/"));
+    }
+
+    private static PyPIMetadata.Info coreMetadata(String metadata) throws IOException {
+        return PyPISimpleIndex.coreMetadata(new ByteArrayInputStream(metadata.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    void groupsFilesByTheVersionInTheirName() {
+        var listing = page();
+        // Files of kinds that cannot be used make no release
+        assertEquals(List.of("1.0", "1.1"), List.copyOf(listing.releases().keySet()));
+        var files = listing.files("1.0");
+        assertNotNull(files);
+        assertEquals(List.of("demo-1.0-py3-none-any.whl", "demo-1.0.tar.gz"), files.stream().map(PyPIMetadata.UrlInfo::name).toList());
+        assertEquals(List.of("bdist_wheel", "sdist"), files.stream().map(PyPIMetadata.UrlInfo::packageType).toList());
+    }
+
+    @Test
+    void readsFileDetails() {
+        var wheel = page().files("1.0").getFirst();
+        // Relative to the page, without the hash fragment
+        assertEquals("https://example.com/packages/demo-1.0-py3-none-any.whl", wheel.url());
+        assertEquals(Map.of("sha256", "00"), wheel.digests());
+        assertEquals(">=3.8", wheel.requiresPython());
+        assertTrue(wheel.coreMetadata());
+        assertFalse(wheel.yanked());
+
+        var sdist = page().files("1.0").get(1);
+        // A yank reason means the file was yanked
+        assertTrue(sdist.yanked());
+        assertFalse(sdist.coreMetadata());
+
+        var older = page().files("1.1").getFirst();
+        assertEquals("https://example.com/simple/demo/demo-1.1-cp312-cp312-manylinux_2_17_x86_64.whl", older.url());
+        assertTrue(older.coreMetadata(), "data-dist-info-metadata is the older name of core-metadata");
+    }
+
+    @Test
+    void readsVersionsFromFilenames() {
+        assertEquals("1.0", PyPISimpleIndex.version("demo-1.0-py3-none-any.whl", "bdist_wheel"));
+        assertEquals("1.0.post1", PyPISimpleIndex.version("demo_pkg-1.0.post1.tar.gz", "sdist"));
+        assertEquals("2.0", PyPISimpleIndex.version("demo-2.0.zip", "sdist"));
+        assertNull(PyPISimpleIndex.version("demo-1.0.egg", "bdist_egg"));
+        assertNull(PyPISimpleIndex.version("demo.tar.gz", "sdist"));
+    }
+
+    @Test
+    void readsRequirementsAndExtrasFromCoreMetadata() throws IOException {
+        var info = coreMetadata("""
+                Metadata-Version: 2.1
+                Name: demo
+                Requires-Dist: dep>=1
+                Requires-Dist: other; extra ==
+                  "socks"
+                requires-dist: lower-case
+                Provides-Extra: socks
+                Provides-Extra: Use_Chardet
+
+                Requires-Dist: in-the-description
+                """);
+        assertEquals(List.of("dep>=1", "other; extra == \"socks\"", "lower-case"), info.requiresDist());
+        assertEquals(List.of("socks", "use-chardet"), info.providesExtra());
+    }
+
+    @Test
+    void scansDirectories(@TempDir Path directory) throws IOException {
+        try (var zip = new ZipOutputStream(Files.newOutputStream(directory.resolve("Demo_Pkg-1.0-py3-none-any.whl")))) {
+            zip.putNextEntry(new ZipEntry("demo_pkg/__init__.py"));
+            zip.closeEntry();
+            zip.putNextEntry(new ZipEntry("demo_pkg-1.0.dist-info/METADATA"));
+            zip.write("Metadata-Version: 2.1\nName: Demo_Pkg\nRequires-Dist: dep\n".getBytes(StandardCharsets.UTF_8));
+            zip.closeEntry();
+        }
+        Files.createDirectories(directory.resolve("nested"));
+        Files.writeString(directory.resolve("nested/demo-pkg-2.0.tar.gz"), "");
+        Files.writeString(directory.resolve("README.txt"), "");
+
+        var index = PyPIDirectoryIndex.scan(directory.toUri());
+        // Looked up by any spelling of the name
+        var listing = index.listing("demo.pkg");
+        assertNotNull(listing);
+        assertEquals(List.of("1.0", "2.0"), listing.releases().keySet().stream().sorted().toList());
+        assertEquals(List.of("dep"), index.release("Demo_Pkg", "1.0").info().requiresDist());
+        // Source distributions do not reliably declare their requirements
+        assertNull(index.release("demo-pkg", "2.0").info().requiresDist());
+        assertNull(index.release("demo-pkg", "3.0"));
+        assertNull(index.listing("missing"));
+    }
+
+    @Test
+    void findsTheMetadataOfAWheel() {
+        assertTrue(PyPIDirectoryIndex.isMetadata("demo-1.0.dist-info/METADATA"));
+        assertFalse(PyPIDirectoryIndex.isMetadata("demo/METADATA"));
+        assertFalse(PyPIDirectoryIndex.isMetadata("demo-1.0.dist-info/nested/METADATA"));
+        assertFalse(PyPIDirectoryIndex.isMetadata("demo-1.0.dist-info/RECORD"));
+    }
+}
@@ -0,0 +1,174 @@
+package dev.lukebemish.pypigradle;
+
+import org.gradle.api.artifacts.transform.TransformOutputs;
+import org.gradle.api.artifacts.transform.TransformParameters;
+import org.gradle.api.file.FileSystemLocation;
+import org.gradle.api.provider.Provider;
+import org.gradle.testfixtures.ProjectBuilder;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PyPIWheelTransformTest {
+    private static final String WHEEL = "demo-1.0-py3-none-any-1.0.whl";
+
+    @TempDir
+    Path directory;
+
+    private Path wheel(Map<String, String> entries) throws IOException {
+        var file = directory.resolve(WHEEL);
+        try (var zip = new ZipOutputStream(Files.newOutputStream(file))) {
+            for (var entry : entries.entrySet()) {
+                zip.putNextEntry(new ZipEntry(entry.getKey()));
+                zip.write(entry.getValue().getBytes(StandardCharsets.UTF_8));
+                zip.closeEntry();
+            }
+        }
+        return file;
+    }
+
+    // A wheel whose RECORD matches its other entries
+    private Path wheel() throws IOException {
+        var entries = new LinkedHashMap<String, String>();
+        entries.put("demo/__init__.py", "VERSION = '1.0'\n");
+        entries.put("demo-1.0.data/purelib/extra.py", "\n");
+        entries.put("demo-1.0.data/scripts/demo", "#!python\n");
+        return wheel(withRecord(entries));
+    }
+
+    private static Map<String, String> withRecord(LinkedHashMap<String, String> entries) {
+        var record = new StringBuilder();
+        for (var entry : entries.entrySet()) {
+            var path = entry.getKey().contains(",") ? "\"" + entry.getKey() + "\"" : entry.getKey();
+            record.append(path).append(",sha256=").append(recordHash(entry.getValue())).append(",").append(entry.getValue().length()).append("\n");
+        }
+        record.append("demo-1.0.dist-info/RECORD,,\n");
+        entries.put("demo-1.0.dist-info/RECORD", record.toString());
+        return entries;
+    }
+
+    private static String recordHash(String contents) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(sha256(contents.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static byte[] sha256(byte[] bytes) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(bytes);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * {@return the directory the wheel was unpacked into}
+     */
+    private Path transform(Path wheel) {
+        var project = ProjectBuilder.builder().withProjectDir(directory.resolve("project").toFile()).build();
+        var input = project.getLayout().file(project.provider(wheel::toFile));
+        var outputs = new Outputs(directory.resolve("outputs"));
+        new PyPIWheelTransform() {
+            @Override
+            public Provider<FileSystemLocation> getInputArtifact() {
+                return input.map(file -> file);
+            }
+
+            @Override
+            public TransformParameters.None getParameters() {
+                throw new UnsupportedOperationException();
+            }
+        }.transform(outputs);
+        return outputs.dir;
+    }
+
+    private static final class Outputs implements TransformOutputs {
+        private final Path root;
+        private Path dir;
+
+        Outputs(Path root) {
+            this.root = root;
+        }
+
+        @Override
+        public File dir(Object path) {
+            dir = root.resolve(path.toString());
+            return dir.toFile();
+        }
+
+        @Override
+        public File file(Object path) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    @Test
+    void unpacksWheelsAsInstalled() throws IOException {
+        var output = transform(wheel());
+        assertEquals("VERSION = '1.0'\n", Files.readString(output.resolve("demo/__init__.py")));
+        // purelib is installed at the root, and other data directories are left where they are
+        assertTrue(Files.exists(output.resolve("extra.py")));
+        assertTrue(Files.exists(output.resolve("demo-1.0.data/scripts/demo")));
+        assertTrue(Files.exists(output.resolve("demo-1.0.dist-info/RECORD")));
+    }
+
+    @Test
+    void readsQuotedRecordPaths() throws IOException {
+        var entries = new LinkedHashMap<String, String>();
+        entries.put("demo/a,b.py", "\n");
+        var output = transform(wheel(withRecord(entries)));
+        assertTrue(Files.exists(output.resolve("demo/a,b.py")));
+    }
+
+    @Test
+    void rejectsEntriesThatDoNotMatchTheRecord() throws IOException {
+        var entries = new LinkedHashMap<String, String>();
+        entries.put("demo/__init__.py", "VERSION = '1.0'\n");
+        var tampered = new LinkedHashMap<>(withRecord(entries));
+        tampered.put("demo/__init__.py", "VERSION = '6.6.6'\n");
+        var exception = assertThrows(IllegalStateException.class, () -> transform(wheel(tampered)));
+        assertTrue(exception.getMessage().contains("demo/__init__.py"), exception.getMessage());
+    }
+
+    @Test
+    void rejectsWheelsMissingWhatTheirRecordLists() throws IOException {
+        var entries = new LinkedHashMap<String, String>();
+        entries.put("demo/__init__.py", "\n");
+        var missing = new LinkedHashMap<>(withRecord(entries));
+        missing.remove("demo/__init__.py");
+        assertThrows(IllegalStateException.class, () -> transform(wheel(missing)));
+    }
+
+    @Test
+    void rejectsWheelsWithoutARecord() throws IOException {
+        assertThrows(IllegalStateException.class, () -> transform(wheel(Map.of("demo/__init__.py", "\n"))));
+    }
+
+    @Test
+    void rejectsEntriesOutsideTheWheel() throws IOException {
+        for (var name : new String[] {"../escaped.py", "demo/../../escaped.py", "demo-1.0.data/purelib/../../../escaped.py"}) {
+            var entries = new LinkedHashMap<String, String>();
+            entries.put(name, "\n");
+            var exception = assertThrows(UncheckedIOException.class, () -> transform(wheel(withRecord(entries))), name);
+            assertTrue(exception.getMessage().contains("outside of its root"), exception.getMessage());
+        }
+        try (var files = Files.walk(directory)) {
+            assertTrue(files.noneMatch(path -> path.getFileName().toString().equals("escaped.py")));
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package dev.lukebemish.pypigradle;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PythonVersionTest {
+    @Test
+    void canonicalNamesRoundTrip() {
+        for (var name : List.of("1.0", "1.0.0", "2!1.0", "1.0a1", "1.0b2", "1.0rc3", "1.0.post1", "1.0.dev4", "1.0a1.post2.dev3", "1.0+ubuntu.1", "0.10.12")) {
+            var version = PythonVersion.of(name);
+            var reparsed = PythonVersion.of(version.getCanonicalName());
+            assertEquals(version, reparsed, name);
+            assertEquals(0, version.compareTo(reparsed), name);
+            assertEquals(version.getCanonicalName(), reparsed.getCanonicalName(), name);
+        }
+    }
+
+    @Test
+    void alternativeSpellingsNormalize() {
+        assertEquals("1.0a1", PythonVersion.of("1.0-alpha.1").getCanonicalName());
+        assertEquals("1.0rc1", PythonVersion.of("1.0c1").getCanonicalName());
+        assertEquals("1.0.post2", PythonVersion.of("1.0-2").getCanonicalName());
+        assertEquals("1.0", PythonVersion.of("v1.0").getCanonicalName());
+    }
+
+    @Test
+    void trailingZerosAreEqual() {
+        assertEquals(PythonVersion.of("1.0"), PythonVersion.of("1.0.0"));
+        assertEquals(PythonVersion.of("1.0").hashCode(), PythonVersion.of("1.0.0").hashCode());
+        assertEquals(0, PythonVersion.of("1").compareTo(PythonVersion.of("1.0.0.0")));
+    }
+
+    @Test
+    void ordersAsPep440() {
+        var ordered = List.of("1.0.dev1", "1.0a1.dev1", "1.0a1", "1.0a1.post1", "1.0b1", "1.0rc1", "1.0", "1.0+local", "1.0.post1.dev1", "1.0.post1", "1.1", "1.10", "2!0.1");
+        for (int i = 0; i < ordered.size(); i++) {
+            for (int j = 0; j < ordered.size(); j++) {
+                var a = PythonVersion.of(ordered.get(i));
+                var b = PythonVersion.of(ordered.get(j));
+                assertEquals(Integer.signum(Integer.compare(i, j)), Integer.signum(a.compareTo(b)), a.getName() + " <=> " + b.getName());
+            }
+        }
+    }
+
+    @Test
+    void localVersionsCompareBySegment() {
+        assertTrue(PythonVersion.of("1.0+abc.5").compareTo(PythonVersion.of("1.0+abc.10")) < 0);
+        assertTrue(PythonVersion.of("1.0+abc").compareTo(PythonVersion.of("1.0+5")) < 0);
+    }
+
+    @Test
+    void compatibleReleaseUpperBoundResetsTheDroppedPart() {
+        assertEquals(PythonVersion.of("1.5.0.dev0"), PythonVersion.of("1.4.5").upperForWildcard(VersionConstraint.EndsAt.AFTER_RELEASE, true));
+        assertEquals(PythonVersion.of("2.0.dev0"), PythonVersion.of("1.4").upperForWildcard(VersionConstraint.EndsAt.AFTER_RELEASE, true));
+        assertEquals(PythonVersion.of("1.5.0.dev0"), PythonVersion.of("1.4").upperForWildcard(VersionConstraint.EndsAt.AFTER_RELEASE, false));
+    }
+
+    @Test
+    void rejectsInvalidVersions() {
+        for (var name : List.of("", "1.0-", "one", "1.0+", "1..0")) {
+            assertThrows(IllegalArgumentException.class, () -> PythonVersion.of(name), name);
+        }
+    }
+}
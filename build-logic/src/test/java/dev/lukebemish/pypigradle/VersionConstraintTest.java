@@ -0,0 +1,108 @@
+package dev.lukebemish.pypigradle;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class VersionConstraintTest {
+    private static final List<String> VERSIONS = List.of("0.9", "1.1", "1.2", "1.2.0.post1", "1.2.5", "1.3a1", "1.3", "1.4.1", "1.4.2", "1.4.9", "1.5", "2.0", "2.2", "2.9", "3.0");
+
+    private static boolean contains(VersionConstraint.Constraints constraints, String version) {
+        return constraints.contains(PythonVersion.of(version));
+    }
+
+    private static void assertComplement(String specifier) {
+        var constraints = new VersionConstraint(specifier).constraints();
+        var complement = constraints.complement();
+        for (var version : VERSIONS) {
+            assertEquals(!contains(constraints, version), contains(complement, version), specifier + " at " + version);
+        }
+        assertEquals(constraints, complement.complement(), specifier);
+    }
+
+    @Test
+    void notEqualExcludesOnlyThatVersion() {
+        var constraints = new VersionConstraint("!=1.2").constraints();
+        assertTrue(contains(constraints, "1.1"));
+        assertFalse(contains(constraints, "1.2"));
+        assertFalse(contains(constraints, "1.2.0"));
+        assertTrue(contains(constraints, "1.2.0.post1"));
+        assertTrue(contains(constraints, "1.3"));
+    }
+
+    @Test
+    void notEqualWildcardExcludesThePrefix() {
+        var constraints = new VersionConstraint("!=1.2.*").constraints();
+        assertTrue(contains(constraints, "1.1"));
+        assertFalse(contains(constraints, "1.2"));
+        assertFalse(contains(constraints, "1.2.5"));
+        assertTrue(contains(constraints, "1.3"));
+    }
+
+    @Test
+    void compatibleReleaseKeepsThePrefix() {
+        var patch = new VersionConstraint("~=1.4.2").constraints();
+        assertFalse(contains(patch, "1.4.1"));
+        assertTrue(contains(patch, "1.4.2"));
+        assertTrue(contains(patch, "1.4.9"));
+        assertFalse(contains(patch, "1.5"));
+
+        var minor = new VersionConstraint("~=2.2").constraints();
+        assertFalse(contains(minor, "2.0"));
+        assertTrue(contains(minor, "2.2"));
+        assertTrue(contains(minor, "2.9"));
+        assertFalse(contains(minor, "3.0"));
+    }
+
+    @Test
+    void compatibleReleaseOfThreePartsStopsAtTheNextMinor() {
+        var constraints = new VersionConstraint("~=1.4.5").constraints();
+        assertFalse(contains(constraints, "1.4.4"));
+        assertTrue(contains(constraints, "1.4.5"));
+        assertTrue(contains(constraints, "1.4.9"));
+        assertFalse(contains(constraints, "1.5.0.dev0"));
+        assertFalse(contains(constraints, "1.5.0"));
+        assertFalse(contains(constraints, "1.5.3"));
+    }
+
+    @Test
+    void complementsOfExclusions() {
+        assertComplement("!=1.2");
+        assertComplement("!=1.2.*");
+        assertComplement(">=1.1,!=1.2,!=1.4.*");
+    }
+
+    @Test
+    void complementsOfCompatibleReleases() {
+        assertComplement("~=1.4.2");
+        assertComplement("~=2.2");
+        assertComplement("~=1.2,!=1.3");
+    }
+
+    @Test
+    void exactPinsKeepTheirOwnSpelling() {
+        assertEquals(new VersionConstraint("==1.0.0").constraints(), new VersionConstraint("==1.0").constraints());
+        assertEquals("1.0.0", new VersionConstraint("==1.0.0").gradleConstraint().strictly());
+        assertEquals("1.0", new VersionConstraint("==1.0").gradleConstraint().strictly());
+    }
+
+    @Test
+    void exclusionsAreRejectedInsideOneStrictRange() {
+        var gradle = new VersionConstraint(">=1.1,<2.0,!=1.2").gradleConstraint();
+        assertEquals("[1.1,2.0)", gradle.strictly());
+        assertArrayEquals(new String[] {"1.2"}, gradle.reject());
+        assertNull(new VersionConstraint(">=2.0,<1.0").gradleConstraint().strictly());
+    }
+
+    @Test
+    void complementOfEverythingIsNothing() {
+        assertEquals(VersionConstraint.Constraints.NONE, VersionConstraint.Constraints.ANY.complement());
+        assertEquals(VersionConstraint.Constraints.ANY, VersionConstraint.Constraints.NONE.complement());
+    }
+}
@@ -0,0 +1,148 @@
+package dev.lukebemish.pypigradle;
+
+import org.gradle.nativeplatform.MachineArchitecture;
+import org.gradle.nativeplatform.OperatingSystemFamily;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Objects;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class WheelFilenameTest {
+    private static final PythonInterpreter CP312 = new PythonInterpreter(3, 12);
+
+    private static int index(String operatingSystemFamily, String machineArchitecture) {
+        return Integer.numberOfTrailingZeros(PyPIComponentRule.TargetVariant.matching(operatingSystemFamily, machineArchitecture));
+    }
+
+    private static final int LINUX_X86_64 = index(OperatingSystemFamily.LINUX, MachineArchitecture.X86_64);
+    private static final int MACOS_ARM64 = index(OperatingSystemFamily.MACOS, MachineArchitecture.ARM64);
+
+    private static WheelFilename wheel(String tags) {
+        return Objects.requireNonNull(WheelFilename.parse("demo-1.0-" + tags + ".whl"));
+    }
+
+    private static int platformScore(String platform, int target) {
+        return platformScore(platform, target, WheelFilename.ANY_BASELINE);
+    }
+
+    private static int platformScore(String platform, int target, int baseline) {
+        return wheel("py3-none-" + platform).platformScore(target, baseline);
+    }
+
+    // Each platform must score strictly higher than the ones after it
+    private static void assertOrder(int target, int baseline, String... platforms) {
+        for (int i = 1; i < platforms.length; i++) {
+            assertTrue(platformScore(platforms[i - 1], target, baseline) > platformScore(platforms[i], target, baseline), platforms[i - 1] + " should beat " + platforms[i]);
+        }
+    }
+
+    @Test
+    void parsesFilenames() {
+        var wheel = WheelFilename.parse("Demo_Pkg-1.0-1-cp312-abi3.none-manylinux_2_17_x86_64.manylinux2014_x86_64.WHL");
+        assertNotNull(wheel);
+        assertEquals("Demo_Pkg", wheel.name());
+        assertEquals("1", wheel.build());
+        assertEquals(List.of("abi3", "none"), wheel.abiTags());
+        assertEquals(List.of("manylinux_2_17_x86_64", "manylinux2014_x86_64"), wheel.platformTags());
+        assertTrue((wheel.targets() & (1 << LINUX_X86_64)) != 0);
+        assertEquals(wheel.targets(), WheelFilename.targets("Demo_Pkg-1.0-1-cp312-abi3.none-manylinux_2_17_x86_64.manylinux2014_x86_64.WHL"));
+    }
+
+    @Test
+    void rejectsInvalidFilenames() {
+        assertNull(WheelFilename.parse("demo-1.0.tar.gz"));
+        assertNull(WheelFilename.parse("demo-1.0-py3-none.whl"));
+        assertNull(WheelFilename.parse("demo-1.0-1-2-py3-none-any.whl"));
+        assertEquals(0, WheelFilename.targets("demo-1.0-py3-none.whl"));
+    }
+
+    @Test
+    void prefersTheNewestLinuxBaseline() {
+        assertOrder(LINUX_X86_64, WheelFilename.ANY_BASELINE,
+                "manylinux_2_34_x86_64",
+                "manylinux_2_28_x86_64",
+                "manylinux2014_x86_64",
+                "manylinux2010_x86_64",
+                "manylinux1_x86_64",
+                "linux_x86_64",
+                "any"
+        );
+        // The legacy aliases score the same as the glibc versions they stand for
+        assertEquals(platformScore("manylinux_2_17_x86_64", LINUX_X86_64), platformScore("manylinux2014_x86_64", LINUX_X86_64));
+        assertEquals(platformScore("manylinux_2_5_x86_64", LINUX_X86_64), platformScore("manylinux1_x86_64", LINUX_X86_64));
+        assertEquals(0, platformScore("any", LINUX_X86_64));
+        assertEquals(100, platformScore("linux_x86_64", LINUX_X86_64));
+    }
+
+    @Test
+    void skipsLinuxWheelsNewerThanTheBaseline() {
+        var baseline = WheelFilename.baseline("2.17");
+        assertEquals(-1, platformScore("manylinux_2_28_x86_64", LINUX_X86_64, baseline));
+        assertEquals(-1, platformScore("manylinux_2_18_x86_64", LINUX_X86_64, baseline));
+        // Of the rest, the newest still wins
+        assertOrder(LINUX_X86_64, baseline,
+                "manylinux2014_x86_64",
+                "manylinux2010_x86_64",
+                "manylinux1_x86_64",
+                "any"
+        );
+        assertEquals(platformScore("manylinux_2_28_x86_64.manylinux2014_x86_64", LINUX_X86_64), platformScore("manylinux_2_28_x86_64", LINUX_X86_64));
+        assertEquals(platformScore("manylinux2014_x86_64", LINUX_X86_64, baseline), platformScore("manylinux_2_28_x86_64.manylinux2014_x86_64", LINUX_X86_64, baseline));
+    }
+
+    @Test
+    void neverPicksMuslWheelsForGlibcTargets() {
+        assertEquals(-1, platformScore("musllinux_1_1_x86_64", LINUX_X86_64));
+        assertEquals(-1, platformScore("manylinux_2_17_aarch64", LINUX_X86_64));
+        // Another platform tag of the same wheel may still cover the target
+        assertEquals(platformScore("manylinux_2_17_x86_64", LINUX_X86_64), platformScore("musllinux_1_1_x86_64.manylinux_2_17_x86_64", LINUX_X86_64));
+    }
+
+    @Test
+    void prefersTheNewestMacOSAndSingleArchitectureWheels() {
+        assertOrder(MACOS_ARM64, WheelFilename.ANY_BASELINE,
+                "macosx_14_0_arm64",
+                "macosx_11_0_arm64",
+                "macosx_11_0_universal2",
+                "macosx_10_9_universal2",
+                "any"
+        );
+        var baseline = WheelFilename.baseline("12.0");
+        assertEquals(-1, platformScore("macosx_14_0_arm64", MACOS_ARM64, baseline));
+        assertOrder(MACOS_ARM64, baseline,
+                "macosx_12_0_arm64",
+                "macosx_11_0_arm64",
+                "macosx_11_0_universal2",
+                "any"
+        );
+    }
+
+    @Test
+    void readsBaselines() {
+        assertEquals(228, WheelFilename.baseline("2.28"));
+        assertEquals(1015, WheelFilename.baseline("10.15"));
+        for (var invalid : new String[] {"2", "2.x", "2.100", "0.0", ".5"}) {
+            assertThrows(IllegalArgumentException.class, () -> WheelFilename.baseline(invalid), invalid);
+        }
+    }
+
+    @Test
+    void prefersWheelsBuiltForTheInterpreter() {
+        var exact = wheel("cp312-cp312-any").interpreterScore(CP312);
+        var stable = wheel("cp38-abi3-any").interpreterScore(CP312);
+        var newerStable = wheel("cp310-abi3-any").interpreterScore(CP312);
+        var pure = wheel("py3-none-any").interpreterScore(CP312);
+        assertTrue(exact > newerStable && newerStable > stable && stable > pure);
+        assertEquals(-1, wheel("cp311-cp311-any").interpreterScore(CP312));
+        assertEquals(-1, wheel("cp313-abi3-any").interpreterScore(CP312));
+        assertEquals(-1, wheel("py2-none-any").interpreterScore(CP312));
+        assertEquals("cp312-cp312", wheel("py3.cp312-none.cp312-any").interpreterTag(CP312));
+        assertNull(wheel("cp311-cp311-any").interpreterTag(CP312));
+    }
+}